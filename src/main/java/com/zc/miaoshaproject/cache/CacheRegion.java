@@ -0,0 +1,67 @@
+package com.zc.miaoshaproject.cache;
+
+/**
+ * 描述:
+ * 本地缓存区域
+ * 每个区域单独限制容量(按估算的字节数加权)、过期时间和写入后自动刷新时间,互不挤占;
+ * 默认值可通过 local.cache.{name}.max.weight.bytes / expire.seconds / refresh.seconds 覆盖,refresh为0表示不自动刷新
+ * @Author: zhangchao
+ * @Date: 9/9/20 4:10 下午
+ **/
+public enum CacheRegion {
+
+    //商品详情ItemModel
+    ITEM("item", 32L << 20, 300, 60),
+
+    //商品详情页展示用的ItemVO,只在商品/活动变更淘汰时重新生成,不自动刷新
+    ITEM_VO("item_vo", 32L << 20, 300, 0),
+
+    //商品详情接口序列化好的响应,与ItemVO一样只在淘汰后重新生成,etag随之变化
+    ITEM_PAGE("item_page", 64L << 20, 300, 0),
+
+    //下单校验使用的用户信息
+    USER("user", 16L << 20, 600, 0),
+
+    //登录凭证对应的精简用户信息
+    SESSION("session", 32L << 20, 3600, 0);
+
+    private final String name;
+
+    private final long defaultMaxWeightBytes;
+
+    private final int defaultExpireSeconds;
+
+    private final int defaultRefreshSeconds;
+
+    CacheRegion(String name, long defaultMaxWeightBytes, int defaultExpireSeconds, int defaultRefreshSeconds){
+        this.name = name;
+        this.defaultMaxWeightBytes = defaultMaxWeightBytes;
+        this.defaultExpireSeconds = defaultExpireSeconds;
+        this.defaultRefreshSeconds = defaultRefreshSeconds;
+    }
+
+    public static CacheRegion of(String name){
+        for (CacheRegion region : values()){
+            if (region.name.equals(name)){
+                return region;
+            }
+        }
+        return null;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getDefaultMaxWeightBytes() {
+        return defaultMaxWeightBytes;
+    }
+
+    public int getDefaultExpireSeconds() {
+        return defaultExpireSeconds;
+    }
+
+    public int getDefaultRefreshSeconds() {
+        return defaultRefreshSeconds;
+    }
+}
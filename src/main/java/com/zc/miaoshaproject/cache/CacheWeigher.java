@@ -0,0 +1,64 @@
+package com.zc.miaoshaproject.cache;
+
+import com.google.common.cache.Weigher;
+import com.zc.miaoshaproject.controller.viewobject.ItemVO;
+import com.zc.miaoshaproject.service.model.ItemModel;
+import com.zc.miaoshaproject.service.model.UserModel;
+import com.zc.miaoshaproject.session.LoginPrincipal;
+
+/**
+ * 描述:
+ * 本地缓存条目的权重,按对象在堆中大致占用的字节数估算(对象头+字段+字符串内容),只需数量级准确
+ * @Author: zhangchao
+ * @Date: 9/9/20 4:10 下午
+ **/
+public class CacheWeigher implements Weigher<String,Object> {
+
+    //缓存内部节点、key对象等固定开销
+    private static final int ENTRY_OVERHEAD = 64;
+
+    //未知类型按此估算
+    private static final int DEFAULT_WEIGHT = 256;
+
+    @Override
+    public int weigh(String key, Object value) {
+        return ENTRY_OVERHEAD + chars(key) + estimate(value);
+    }
+
+    private int estimate(Object value){
+        if (value instanceof ItemModel){
+            ItemModel itemModel = (ItemModel) value;
+            int size = 160 + chars(itemModel.getTitle()) + chars(itemModel.getDescription()) + chars(itemModel.getImgUrl());
+            if (itemModel.getPromoModel() != null){
+                size += 160 + chars(itemModel.getPromoModel().getPromoName());
+            }
+            return size;
+        }
+        if (value instanceof ItemVO){
+            ItemVO itemVO = (ItemVO) value;
+            return 200 + chars(itemVO.getTitle()) + chars(itemVO.getDescription()) + chars(itemVO.getImgUrl())
+                    + chars(itemVO.getStartDate());
+        }
+        if (value instanceof UserModel){
+            UserModel userModel = (UserModel) value;
+            return 96 + chars(userModel.getName()) + chars(userModel.getTelphone()) + chars(userModel.getRegisterMode())
+                    + chars(userModel.getThirdPartyId()) + chars(userModel.getEncrptPassword());
+        }
+        if (value instanceof LoginPrincipal){
+            LoginPrincipal principal = (LoginPrincipal) value;
+            return 48 + chars(principal.getName()) + chars(principal.getTelphone());
+        }
+        if (value instanceof RenderedResponse){
+            RenderedResponse rendered = (RenderedResponse) value;
+            return 32 + 16 + rendered.getBody().length + chars(rendered.getEtag());
+        }
+        if (value instanceof byte[]){
+            return 16 + ((byte[]) value).length;
+        }
+        return DEFAULT_WEIGHT;
+    }
+
+    private int chars(String value){
+        return value == null ? 0 : 40 + value.length() * 2;
+    }
+}
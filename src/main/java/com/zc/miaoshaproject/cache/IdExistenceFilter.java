@@ -0,0 +1,215 @@
+package com.zc.miaoshaproject.cache;
+
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+import com.zc.miaoshaproject.dao.ItemDOMapper;
+import com.zc.miaoshaproject.dao.UserDOMapper;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+
+/**
+ * 描述:
+ * 商品/用户id存在性过滤器
+ * 启动时按id分页从item/user_info表加载全部id构建布隆过滤器,过滤器判定不存在的id直接返回,不再访问redis和数据库;
+ * 新建商品/注册用户后通过redis pub/sub通知所有节点加入过滤器,并定时全量重建兜底丢失的消息;
+ * 首次构建完成前一律放行,大于上次重建时最大id的id也放行(可能是通知丢失的新数据),由缓存/数据库及空值标记判断
+ * @Author: zhangchao
+ * @Date: 9/8/20 11:20 上午
+ **/
+@Component
+public class IdExistenceFilter implements MessageListener {
+
+    public static final String CHANNEL = "id_filter_add";
+
+    private static final String ITEM = "item";
+
+    private static final String USER = "user";
+
+    //重建时每次从数据库读取的id数量
+    private static final int REBUILD_PAGE_SIZE = 10000;
+
+    @Autowired
+    private ItemDOMapper itemDOMapper;
+
+    @Autowired
+    private UserDOMapper userDOMapper;
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    //复用@EnableRedisHttpSession注册的监听容器
+    @Autowired
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    //每个过滤器预计容纳的id数量,实际数量更多时按实际数量的2倍构建
+    @Value("${id.filter.expected.insertions:1000000}")
+    private int expectedInsertions;
+
+    //误判率
+    @Value("${id.filter.fpp:0.001}")
+    private double fpp;
+
+    //全量重建间隔(分钟)
+    @Value("${id.filter.rebuild.minutes:30}")
+    private int rebuildMinutes;
+
+    private final IdFilter itemFilter = new IdFilter();
+
+    private final IdFilter userFilter = new IdFilter();
+
+    private ScheduledExecutorService scheduler;
+
+    @PostConstruct
+    public void init(){
+        redisMessageListenerContainer.addMessageListener(this, new ChannelTopic(CHANNEL));
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        scheduler.scheduleWithFixedDelay(this::rebuild, 0, rebuildMinutes, TimeUnit.MINUTES);
+    }
+
+    @PreDestroy
+    public void destroy(){
+        scheduler.shutdownNow();
+    }
+
+    public boolean mightContainItem(Integer itemId){
+        return itemId != null && itemFilter.mightContain(itemId);
+    }
+
+    public boolean mightContainUser(Integer userId){
+        return userId != null && userFilter.mightContain(userId);
+    }
+
+    public void addItem(Integer itemId){
+        itemFilter.add(itemId);
+        stringRedisTemplate.convertAndSend(CHANNEL, ITEM + ":" + itemId);
+    }
+
+    public void addUser(Integer userId){
+        userFilter.add(userId);
+        stringRedisTemplate.convertAndSend(CHANNEL, USER + ":" + userId);
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        int split = body.indexOf(':');
+        if (split < 0){
+            return;
+        }
+        Integer id = Integer.valueOf(body.substring(split + 1));
+        if (ITEM.equals(body.substring(0, split))){
+            itemFilter.add(id);
+        }else if (USER.equals(body.substring(0, split))){
+            userFilter.add(id);
+        }
+    }
+
+    private void rebuild(){
+        try {
+            itemFilter.rebuild(itemDOMapper::listIdsAfter);
+            userFilter.rebuild(userDOMapper::listIdsAfter);
+        }catch (Exception e){
+            e.printStackTrace();
+        }
+    }
+
+    //guava 18的BloomFilter写入不是线程安全的,写入在锁内完成;读取不加锁
+    private class IdFilter {
+        private volatile Built built;
+
+        //重建期间新加入的id,切换前补写到新过滤器
+        private List<Integer> pending;
+
+        //上次重建时的id数量,用于估算下次重建的容量
+        private int lastCount;
+
+        boolean mightContain(Integer id){
+            Built current = built;
+            return current == null || id > current.maxId || current.filter.mightContain(id);
+        }
+
+        //pub/sub加入的id不更新maxId,其他节点新建但通知丢失的id仍会因大于maxId被放行
+        synchronized void add(Integer id){
+            if (built != null){
+                built.filter.put(id);
+            }
+            if (pending != null){
+                pending.add(id);
+            }
+        }
+
+        void rebuild(BiFunction<Integer,Integer,List<Integer>> pageLoader){
+            synchronized (this){
+                pending = new ArrayList<>();
+            }
+            try {
+                int capacity = Math.max(expectedInsertions, lastCount * 2);
+                Built rebuilt = load(pageLoader, capacity);
+                if (rebuilt.count > capacity){
+                    //实际数量超出预估容量,误判率会升高,按实际数量重新构建一次
+                    rebuilt = load(pageLoader, rebuilt.count * 2);
+                }
+                lastCount = rebuilt.count;
+                synchronized (this){
+                    for (Integer id : pending){
+                        rebuilt.filter.put(id);
+                    }
+                    built = rebuilt;
+                }
+            }finally {
+                synchronized (this){
+                    pending = null;
+                }
+            }
+        }
+
+        //按id递增分页读取,不一次性加载全部id
+        private Built load(BiFunction<Integer,Integer,List<Integer>> pageLoader, int capacity){
+            BloomFilter<Integer> filter = BloomFilter.create(Funnels.integerFunnel(), capacity, fpp);
+            int count = 0;
+            int maxId = 0;
+            while (true){
+                List<Integer> ids = pageLoader.apply(maxId, REBUILD_PAGE_SIZE);
+                for (Integer id : ids){
+                    filter.put(id);
+                }
+                count += ids.size();
+                if (!ids.isEmpty()){
+                    maxId = ids.get(ids.size() - 1);
+                }
+                if (ids.size() < REBUILD_PAGE_SIZE){
+                    return new Built(filter, maxId, count);
+                }
+            }
+        }
+    }
+
+    //构建完成的过滤器及构建时读到的最大id
+    private static class Built {
+        private final BloomFilter<Integer> filter;
+        private final int maxId;
+        private final int count;
+
+        Built(BloomFilter<Integer> filter, int maxId, int count){
+            this.filter = filter;
+            this.maxId = maxId;
+            this.count = count;
+        }
+    }
+}
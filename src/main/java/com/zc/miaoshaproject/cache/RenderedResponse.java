@@ -0,0 +1,28 @@
+package com.zc.miaoshaproject.cache;
+
+/**
+ * 描述:
+ * 预先序列化好的接口响应
+ * body为UTF-8编码的json,etag由body内容摘要得到,内容不变etag就不变
+ * @Author: zhangchao
+ * @Date: 9/10/20 2:40 下午
+ **/
+public class RenderedResponse {
+
+    private final byte[] body;
+
+    private final String etag;
+
+    public RenderedResponse(byte[] body, String etag) {
+        this.body = body;
+        this.etag = etag;
+    }
+
+    public byte[] getBody() {
+        return body;
+    }
+
+    public String getEtag() {
+        return etag;
+    }
+}
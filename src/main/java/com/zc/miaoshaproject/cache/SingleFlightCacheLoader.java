@@ -0,0 +1,190 @@
+package com.zc.miaoshaproject.cache;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.types.Expiration;
+import org.springframework.scripting.support.ResourceScriptSource;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * 描述:
+ * redis缓存单飞加载
+ * 缓存未命中时同一个key在本节点只有一个线程回源,其他线程等待它的结果;
+ * 开启租约后多个节点之间通过redis短租约锁再去重一次,没拿到租约的节点轮询等待缓存写入;
+ * 写入时在ttl上叠加随机抖动,避免同时写入的key在同一时刻集中过期;
+ * 回源结果为空时写入短ttl的空值标记,不存在的数据在标记过期前不会再次回源
+ * @Author: zhangchao
+ * @Date: 9/7/20 3:05 下午
+ **/
+@Component
+public class SingleFlightCacheLoader {
+
+    private static final String LEASE_KEY_PREFIX = "cache_load_lease_";
+
+    //等待其他节点加载时的轮询间隔
+    private static final long LEASE_POLL_MILLIS = 20;
+
+    //空值标记
+    private static final String NULL_VALUE = "__null__";
+
+    @Autowired
+    private RedisTemplate redisTemplate;
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    //是否通过redis租约在节点之间去重回源
+    @Value("${cache.load.lease.enabled:false}")
+    private boolean leaseEnabled;
+
+    //租约有效期,持有租约的节点异常退出时租约到期自动释放
+    @Value("${cache.load.lease.millis:3000}")
+    private long leaseMillis;
+
+    //没拿到租约时最多等待多久,超时后自行回源
+    @Value("${cache.load.lease.wait.millis:500}")
+    private long leaseWaitMillis;
+
+    //ttl随机增加0~N%
+    @Value("${cache.ttl.jitter.percent:10}")
+    private int jitterPercent;
+
+    //空值标记的有效期(秒)
+    @Value("${cache.null.ttl.seconds:30}")
+    private int nullTtlSeconds;
+
+    private final Map<String,CompletableFuture<Object>> inFlight = new ConcurrentHashMap<>();
+
+    private DefaultRedisScript<Long> releaseScript;
+
+    @PostConstruct
+    public void init(){
+        releaseScript = new DefaultRedisScript<>();
+        releaseScript.setScriptSource(new ResourceScriptSource(new ClassPathResource("lua/compare_and_delete.lua")));
+        releaseScript.setResultType(Long.class);
+    }
+
+    //先查redis,未命中时单飞回源并写入redis
+    @SuppressWarnings("unchecked")
+    public <T> T get(String cacheKey, long ttl, TimeUnit unit, Supplier<T> loader){
+        Object value = redisTemplate.opsForValue().get(cacheKey);
+        if (value != null){
+            return (T) unwrap(value);
+        }
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        CompletableFuture<Object> loading = inFlight.putIfAbsent(cacheKey, future);
+        if (loading != null){
+            return (T) await(loading);
+        }
+        try {
+            value = unwrap(loadWithLease(cacheKey, ttl, unit, loader));
+            future.complete(value);
+            return (T) value;
+        }catch (RuntimeException e){
+            future.completeExceptionally(e);
+            throw e;
+        }finally {
+            inFlight.remove(cacheKey, future);
+        }
+    }
+
+    //写入redis,ttl叠加随机抖动
+    public void put(String cacheKey, Object value, long ttl, TimeUnit unit){
+        long millis = unit.toMillis(ttl);
+        if (jitterPercent > 0){
+            millis += ThreadLocalRandom.current().nextLong(millis * jitterPercent / 100 + 1);
+        }
+        redisTemplate.opsForValue().set(cacheKey, value, millis, TimeUnit.MILLISECONDS);
+    }
+
+    private Object loadWithLease(String cacheKey, long ttl, TimeUnit unit, Supplier<?> loader){
+        //排队期间上一轮加载可能已经写入
+        Object value = redisTemplate.opsForValue().get(cacheKey);
+        if (value != null){
+            return value;
+        }
+        if (!leaseEnabled){
+            return loadAndPut(cacheKey, ttl, unit, loader);
+        }
+        String leaseKey = LEASE_KEY_PREFIX + cacheKey;
+        String leaseValue = UUID.randomUUID().toString();
+        if (tryLease(leaseKey, leaseValue)){
+            try {
+                return loadAndPut(cacheKey, ttl, unit, loader);
+            }finally {
+                releaseLease(leaseKey, leaseValue);
+            }
+        }
+        //其他节点正在回源,等待其写入缓存
+        long deadline = System.currentTimeMillis() + leaseWaitMillis;
+        while (System.currentTimeMillis() < deadline){
+            try {
+                Thread.sleep(LEASE_POLL_MILLIS);
+            }catch (InterruptedException e){
+                Thread.currentThread().interrupt();
+                break;
+            }
+            value = redisTemplate.opsForValue().get(cacheKey);
+            if (value != null){
+                return value;
+            }
+        }
+        //等待超时(持有者异常或数据不存在)自行回源
+        return loadAndPut(cacheKey, ttl, unit, loader);
+    }
+
+    private Object loadAndPut(String cacheKey, long ttl, TimeUnit unit, Supplier<?> loader){
+        Object value = loader.get();
+        if (value != null){
+            put(cacheKey, value, ttl, unit);
+        }else {
+            redisTemplate.opsForValue().set(cacheKey, NULL_VALUE, nullTtlSeconds, TimeUnit.SECONDS);
+        }
+        return value;
+    }
+
+    private Object unwrap(Object value){
+        return NULL_VALUE.equals(value) ? null : value;
+    }
+
+    private Object await(CompletableFuture<Object> future){
+        try {
+            return future.join();
+        }catch (CompletionException e){
+            if (e.getCause() instanceof RuntimeException){
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    private boolean tryLease(String leaseKey, String leaseValue){
+        Boolean leased = stringRedisTemplate.execute((RedisCallback<Boolean>) connection -> connection.set(
+                leaseKey.getBytes(StandardCharsets.UTF_8), leaseValue.getBytes(StandardCharsets.UTF_8),
+                Expiration.milliseconds(leaseMillis), RedisStringCommands.SetOption.ifAbsent()));
+        return Boolean.TRUE.equals(leased);
+    }
+
+    //比较和删除在一个脚本内完成,回源超过租约有效期、租约已被其他节点拿到时不会误删
+    private void releaseLease(String leaseKey, String leaseValue){
+        stringRedisTemplate.execute(releaseScript, Arrays.asList(leaseKey), leaseValue);
+    }
+}
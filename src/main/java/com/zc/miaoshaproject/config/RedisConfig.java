@@ -2,9 +2,11 @@ package com.zc.miaoshaproject.config;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.module.SimpleModule;
+import com.zc.miaoshaproject.serializer.CompactModelRedisSerializer;
 import com.zc.miaoshaproject.serializer.JodaDateTimeJsonDeserializer;
 import com.zc.miaoshaproject.serializer.JodaDateTimeJsonSerializer;
 import org.joda.time.DateTime;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.data.redis.connection.RedisConnectionFactory;
 import org.springframework.data.redis.core.RedisTemplate;
@@ -23,6 +25,11 @@ import org.springframework.stereotype.Component;
 //3600s的session过期时间
 @EnableRedisHttpSession(maxInactiveIntervalInSeconds = 3600)
 public class RedisConfig {
+
+    //领域模型写入格式 jackson/compact,compact模式下旧的json缓存仍可读出
+    @Value("${redis.value.codec:jackson}")
+    private String valueCodec;
+
     @Bean
     public RedisTemplate redisTemplate(RedisConnectionFactory redisConnectionFactory){
         RedisTemplate redisTemplate = new RedisTemplate();
@@ -46,7 +53,7 @@ public class RedisConfig {
 
         jackson2JsonRedisSerializer.setObjectMapper(objectMapper);
 
-        redisTemplate.setValueSerializer(jackson2JsonRedisSerializer);
+        redisTemplate.setValueSerializer(new CompactModelRedisSerializer(jackson2JsonRedisSerializer, "compact".equals(valueCodec)));
 
         return redisTemplate;
     }
@@ -0,0 +1,32 @@
+package com.zc.miaoshaproject.controller;
+
+import com.zc.miaoshaproject.response.CommonReturnType;
+import com.zc.miaoshaproject.service.CacheService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.CrossOrigin;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.ResponseBody;
+
+/**
+ * 描述:
+ * 本地缓存运行指标,用于按线上数据调整各区域容量和过期时间
+ * @Author: zhangchao
+ * @Date: 9/9/20 4:10 下午
+ **/
+@Controller("/cache")
+@RequestMapping("/cache")
+@CrossOrigin(origins = {"*"},allowCredentials = "true")
+public class CacheController extends BaseController {
+
+    @Autowired
+    private CacheService cacheService;
+
+    //各区域的容量配置、命中率、加载耗时和淘汰数量
+    @RequestMapping(value = "/stats",method = {RequestMethod.GET})
+    @ResponseBody
+    public CommonReturnType stats(){
+        return CommonReturnType.create(cacheService.getStats());
+    }
+}
@@ -1,19 +1,32 @@
 package com.zc.miaoshaproject.controller;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.hash.Hashing;
+import com.zc.miaoshaproject.cache.CacheRegion;
+import com.zc.miaoshaproject.cache.IdExistenceFilter;
+import com.zc.miaoshaproject.cache.RenderedResponse;
+import com.zc.miaoshaproject.cache.SingleFlightCacheLoader;
 import com.zc.miaoshaproject.controller.viewobject.ItemVO;
 import com.zc.miaoshaproject.error.BusinessException;
+import com.zc.miaoshaproject.error.EmBusinessError;
+import com.zc.miaoshaproject.promo.PromoWarmupScheduler;
 import com.zc.miaoshaproject.response.CommonReturnType;
 import com.zc.miaoshaproject.service.CacheService;
 import com.zc.miaoshaproject.service.ItemService;
 import com.zc.miaoshaproject.service.PromoService;
 import com.zc.miaoshaproject.service.model.ItemModel;
 import org.joda.time.format.DateTimeFormat;
+import org.joda.time.format.DateTimeFormatter;
 import org.springframework.beans.BeanUtils;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.*;
 
+import javax.annotation.PostConstruct;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
 import java.math.BigDecimal;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
@@ -26,11 +39,12 @@ import java.util.stream.Collectors;
 @CrossOrigin(origins = {"*"},allowCredentials = "true")
 public class ItemController extends BaseController {
 
-    @Autowired
-    private ItemService itemService;
+    private static final DateTimeFormatter START_DATE_FORMATTER = DateTimeFormat.forPattern("yyyy-MM-dd HH:mm:ss");
+
+    private static final String CONTENT_TYPE_JSON = "application/json;charset=UTF-8";
 
     @Autowired
-    private RedisTemplate redisTemplate;
+    private ItemService itemService;
 
     @Autowired
     private CacheService cacheService;
@@ -38,6 +52,38 @@ public class ItemController extends BaseController {
     @Autowired
     private PromoService promoService;
 
+    @Autowired
+    private PromoWarmupScheduler promoWarmupScheduler;
+
+    @Autowired
+    private SingleFlightCacheLoader singleFlightCacheLoader;
+
+    @Autowired
+    private IdExistenceFilter idExistenceFilter;
+
+    //与@ResponseBody使用同一个ObjectMapper,预先生成的响应与直接返回对象时一致
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    //商品不存在时的响应
+    private RenderedResponse emptyItemPage;
+
+    @PostConstruct
+    public void init(){
+        emptyItemPage = render(null);
+        //本地缓存未命中或到期刷新时: ItemModel从redis取,redis不存在时单飞回源数据库;ItemVO由ItemModel转换,
+        //详情响应由ItemVO序列化,商品不存在时缓存空响应(创建商品时会被淘汰)
+        cacheService.registerLoader(CacheRegion.ITEM, key -> {
+            Integer id = Integer.valueOf(key);
+            return singleFlightCacheLoader.get("item_" + id,10,TimeUnit.MINUTES,() -> itemService.getItemById(id));
+        });
+        cacheService.registerLoader(CacheRegion.ITEM_VO, key -> convertVOFromModel((ItemModel) cacheService.load(CacheRegion.ITEM,key)));
+        cacheService.registerLoader(CacheRegion.ITEM_PAGE, key -> {
+            ItemVO itemVO = (ItemVO) cacheService.load(CacheRegion.ITEM_VO,key);
+            return itemVO == null ? emptyItemPage : render(itemVO);
+        });
+    }
+
     //创建商品的controller
     @RequestMapping(value = "/create",method = {RequestMethod.POST},consumes={CONTENT_TYPE_FORMED})
     @ResponseBody
@@ -61,30 +107,22 @@ public class ItemController extends BaseController {
     }
 
     //商品详情页浏览
+    //直接输出预先序列化好的响应,浏览器携带的If-None-Match与当前etag一致时返回304
     @RequestMapping(value = "/get",method = {RequestMethod.GET})
-    @ResponseBody
-    public CommonReturnType getItem(@RequestParam(name = "id")Integer id){
-        String cacheKey = "item_" + id;
-        //1.先从本地缓存取
-        ItemModel itemModel = (ItemModel) cacheService.getFromCommonCache(cacheKey);
-        if (itemModel==null){
-            //本地缓存不存在从redis取
-            itemModel = (ItemModel) redisTemplate.opsForValue().get(cacheKey);
-            if (itemModel == null){
-                //redis不存在直接从数据库取
-                itemModel = itemService.getItemById(id);
-                //填充redis缓存
-                redisTemplate.opsForValue().set(cacheKey,itemModel);
-                redisTemplate.expire(cacheKey,10, TimeUnit.MINUTES);
-            }
-            //填充本地缓存
-            cacheService.setCommonCache(cacheKey,itemModel);
+    public void getItem(@RequestParam(name = "id")Integer id,
+                        HttpServletRequest request, HttpServletResponse response) throws IOException {
+        //过滤器判定不存在的商品直接返回,不再访问缓存和数据库
+        RenderedResponse rendered = idExistenceFilter.mightContainItem(id)
+                ? (RenderedResponse) cacheService.load(CacheRegion.ITEM_PAGE,String.valueOf(id)) : emptyItemPage;
+
+        response.setHeader("ETag", rendered.getEtag());
+        if (etagMatches(request.getHeader("If-None-Match"), rendered.getEtag())){
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
         }
-
-        ItemVO itemVO = convertVOFromModel(itemModel);
-
-        return CommonReturnType.create(itemVO);
-
+        response.setContentType(CONTENT_TYPE_JSON);
+        response.setContentLength(rendered.getBody().length);
+        response.getOutputStream().write(rendered.getBody());
     }
 
     //商品列表页面浏览
@@ -113,18 +151,50 @@ public class ItemController extends BaseController {
             //有正在进行或即将进行的秒杀活动
             itemVO.setPromoStatus(itemModel.getPromoModel().getStatus());
             itemVO.setPromoId(itemModel.getPromoModel().getId());
-            itemVO.setStartDate(itemModel.getPromoModel().getStartDate().toString(DateTimeFormat.forPattern("yyyy-MM-dd HH:mm:ss")));
+            itemVO.setStartDate(itemModel.getPromoModel().getStartDate().toString(START_DATE_FORMATTER));
             itemVO.setPromoPrice(itemModel.getPromoModel().getPromoItemPrice());
         }else{
             itemVO.setPromoStatus(0);
         }
         return itemVO;
     }
-    //手动发布活动
+    private RenderedResponse render(ItemVO itemVO){
+        try {
+            byte[] body = objectMapper.writeValueAsBytes(CommonReturnType.create(itemVO));
+            return new RenderedResponse(body, "\"" + Hashing.murmur3_128().hashBytes(body).toString() + "\"");
+        }catch (JsonProcessingException e){
+            throw new IllegalStateException(e);
+        }
+    }
+
+    //If-None-Match可能是多个etag或*,弱校验忽略W/前缀
+    private boolean etagMatches(String ifNoneMatch, String etag){
+        if (ifNoneMatch == null){
+            return false;
+        }
+        for (String candidate : ifNoneMatch.split(",")){
+            candidate = candidate.trim();
+            if (candidate.startsWith("W/")){
+                candidate = candidate.substring(2);
+            }
+            if ("*".equals(candidate) || etag.equals(candidate)){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    //手动发布活动(正常情况下由PromoWarmupScheduler在活动开始前自动发布)
+    //已发布的活动不会重复发布(会覆盖redis中已扣减的库存),确需重新发布时传force=true
     @RequestMapping(value = "/publishpromo",method = {RequestMethod.GET})
     @ResponseBody
-    public CommonReturnType publishpromo(@RequestParam(name = "id")Integer id){
-        promoService.publishPromo(id);
+    public CommonReturnType publishpromo(@RequestParam(name = "id")Integer id,
+                                         @RequestParam(name = "force",required = false,defaultValue = "false")boolean force) throws BusinessException {
+        if (force){
+            promoService.publishPromo(id);
+        }else if (!promoWarmupScheduler.publishOnce(id)){
+            throw new BusinessException(EmBusinessError.PARAMETER_VALIDATION_ERROR,"活动已发布或正在发布,如需重新发布请传force=true");
+        }
         return CommonReturnType.create(null);
 
     }
@@ -1,16 +1,28 @@
 package com.zc.miaoshaproject.controller;
 
 import com.google.common.util.concurrent.RateLimiter;
+import com.zc.miaoshaproject.controller.viewobject.OrderResultVO;
 import com.zc.miaoshaproject.error.BusinessException;
 import com.zc.miaoshaproject.error.EmBusinessError;
+import com.zc.miaoshaproject.executor.ItemLaneExecutor;
+import com.zc.miaoshaproject.executor.OrderTaskExecutor;
 import com.zc.miaoshaproject.mq.MqProducer;
+import com.zc.miaoshaproject.pipeline.OrderPipeline;
+import com.zc.miaoshaproject.pipeline.OrderPipelineCallback;
+import com.zc.miaoshaproject.promo.PromoTokenSigner;
 import com.zc.miaoshaproject.response.CommonReturnType;
 import com.zc.miaoshaproject.service.ItemService;
+import com.zc.miaoshaproject.service.OrderResultService;
 import com.zc.miaoshaproject.service.OrderService;
 import com.zc.miaoshaproject.service.PromoService;
-import com.zc.miaoshaproject.service.model.UserModel;
+import com.zc.miaoshaproject.service.model.OrderResultModel;
+import com.zc.miaoshaproject.session.LoginPrincipal;
+import com.zc.miaoshaproject.session.LoginTokenCache;
+import com.zc.miaoshaproject.stock.SoldOutRegistry;
 import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.BeanUtils;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.*;
@@ -44,15 +56,46 @@ public class OrderController extends BaseController {
     @Autowired
     private PromoService promoService;
 
-    private ExecutorService executorService;
+    @Autowired
+    private SoldOutRegistry soldOutRegistry;
+
+    @Autowired
+    private OrderResultService orderResultService;
+
+    @Autowired
+    private PromoTokenSigner promoTokenSigner;
+
+    @Autowired
+    private LoginTokenCache loginTokenCache;
+
+    //下单受理方式 sync:等待下单完成后返回  async:入队后立即返回下单凭证,通过/order/result查询结果
+    @Value("${order.create.mode:sync}")
+    private String orderCreateMode;
+
+    //有界线程池,队列满时直接限流
+    @Autowired
+    private OrderTaskExecutor orderTaskExecutor;
+
+    //按商品分道的执行器,同一商品的请求在一个通道内串行处理
+    @Autowired
+    private ItemLaneExecutor itemLaneExecutor;
+
+    //环形缓冲区下单流水线
+    @Autowired
+    private OrderPipeline orderPipeline;
+
+    //下单任务执行方式 pool:所有商品共用线程池  lane:按商品分道  pipeline:环形缓冲区流水线,分阶段批量处理
+    @Value("${order.executor.mode:pool}")
+    private String orderExecutorMode;
+
+    //是否开放运行时调整线程池接口,默认关闭,只在需要调整的节点上临时打开
+    @Value("${order.executor.resize.enabled:false}")
+    private boolean executorResizeEnabled;
 
     private RateLimiter orderCreateRateLimiter;
 
-    //初始化线程队列 size即为实际工作队列数,实际可以自定义线程池,用有界队列限制请求数
     @PostConstruct
     public void initThreadPool(){
-        executorService = Executors.newFixedThreadPool(20);
-
         //根据压测情况设置数值
         orderCreateRateLimiter = RateLimiter.create(300);
     }
@@ -67,13 +110,13 @@ public class OrderController extends BaseController {
         if(StringUtils.isEmpty(token)){
             throw new BusinessException(EmBusinessError.USER_NOT_LOGIN,"用户还未登陆，不能下单");
         }
-        //获取用户的登陆信息
-        UserModel userModel = (UserModel) redisTemplate.opsForValue().get(token);
-        if(userModel == null){
+        //获取用户的登陆信息,优先从本地登录凭证缓存取
+        LoginPrincipal loginUser = loginTokenCache.get(token);
+        if(loginUser == null){
             throw new BusinessException(EmBusinessError.USER_NOT_LOGIN,"用户还未登陆，不能下单");
         }
         //获取秒杀访问令牌
-        String promoToken = promoService.generateSecondKillToken(promoId,itemId,userModel.getId());
+        String promoToken = promoService.generateSecondKillToken(promoId,itemId,loginUser.getId());
 
         if(promoToken == null){
             throw new BusinessException(EmBusinessError.PARAMETER_VALIDATION_ERROR,"生成令牌失败");
@@ -93,11 +136,17 @@ public class OrderController extends BaseController {
             throw new BusinessException(EmBusinessError.RATELIMIT);
         }
         //1.校验token及缓存中的用户登录信息
-        UserModel userModel = validLoginInfo();
+        LoginPrincipal loginUser = validLoginInfo();
 
         //2.验证活动令牌
-        if (StringUtils.isNotBlank(promoToken)){
-            String cacheKey ="promo_token_"+promoId+"_userid_"+userModel.getId()+"_itemid_"+itemId;
+        boolean signedToken = StringUtils.isNotBlank(promoToken) && promoTokenSigner.isEnabled();
+        if (signedToken){
+            //签名令牌在本地校验,不访问redis
+            if (!promoTokenSigner.verify(promoToken, promoId, loginUser.getId(), itemId)){
+                throw new BusinessException(EmBusinessError.PARAMETER_VALIDATION_ERROR,"秒杀令牌校验失败");
+            }
+        }else if (StringUtils.isNotBlank(promoToken)){
+            String cacheKey ="promo_token_"+promoId+"_userid_"+loginUser.getId()+"_itemid_"+itemId;
             String cachePromoToken = (String) redisTemplate.opsForValue().get(cacheKey);
             if(cachePromoToken == null){
                 throw new BusinessException(EmBusinessError.PARAMETER_VALIDATION_ERROR,"秒杀令牌校验失败");
@@ -110,7 +159,20 @@ public class OrderController extends BaseController {
         // OrderModel orderModel = orderService.createOrder(userModel.getId(),itemId,promoId,amount);
 
         //3.线程池实现阻塞队列处理高并发流量(保证mysql不死,同时需要不断压测合理调整线程数以保证最高效率)
-        this.handleTaskInThreadQueue(itemId, amount, promoId, userModel);
+        try {
+            if ("async".equals(orderCreateMode)){
+                //异步受理,不占用servlet线程等待事务消息发送
+                String ticket = this.handleTaskAsync(itemId, amount, promoId, loginUser);
+                return CommonReturnType.create(ticket);
+            }
+            this.handleTaskInThreadQueue(itemId, amount, promoId, loginUser);
+        }catch (BusinessException e){
+            //队列已满未被受理,签名令牌校验时记录的随机数作废,用户可以用同一令牌重试
+            if (signedToken && e.getErrCode() == EmBusinessError.RATELIMIT.getErrCode()){
+                promoTokenSigner.release(promoToken);
+            }
+            throw e;
+        }
 
         //3.缓存查询是否售罄
 //        if (redisTemplate.hasKey("promo_item_stock_invalid_" + itemId)) {
@@ -129,7 +191,7 @@ public class OrderController extends BaseController {
         return CommonReturnType.create(null);
     }
 
-    private UserModel validLoginInfo() throws BusinessException {
+    private LoginPrincipal validLoginInfo() throws BusinessException {
         //        Boolean isLogin = (Boolean) httpServletRequest.getSession().getAttribute("IS_LOGIN");
         //此处getParameterMap应该非空处理
         String token = httpServletRequest.getParameterMap().get("token")[0];
@@ -140,19 +202,184 @@ public class OrderController extends BaseController {
 
         //数据库获取用户的登陆信息 改为缓存中取
 //        UserModel userModel = (UserModel)httpServletRequest.getSession().getAttribute("LOGIN_USER");
-        UserModel userModel = (UserModel) redisTemplate.opsForValue().get(token);
-        if (Objects.isNull(userModel)){
+        //本地登录凭证缓存未命中时才访问redis
+        LoginPrincipal loginUser = loginTokenCache.get(token);
+        if (Objects.isNull(loginUser)){
             throw new BusinessException(EmBusinessError.USER_NOT_LOGIN,"用户还未登陆，不能下单");
         }
-        return userModel;
+        return loginUser;
+    }
+
+    //查询异步下单结果
+    @RequestMapping(value = "/result",method = {RequestMethod.GET})
+    @ResponseBody
+    public CommonReturnType getOrderResult(@RequestParam(name="ticket")String ticket) throws BusinessException {
+        LoginPrincipal loginUser = validLoginInfo();
+        OrderResultModel resultModel = orderResultService.getResult(ticket);
+        //只返回属于当前登录用户的结果,userId缺失的结果一律视为不存在
+        if (resultModel == null || resultModel.getUserId() == null || !resultModel.getUserId().equals(loginUser.getId())){
+            throw new BusinessException(EmBusinessError.PARAMETER_VALIDATION_ERROR,"下单凭证不存在或已过期");
+        }
+        OrderResultVO orderResultVO = new OrderResultVO();
+        BeanUtils.copyProperties(resultModel,orderResultVO);
+        return CommonReturnType.create(orderResultVO);
+    }
+
+    //下单线程池运行指标
+    @RequestMapping(value = "/executor/metrics",method = {RequestMethod.GET})
+    @ResponseBody
+    public CommonReturnType executorMetrics(){
+        if ("lane".equals(orderExecutorMode)){
+            return CommonReturnType.create(itemLaneExecutor.getMetrics());
+        }
+        if ("pipeline".equals(orderExecutorMode)){
+            return CommonReturnType.create(orderPipeline.getMetrics());
+        }
+        return CommonReturnType.create(orderTaskExecutor.getMetrics());
+    }
+
+    //运行时调整下单线程池大小,会改变线上行为,只接受POST且需配置开启
+    @RequestMapping(value = "/executor/resize",method = {RequestMethod.POST},consumes={CONTENT_TYPE_FORMED})
+    @ResponseBody
+    public CommonReturnType resizeExecutor(@RequestParam(name="coreSize",required = false)Integer coreSize,
+                                           @RequestParam(name="maxSize",required = false)Integer maxSize,
+                                           @RequestParam(name="queueCapacity")Integer queueCapacity) throws BusinessException {
+        if (!executorResizeEnabled){
+            throw new BusinessException(EmBusinessError.PARAMETER_VALIDATION_ERROR,"未开启运行时调整,需配置order.executor.resize.enabled=true");
+        }
+        if ("pipeline".equals(orderExecutorMode)){
+            throw new BusinessException(EmBusinessError.PARAMETER_VALIDATION_ERROR,"流水线模式不支持运行时调整");
+        }
+        if (queueCapacity == null || queueCapacity <= 0){
+            throw new BusinessException(EmBusinessError.PARAMETER_VALIDATION_ERROR,"队列长度必须大于0");
+        }
+        if (!"lane".equals(orderExecutorMode)
+                && (coreSize == null || maxSize == null || coreSize <= 0 || coreSize > maxSize)){
+            throw new BusinessException(EmBusinessError.PARAMETER_VALIDATION_ERROR,"线程数必须满足0<coreSize<=maxSize");
+        }
+        try {
+            if ("lane".equals(orderExecutorMode)){
+                //分道模式每个通道固定一个线程,只调整通道队列长度
+                itemLaneExecutor.resizeQueue(queueCapacity);
+                return CommonReturnType.create(itemLaneExecutor.getMetrics());
+            }
+            orderTaskExecutor.resize(coreSize, maxSize, queueCapacity);
+        } catch (IllegalArgumentException e) {
+            throw new BusinessException(EmBusinessError.PARAMETER_VALIDATION_ERROR, e.getMessage());
+        }
+        return CommonReturnType.create(orderTaskExecutor.getMetrics());
+    }
+
+    private void handleTaskInThreadQueue(@RequestParam(name = "itemId") Integer itemId, @RequestParam(name = "amount") Integer amount, @RequestParam(name = "promoId", required = false) Integer promoId, LoginPrincipal loginUser) throws BusinessException {
+        Future<Object> future;
+        try {
+            if ("pipeline".equals(orderExecutorMode)){
+                future = publishToPipeline(itemId, amount, promoId, loginUser);
+            }else {
+                future = submitTask(itemId, createOrderTask(itemId, amount, promoId, loginUser));
+            }
+        } catch (RejectedExecutionException e) {
+            throw new BusinessException(EmBusinessError.RATELIMIT);
+        }
+
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+            throw new BusinessException(EmBusinessError.UNKNOWN_ERROR);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof BusinessException) {
+                throw (BusinessException) e.getCause();
+            }
+            e.printStackTrace();
+            throw new BusinessException(EmBusinessError.UNKNOWN_ERROR);
+        }
     }
 
-    private void handleTaskInThreadQueue(@RequestParam(name = "itemId") Integer itemId, @RequestParam(name = "amount") Integer amount, @RequestParam(name = "promoId", required = false) Integer promoId, UserModel userModel) throws BusinessException {
-        Future<Object> future = executorService.submit(new Callable<Object>() {
+    private Future<Object> publishToPipeline(Integer itemId, Integer amount, Integer promoId, LoginPrincipal loginUser) {
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        publishToPipeline(itemId, amount, promoId, loginUser, new OrderPipelineCallback() {
+            @Override
+            public void onSuccess() {
+                future.complete(null);
+            }
+
+            @Override
+            public void onFailure(BusinessException e) {
+                future.completeExceptionally(e);
+            }
+        });
+        return future;
+    }
+
+    //流水线缓冲区已满时与线程池队列满一样按限流处理
+    private void publishToPipeline(Integer itemId, Integer amount, Integer promoId, LoginPrincipal loginUser, OrderPipelineCallback callback) {
+        if (!orderPipeline.publish(loginUser.getId(), itemId, promoId, amount, callback)) {
+            throw new RejectedExecutionException("order pipeline is full");
+        }
+    }
+
+    //任务入队后直接返回下单凭证,处理结果写入结果存储
+    private String handleTaskAsync(Integer itemId, Integer amount, Integer promoId, LoginPrincipal loginUser) throws BusinessException {
+        String ticket = orderResultService.createTicket(loginUser.getId());
+        try {
+            if ("pipeline".equals(orderExecutorMode)){
+                publishToPipeline(itemId, amount, promoId, loginUser, new OrderPipelineCallback() {
+                    @Override
+                    public void onSuccess() {
+                        orderResultService.success(ticket, loginUser.getId());
+                    }
+
+                    @Override
+                    public void onFailure(BusinessException e) {
+                        orderResultService.fail(ticket, loginUser.getId(), e.getErrCode(), e.getErrMsg());
+                    }
+                });
+            }else {
+                submitAsyncTask(itemId, ticket, loginUser, createOrderTask(itemId, amount, promoId, loginUser));
+            }
+        } catch (RejectedExecutionException e) {
+            orderResultService.fail(ticket, loginUser.getId(), EmBusinessError.RATELIMIT.getErrCode(), EmBusinessError.RATELIMIT.getErrMsg());
+            throw new BusinessException(EmBusinessError.RATELIMIT);
+        }
+        return ticket;
+    }
+
+    private void submitAsyncTask(Integer itemId, String ticket, LoginPrincipal loginUser, Callable<Object> task) {
+        executeTask(itemId, () -> {
+            try {
+                task.call();
+                orderResultService.success(ticket, loginUser.getId());
+            } catch (BusinessException e) {
+                orderResultService.fail(ticket, loginUser.getId(), e.getErrCode(), e.getErrMsg());
+            } catch (Exception e) {
+                e.printStackTrace();
+                orderResultService.fail(ticket, loginUser.getId(), EmBusinessError.UNKNOWN_ERROR.getErrCode(), EmBusinessError.UNKNOWN_ERROR.getErrMsg());
+            }
+        });
+    }
+
+    private Future<Object> submitTask(Integer itemId, Callable<Object> task) {
+        if ("lane".equals(orderExecutorMode)){
+            return itemLaneExecutor.submit(itemId, task);
+        }
+        return orderTaskExecutor.submit(task);
+    }
+
+    private void executeTask(Integer itemId, Runnable task) {
+        if ("lane".equals(orderExecutorMode)){
+            itemLaneExecutor.execute(itemId, task);
+            return;
+        }
+        orderTaskExecutor.execute(task);
+    }
+
+    private Callable<Object> createOrderTask(Integer itemId, Integer amount, Integer promoId, LoginPrincipal loginUser) {
+        return new Callable<Object>() {
             @Override
             public Object call() throws Exception {
-                //3.缓存查询是否售罄
-                if (redisTemplate.hasKey("promo_item_stock_invalid_" + itemId)) {
+                //3.查询是否售罄,已售罄的商品在本地内存中直接拒绝
+                if (soldOutRegistry.isSoldOut(itemId)) {
                     throw new BusinessException(EmBusinessError.STOCK_NOT_ENOUGH, "库存不足");
                 }
 
@@ -160,22 +387,12 @@ public class OrderController extends BaseController {
                 String stockLogId = itemService.initStockLog(itemId, amount);
 
                 //5.异步事务消息
-                boolean b = mqProducer.transactionAsyncReduceStock(userModel.getId(), itemId, promoId, amount, stockLogId);
+                boolean b = mqProducer.transactionAsyncReduceStock(loginUser.getId(), itemId, promoId, amount, stockLogId);
                 if (!b) {
                     throw new BusinessException(EmBusinessError.UNKNOWN_ERROR, "下单失败");
                 }
                 return null;
             }
-        });
-
-        try {
-            future.get();
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-            throw new BusinessException(EmBusinessError.UNKNOWN_ERROR);
-        } catch (ExecutionException e) {
-            e.printStackTrace();
-            throw new BusinessException(EmBusinessError.UNKNOWN_ERROR);
-        }
+        };
     }
 }
@@ -6,6 +6,7 @@ import com.zc.miaoshaproject.controller.viewobject.UserVO;
 import com.zc.miaoshaproject.error.EmBusinessError;
 import com.zc.miaoshaproject.response.CommonReturnType;
 import com.zc.miaoshaproject.service.model.UserModel;
+import com.zc.miaoshaproject.session.LoginTokenCache;
 import org.springframework.beans.BeanUtils;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.redis.core.RedisTemplate;
@@ -20,7 +21,6 @@ import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Random;
 import java.util.UUID;
-import java.util.concurrent.TimeUnit;
 
 /**
  */
@@ -38,6 +38,9 @@ public class UserController  extends BaseController{
     @Autowired
     private RedisTemplate redisTemplate;
 
+    @Autowired
+    private LoginTokenCache loginTokenCache;
+
 
 
     //用户注册接口
@@ -144,8 +147,7 @@ public class UserController  extends BaseController{
         //用户登陆服务,用来校验用户登陆是否合法
         UserModel userModel = userService.validateLogin(telphone,this.EncodeByMd5(password));
         String token = UUID.randomUUID().toString().replace("-", "");
-        redisTemplate.opsForValue().set(token,userModel);
-        redisTemplate.expire(token,60, TimeUnit.MINUTES);
+        loginTokenCache.login(token,userModel);
         //将登陆凭证加入到用户登陆成功的session内
 //        this.httpServletRequest.getSession().setAttribute("IS_LOGIN",true);
 //        this.httpServletRequest.getSession().setAttribute("LOGIN_USER",userModel);
@@ -153,6 +155,14 @@ public class UserController  extends BaseController{
         return CommonReturnType.create(token);
     }
 
+    //用户退出登录接口,通知各节点清除本地登录凭证缓存
+    @RequestMapping(value = "/logout",method = {RequestMethod.POST},consumes={CONTENT_TYPE_FORMED})
+    @ResponseBody
+    public CommonReturnType logout(@RequestParam(name="token")String token){
+        loginTokenCache.logout(token);
+        return CommonReturnType.create(null);
+    }
+
 
 
 
@@ -0,0 +1,36 @@
+package com.zc.miaoshaproject.controller.viewobject;
+
+/**
+ */
+public class OrderResultVO {
+    //0表示处理中，1表示下单成功，2表示下单失败
+    private Integer status;
+
+    private Integer errCode;
+
+    private String errMsg;
+
+    public Integer getStatus() {
+        return status;
+    }
+
+    public void setStatus(Integer status) {
+        this.status = status;
+    }
+
+    public Integer getErrCode() {
+        return errCode;
+    }
+
+    public void setErrCode(Integer errCode) {
+        this.errCode = errCode;
+    }
+
+    public String getErrMsg() {
+        return errMsg;
+    }
+
+    public void setErrMsg(String errMsg) {
+        this.errMsg = errMsg;
+    }
+}
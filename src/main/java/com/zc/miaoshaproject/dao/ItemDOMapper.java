@@ -14,6 +14,9 @@ public interface ItemDOMapper {
      */
     List<ItemDO> listItem();
 
+    //按id分页读取大于afterId的商品id,用于构建id存在性过滤器
+    List<Integer> listIdsAfter(@Param("afterId") Integer afterId, @Param("limit") Integer limit);
+
     int deleteByPrimaryKey(Integer id);
 
     /**
@@ -1,6 +1,9 @@
 package com.zc.miaoshaproject.dao;
 
 import com.zc.miaoshaproject.dataobject.OrderDO;
+import org.apache.ibatis.annotations.Param;
+
+import java.util.List;
 
 public interface OrderDOMapper {
     /**
@@ -50,4 +53,6 @@ public interface OrderDOMapper {
      * @mbg.generated Sun Nov 18 21:41:02 CST 2018
      */
     int updateByPrimaryKey(OrderDO record);
+
+    int insertBatch(@Param("orders") List<OrderDO> orders);
 }
\ No newline at end of file
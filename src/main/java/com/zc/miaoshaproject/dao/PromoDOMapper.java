@@ -1,6 +1,10 @@
 package com.zc.miaoshaproject.dao;
 
 import com.zc.miaoshaproject.dataobject.PromoDO;
+import org.apache.ibatis.annotations.Param;
+
+import java.util.Date;
+import java.util.List;
 
 public interface PromoDOMapper {
     /**
@@ -37,6 +41,12 @@ public interface PromoDOMapper {
 
     PromoDO selectByItemId(Integer itemId);
 
+    //开始时间早于startBefore且还未结束的活动
+    List<PromoDO> listStartBefore(@Param("startBefore") Date startBefore, @Param("now") Date now);
+
+    //还未结束(即将开始或正在进行)的活动
+    List<PromoDO> listNotEnded(@Param("now") Date now);
+
     /**
      * This method was generated by MyBatis Generator.
      * This method corresponds to the database table promo
@@ -1,6 +1,9 @@
 package com.zc.miaoshaproject.dao;
 
 import com.zc.miaoshaproject.dataobject.StockLogDO;
+import org.apache.ibatis.annotations.Param;
+
+import java.util.List;
 
 public interface StockLogDOMapper {
     /**
@@ -50,4 +53,12 @@ public interface StockLogDOMapper {
      * @mbg.generated Mon Feb 25 23:42:11 CST 2019
      */
     int updateByPrimaryKey(StockLogDO record);
+
+    int insertBatch(@Param("stockLogs") List<StockLogDO> stockLogs);
+
+    int markOrderCreated(@Param("stockLogIds") List<String> stockLogIds);
+
+    int markStockApplied(@Param("stockLogIds") List<String> stockLogIds);
+
+    StockLogDO selectByPrimaryKeyForUpdate(String stockLogId);
 }
\ No newline at end of file
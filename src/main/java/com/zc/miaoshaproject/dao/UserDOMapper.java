@@ -1,6 +1,9 @@
 package com.zc.miaoshaproject.dao;
 
 import com.zc.miaoshaproject.dataobject.UserDO;
+import org.apache.ibatis.annotations.Param;
+
+import java.util.List;
 
 public interface UserDOMapper {
     /**
@@ -36,6 +39,10 @@ public interface UserDOMapper {
     UserDO selectByPrimaryKey(Integer id);
 
     UserDO selectByTelphone(String telphone);
+
+    //按id分页读取大于afterId的用户id,用于构建id存在性过滤器
+    List<Integer> listIdsAfter(@Param("afterId") Integer afterId, @Param("limit") Integer limit);
+
     /**
      * This method was generated by MyBatis Generator.
      * This method corresponds to the database table user_info
@@ -3,7 +3,7 @@ package com.zc.miaoshaproject.dataobject;
 /**
  * 用来日志存储每次请求的下单
  * staus
- * //1表示初始状态，2表示下单扣减库存成功，3表示下单回滚
+ * //1表示初始状态，2表示下单扣减库存成功，3表示下单回滚，4表示库存已同步扣减到数据库
  */
 public class StockLogDO {
     /**
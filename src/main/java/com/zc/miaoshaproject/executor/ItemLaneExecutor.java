@@ -0,0 +1,97 @@
+package com.zc.miaoshaproject.executor;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 描述:
+ * 按商品分道的下单执行器
+ * 固定数量的通道,每个通道一个工作线程和一个有界队列,商品按itemId散列到固定通道,
+ * 同一商品的请求在通道内串行处理,热点商品的积压不会拖慢其他商品,同一商品的请求也不再互相争抢redis和库存行锁
+ * @Author: zhangchao
+ * @Date: 8/31/20 10:20 上午
+ **/
+@Component
+public class ItemLaneExecutor {
+
+    //通道数量
+    @Value("${order.lane.count:16}")
+    private int laneCount;
+
+    //每个通道的队列长度,队列满时立即拒绝
+    @Value("${order.lane.queue.capacity:200}")
+    private int laneQueueCapacity;
+
+    private final List<ThreadPoolExecutor> lanes = new ArrayList<>();
+
+    @PostConstruct
+    public void init(){
+        if (laneCount <= 0){
+            throw new IllegalArgumentException("order.lane.count必须大于0");
+        }
+        for (int i = 0; i < laneCount; i++){
+            lanes.add(new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                    new ResizableCapacityQueue<>(laneQueueCapacity),
+                    new NamedThreadFactory("order-lane-" + i + "-"), new ThreadPoolExecutor.AbortPolicy()));
+        }
+    }
+
+    @PreDestroy
+    public void destroy(){
+        for (ThreadPoolExecutor lane : lanes){
+            lane.shutdown();
+        }
+    }
+
+    //通道队列已满时抛出RejectedExecutionException
+    public void execute(Integer itemId, Runnable task){
+        laneOf(itemId).execute(task);
+    }
+
+    public <T> Future<T> submit(Integer itemId, Callable<T> task){
+        return laneOf(itemId).submit(task);
+    }
+
+    //运行时调整每个通道的队列长度(通道数量决定了商品到通道的映射,不支持运行时调整)
+    public void resizeQueue(int queueCapacity){
+        for (ThreadPoolExecutor lane : lanes){
+            ((ResizableCapacityQueue<Runnable>) lane.getQueue()).setCapacity(queueCapacity);
+        }
+        laneQueueCapacity = queueCapacity;
+    }
+
+    public Map<String,Object> getMetrics(){
+        List<Integer> queueSizes = new ArrayList<>(laneCount);
+        long completed = 0;
+        int busy = 0;
+        for (ThreadPoolExecutor lane : lanes){
+            queueSizes.add(lane.getQueue().size());
+            completed += lane.getCompletedTaskCount();
+            busy += lane.getActiveCount();
+        }
+        Map<String,Object> metrics = new LinkedHashMap<>();
+        metrics.put("laneCount", laneCount);
+        metrics.put("laneQueueCapacity", laneQueueCapacity);
+        metrics.put("activeLanes", busy);
+        metrics.put("completedCount", completed);
+        metrics.put("queueSizes", queueSizes);
+        return metrics;
+    }
+
+    private ThreadPoolExecutor laneOf(Integer itemId){
+        //打散相邻的itemId,避免连续商品集中到相邻通道
+        int h = itemId * 0x9E3779B9;
+        return lanes.get(((h ^ (h >>> 16)) & 0x7fffffff) % laneCount);
+    }
+}
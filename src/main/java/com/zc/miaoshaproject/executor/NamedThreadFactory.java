@@ -0,0 +1,26 @@
+package com.zc.miaoshaproject.executor;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 描述:
+ * 按前缀给线程命名,便于排查线程栈
+ * @Author: zhangchao
+ * @Date: 8/31/20 10:05 上午
+ **/
+class NamedThreadFactory implements ThreadFactory {
+
+    private final String prefix;
+
+    private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+    NamedThreadFactory(String prefix) {
+        this.prefix = prefix;
+    }
+
+    @Override
+    public Thread newThread(Runnable r) {
+        return new Thread(r, prefix + threadNumber.getAndIncrement());
+    }
+}
@@ -0,0 +1,145 @@
+package com.zc.miaoshaproject.executor;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 描述:
+ * 下单任务线程池
+ * 有界队列,队列满时立即拒绝(由调用方转换为限流异常),不再让请求在无界队列中无限堆积;
+ * 统计排队长度/活跃线程/排队耗时/执行耗时,核心线程数/最大线程数/队列长度支持运行时调整
+ * @Author: zhangchao
+ * @Date: 8/30/20 3:10 下午
+ **/
+@Component
+public class OrderTaskExecutor {
+
+    @Value("${order.executor.core.size:20}")
+    private int coreSize;
+
+    @Value("${order.executor.max.size:20}")
+    private int maxSize;
+
+    @Value("${order.executor.queue.capacity:1000}")
+    private int queueCapacity;
+
+    private ResizableCapacityQueue<Runnable> workQueue;
+
+    private InstrumentedThreadPoolExecutor executor;
+
+    private final LongAdder rejectedCount = new LongAdder();
+
+    private final LongAdder completedCount = new LongAdder();
+
+    private final LongAdder totalWaitNanos = new LongAdder();
+
+    private final LongAdder totalExecNanos = new LongAdder();
+
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+
+    private final AtomicLong maxExecNanos = new AtomicLong();
+
+    @PostConstruct
+    public void init(){
+        checkSize(coreSize, maxSize);
+        workQueue = new ResizableCapacityQueue<>(queueCapacity);
+        executor = new InstrumentedThreadPoolExecutor(coreSize, maxSize, workQueue);
+    }
+
+    @PreDestroy
+    public void destroy(){
+        executor.shutdown();
+    }
+
+    //队列已满时抛出RejectedExecutionException
+    public void execute(Runnable task){
+        executor.execute(task);
+    }
+
+    public <T> Future<T> submit(Callable<T> task){
+        return executor.submit(task);
+    }
+
+    //运行时调整线程数与队列长度
+    public synchronized void resize(int newCoreSize, int newMaxSize, int newQueueCapacity){
+        checkSize(newCoreSize, newMaxSize);
+        //先扩后缩,保证任意时刻core<=max
+        if (newMaxSize >= executor.getMaximumPoolSize()){
+            executor.setMaximumPoolSize(newMaxSize);
+            executor.setCorePoolSize(newCoreSize);
+        }else {
+            executor.setCorePoolSize(newCoreSize);
+            executor.setMaximumPoolSize(newMaxSize);
+        }
+        workQueue.setCapacity(newQueueCapacity);
+    }
+
+    public Map<String,Object> getMetrics(){
+        long completed = completedCount.sum();
+        Map<String,Object> metrics = new LinkedHashMap<>();
+        metrics.put("corePoolSize", executor.getCorePoolSize());
+        metrics.put("maxPoolSize", executor.getMaximumPoolSize());
+        metrics.put("poolSize", executor.getPoolSize());
+        metrics.put("activeCount", executor.getActiveCount());
+        metrics.put("queueSize", workQueue.size());
+        metrics.put("queueCapacity", workQueue.getCapacity());
+        metrics.put("completedCount", completed);
+        metrics.put("rejectedCount", rejectedCount.sum());
+        metrics.put("avgWaitMillis", completed == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(totalWaitNanos.sum() / completed));
+        metrics.put("maxWaitMillis", TimeUnit.NANOSECONDS.toMillis(maxWaitNanos.get()));
+        metrics.put("avgExecMillis", completed == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(totalExecNanos.sum() / completed));
+        metrics.put("maxExecMillis", TimeUnit.NANOSECONDS.toMillis(maxExecNanos.get()));
+        return metrics;
+    }
+
+    private void checkSize(int core, int max){
+        if (core <= 0 || max < core){
+            throw new IllegalArgumentException("线程数需满足 0 < core <= max");
+        }
+    }
+
+    //包装任务记录入队时间,统计排队与执行耗时
+    private class InstrumentedThreadPoolExecutor extends ThreadPoolExecutor {
+
+        InstrumentedThreadPoolExecutor(int corePoolSize, int maximumPoolSize, ResizableCapacityQueue<Runnable> workQueue){
+            super(corePoolSize, maximumPoolSize, 60L, TimeUnit.SECONDS, workQueue, new NamedThreadFactory("order-task-"), new AbortPolicy());
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            long enqueueTime = System.nanoTime();
+            try {
+                super.execute(() -> {
+                    long startTime = System.nanoTime();
+                    record(totalWaitNanos, maxWaitNanos, startTime - enqueueTime);
+                    try {
+                        command.run();
+                    }finally {
+                        record(totalExecNanos, maxExecNanos, System.nanoTime() - startTime);
+                        completedCount.increment();
+                    }
+                });
+            }catch (RejectedExecutionException e){
+                rejectedCount.increment();
+                throw e;
+            }
+        }
+
+        private void record(LongAdder total, AtomicLong max, long nanos){
+            total.add(nanos);
+            max.accumulateAndGet(nanos, Math::max);
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package com.zc.miaoshaproject.executor;
+
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * 描述:
+ * 容量可在运行时调整的有界队列
+ * LinkedBlockingQueue的容量在构造后不可修改,这里由offer自行判断容量;
+ * 线程池只通过offer入队,队列满时offer返回false,线程池随即触发拒绝策略
+ * @Author: zhangchao
+ * @Date: 8/30/20 3:02 下午
+ **/
+public class ResizableCapacityQueue<E> extends LinkedBlockingQueue<E> {
+
+    private volatile int capacity;
+
+    public ResizableCapacityQueue(int capacity) {
+        super();
+        setCapacity(capacity);
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public void setCapacity(int capacity) {
+        if (capacity <= 0){
+            throw new IllegalArgumentException("队列容量必须大于0");
+        }
+        this.capacity = capacity;
+    }
+
+    @Override
+    public boolean offer(E e) {
+        //并发入队时可能略微超出容量,对限流场景可以接受
+        if (size() >= capacity){
+            return false;
+        }
+        return super.offer(e);
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return Math.max(0, capacity - size());
+    }
+}
@@ -1,7 +1,11 @@
 package com.zc.miaoshaproject.mq;
 
 import com.alibaba.fastjson.JSONObject;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.zc.miaoshaproject.dao.ItemStockDOMapper;
+import com.zc.miaoshaproject.dao.StockLogDOMapper;
+import com.zc.miaoshaproject.dataobject.StockLogDO;
 import org.apache.rocketmq.client.consumer.DefaultMQPushConsumer;
 import org.apache.rocketmq.client.consumer.listener.ConsumeConcurrentlyContext;
 import org.apache.rocketmq.client.consumer.listener.ConsumeConcurrentlyStatus;
@@ -11,10 +15,17 @@ import org.apache.rocketmq.common.message.MessageExt;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
 
 import javax.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 
 /**
  * 描述:
@@ -33,31 +44,176 @@ public class MqConsumer {
     @Value("${mq.topicname}")
     private String topicName;
 
+    //每次消费的最大消息条数,大于1时同一批消息按商品汇总后扣减
+    @Value("${mq.consume.batch.size:1}")
+    private int consumeBatchSize;
+
     @Autowired
     private ItemStockDOMapper itemStockDOMapper;
 
+    //本地记录最近已扣减过的stockLogId的数量
+    @Value("${mq.consume.dedupe.size:100000}")
+    private int dedupeSize;
+
+    @Autowired
+    private StockLogDOMapper stockLogDOMapper;
+
+    @Autowired
+    private TransactionTemplate transactionTemplate;
+
+    //最近已扣减过库存的stockLogId,重复投递的消息直接在内存中跳过
+    private Cache<String,Boolean> appliedStockLogCache;
+
     @PostConstruct
     public void init() throws MQClientException {
+        appliedStockLogCache = CacheBuilder.newBuilder().maximumSize(dedupeSize).build();
+
         consumer = new DefaultMQPushConsumer("stock_consumer_group");
         consumer.setNamesrvAddr(nameAddr);
         //订阅所有消息
         consumer.subscribe(topicName,"*");
+        consumer.setConsumeMessageBatchMaxSize(consumeBatchSize);
 
         consumer.registerMessageListener(new MessageListenerConcurrently() {
             @Override
             public ConsumeConcurrentlyStatus consumeMessage(List<MessageExt> list, ConsumeConcurrentlyContext consumeConcurrentlyContext) {
-
-                MessageExt message = list.get(0);
-                Map<String,Object> map = JSONObject.parseObject(new String(message.getBody()), Map.class);
-                Integer itemId = (Integer) map.get("itemId");
-                Integer amount = (Integer) map.get("amount");
-                int i = itemStockDOMapper.decreaseStock(itemId, amount);
-//                System.out.println("consume ok");
-                return i>0?ConsumeConcurrentlyStatus.CONSUME_SUCCESS:ConsumeConcurrentlyStatus.RECONSUME_LATER;
+                return consumeBatch(list, consumeConcurrentlyContext);
             }
         });
         consumer.start();
     }
 
+    //一批消息按商品汇总,在一个事务内每个商品只执行一次库存扣减
+    //stock_log的状态2->4作为持久化的已扣减标记,与库存扣减在同一个事务内提交,保证重复投递的消息不会重复扣减
+    private ConsumeConcurrentlyStatus consumeBatch(List<MessageExt> list, ConsumeConcurrentlyContext context){
+        //按itemId排序,多个消费线程加行锁的顺序一致,避免死锁
+        Map<Integer,List<StockMessage>> messageMap = new TreeMap<>();
+        Set<String> batchStockLogIds = new HashSet<>();
+        for (MessageExt message : list){
+            StockMessage stockMessage = new StockMessage(message);
+            String stockLogId = stockMessage.stockLogId;
+            if (stockLogId != null && (appliedStockLogCache.getIfPresent(stockLogId) != null || !batchStockLogIds.add(stockLogId))){
+                continue;
+            }
+            messageMap.computeIfAbsent(stockMessage.itemId, k -> new ArrayList<>()).add(stockMessage);
+        }
+        if (messageMap.isEmpty()){
+            return ConsumeConcurrentlyStatus.CONSUME_SUCCESS;
+        }
+
+        Set<StockMessage> failedMessages;
+        try {
+            try {
+                failedMessages = transactionTemplate.execute(status -> applyBatch(messageMap, false));
+            }catch (DuplicateStockLogException e){
+                //本地缓存未命中的重复消息(重启/其他消费节点已处理)或流水状态不是2,逐条锁住流水过滤后重做
+                failedMessages = transactionTemplate.execute(status -> applyBatch(messageMap, true));
+            }
+        }catch (Exception e){
+            e.printStackTrace();
+            //事务整体回滚,整批重新消费
+            return ConsumeConcurrentlyStatus.RECONSUME_LATER;
+        }
+
+        for (List<StockMessage> messages : messageMap.values()){
+            for (StockMessage message : messages){
+                if (message.stockLogId != null && !failedMessages.contains(message)){
+                    appliedStockLogCache.put(message.stockLogId, Boolean.TRUE);
+                }
+            }
+        }
+
+        //只把失败的消息退回broker重试,已扣减成功的不再重复消费
+        for (StockMessage message : failedMessages){
+            try {
+                consumer.sendMessageBack(message.message, context.getDelayLevelWhenNextConsume());
+            } catch (Exception e) {
+                e.printStackTrace();
+                //退回失败时整批重新消费,已扣减的消息会被已扣减标记过滤掉,失败的消息不会丢
+                return ConsumeConcurrentlyStatus.RECONSUME_LATER;
+            }
+        }
+        return ConsumeConcurrentlyStatus.CONSUME_SUCCESS;
+    }
+
+    //执行库存扣减并写入已扣减标记,返回扣减失败需要重试的消息
+    private Set<StockMessage> applyBatch(Map<Integer,List<StockMessage>> messageMap, boolean filterApplied){
+        //同一条消息对象只会出现一次,按引用判断即可
+        Set<StockMessage> failed = Collections.newSetFromMap(new IdentityHashMap<>());
+        List<String> appliedStockLogIds = new ArrayList<>();
+        for (Map.Entry<Integer,List<StockMessage>> entry : messageMap.entrySet()){
+            List<StockMessage> messages = entry.getValue();
+            if (filterApplied){
+                messages = new ArrayList<>();
+                for (StockMessage message : entry.getValue()){
+                    if (message.stockLogId == null){
+                        messages.add(message);
+                        continue;
+                    }
+                    //加行锁读取,事务提交前其他消费线程无法改动这条流水,后面的标记一定成功
+                    StockLogDO stockLogDO = stockLogDOMapper.selectByPrimaryKeyForUpdate(message.stockLogId);
+                    Integer status = stockLogDO == null ? null : stockLogDO.getStatus();
+                    if (status != null && status == 2){
+                        messages.add(message);
+                    }else if (status != null && status == 1){
+                        //下单事务还未确定结果,稍后重试
+                        failed.add(message);
+                    }else if (status == null || status != 4){
+                        //流水不存在或已回滚,不应扣减库存,直接丢弃
+                        System.out.println("丢弃库存消息 stockLogId = " + message.stockLogId + " & status = " + status);
+                    }
+                }
+            }
+            int total = 0;
+            for (StockMessage message : messages){
+                total += message.amount;
+            }
+            List<StockMessage> succeeded = messages;
+            if (total > 0 && itemStockDOMapper.decreaseStock(entry.getKey(), total) == 0){
+                //汇总扣减失败(库存不够整批扣),退化为逐条扣减,找出真正失败的消息
+                succeeded = new ArrayList<>();
+                for (StockMessage message : messages){
+                    if (itemStockDOMapper.decreaseStock(entry.getKey(), message.amount) == 0){
+                        failed.add(message);
+                    }else {
+                        succeeded.add(message);
+                    }
+                }
+            }
+            for (StockMessage message : succeeded){
+                if (message.stockLogId != null){
+                    appliedStockLogIds.add(message.stockLogId);
+                }
+            }
+        }
+        //只有状态为2的流水才会被标记,标记条数不一致说明其中有已经扣减过或状态不对的流水,回滚整个事务
+        //过滤模式下流水已加锁且都是状态2,不会再出现不一致
+        if (!appliedStockLogIds.isEmpty() && stockLogDOMapper.markStockApplied(appliedStockLogIds) != appliedStockLogIds.size()
+                && !filterApplied){
+            throw new DuplicateStockLogException();
+        }
+        return failed;
+    }
 
+    //消息体只解析一次
+    private static class StockMessage {
+        private final MessageExt message;
+
+        private final Integer itemId;
+
+        private final Integer amount;
+
+        private final String stockLogId;
+
+        StockMessage(MessageExt message){
+            Map<String,Object> body = JSONObject.parseObject(new String(message.getBody()), Map.class);
+            this.message = message;
+            this.itemId = (Integer) body.get("itemId");
+            this.amount = (Integer) body.get("amount");
+            this.stockLogId = (String) body.get("stockLogId");
+        }
+    }
+
+    private static class DuplicateStockLogException extends RuntimeException {
+    }
 }
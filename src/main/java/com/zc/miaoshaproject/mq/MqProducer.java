@@ -99,7 +99,7 @@ public class MqProducer {
                 if (stockLogDO==null){
                     return LocalTransactionState.UNKNOW;
                 }
-                if (stockLogDO.getStatus()==2){
+                if (stockLogDO.getStatus()==2 || stockLogDO.getStatus()==4){
                     //成功
                     return LocalTransactionState.COMMIT_MESSAGE;
                 }else if (stockLogDO.getStatus()==1){
@@ -0,0 +1,330 @@
+package com.zc.miaoshaproject.pipeline;
+
+import com.zc.miaoshaproject.dao.StockLogDOMapper;
+import com.zc.miaoshaproject.dataobject.StockLogDO;
+import com.zc.miaoshaproject.error.BusinessException;
+import com.zc.miaoshaproject.error.EmBusinessError;
+import com.zc.miaoshaproject.mq.MqProducer;
+import com.zc.miaoshaproject.stock.SoldOutRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 描述:
+ * 基于环形缓冲区的下单流水线
+ * 请求写入预先分配的槽位后依次经过三个阶段:
+ * 1.参数校验与售罄过滤(单线程)  2.批量写入库存流水(单线程)  3.发送事务消息(多线程,按序号取模分担)
+ * 每个阶段只处理上一阶段已完成的序号,发布方在缓冲区写满时直接拒绝,不阻塞http线程
+ * @Author: zhangchao
+ * @Date: 9/1/20 3:05 下午
+ **/
+@Component
+public class OrderPipeline {
+
+    @Autowired
+    private SoldOutRegistry soldOutRegistry;
+
+    @Autowired
+    private StockLogDOMapper stockLogDOMapper;
+
+    @Autowired
+    private MqProducer mqProducer;
+
+    //只有pipeline模式下才启动流水线线程
+    @Value("${order.executor.mode:pool}")
+    private String orderExecutorMode;
+
+    //缓冲区大小,向上取整为2的幂
+    @Value("${order.pipeline.buffer.size:1024}")
+    private int bufferSize;
+
+    //每个阶段一次最多处理多少个槽位
+    @Value("${order.pipeline.batch.size:64}")
+    private int batchSize;
+
+    //发送事务消息的线程数
+    @Value("${order.pipeline.sender.count:8}")
+    private int senderCount;
+
+    //busyspin/yielding/sleeping/blocking
+    @Value("${order.pipeline.wait.strategy:sleeping}")
+    private String waitStrategyName;
+
+    private OrderSlot[] slots;
+
+    private int mask;
+
+    //每个槽位最近一次发布的序号,等于期望序号时说明槽位已写入完成
+    private AtomicLongArray published;
+
+    //已分配出去的最大序号
+    private final AtomicLong cursor = new AtomicLong(-1);
+
+    private final AtomicLong validatedSequence = new AtomicLong(-1);
+
+    private final AtomicLong loggedSequence = new AtomicLong(-1);
+
+    //每个发送线程已处理到的序号,发布方以其中最小值判断缓冲区是否已满
+    private AtomicLong[] sentSequences;
+
+    private WaitStrategy waitStrategy;
+
+    private final List<Thread> workers = new ArrayList<>();
+
+    private volatile boolean running;
+
+    @PostConstruct
+    public void init(){
+        if (!"pipeline".equals(orderExecutorMode)){
+            return;
+        }
+        int size = 1;
+        while (size < bufferSize){
+            size <<= 1;
+        }
+        slots = new OrderSlot[size];
+        published = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++){
+            slots[i] = new OrderSlot();
+            published.set(i, -1);
+        }
+        mask = size - 1;
+        sentSequences = new AtomicLong[senderCount];
+        for (int i = 0; i < senderCount; i++){
+            sentSequences[i] = new AtomicLong(-1);
+        }
+        waitStrategy = WaitStrategy.of(waitStrategyName);
+
+        running = true;
+        startWorker("order-pipeline-validate", this::runValidateStage);
+        startWorker("order-pipeline-stocklog", this::runStockLogStage);
+        for (int i = 0; i < senderCount; i++){
+            int senderIndex = i;
+            startWorker("order-pipeline-send-" + i, () -> runSendStage(senderIndex));
+        }
+    }
+
+    @PreDestroy
+    public void destroy(){
+        if (!running){
+            return;
+        }
+        running = false;
+        waitStrategy.signalAll();
+        for (Thread worker : workers){
+            try {
+                worker.join(5000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        //还没处理完的请求直接回调失败,避免调用方一直等待
+        for (long sequence = minSentSequence() + 1; sequence <= cursor.get(); sequence++){
+            OrderSlot slot = slots[(int) sequence & mask];
+            if (slot.callback != null && !slot.failed){
+                fail(slot, new BusinessException(EmBusinessError.UNKNOWN_ERROR,"下单失败"));
+            }
+        }
+    }
+
+    //写入一个下单请求,缓冲区已满或流水线未启动时返回false
+    public boolean publish(Integer userId, Integer itemId, Integer promoId, Integer amount, OrderPipelineCallback callback){
+        if (!running){
+            return false;
+        }
+        long sequence;
+        while (true){
+            long current = cursor.get();
+            sequence = current + 1;
+            if (sequence - slots.length > minSentSequence()){
+                return false;
+            }
+            if (cursor.compareAndSet(current, sequence)){
+                break;
+            }
+        }
+        int index = (int) sequence & mask;
+        slots[index].fill(userId, itemId, promoId, amount, callback);
+        published.set(index, sequence);
+        waitStrategy.signalAll();
+        return true;
+    }
+
+    public Map<String,Object> getMetrics(){
+        Map<String,Object> metrics = new LinkedHashMap<>();
+        metrics.put("running", running);
+        if (!running){
+            return metrics;
+        }
+        long sent = minSentSequence();
+        metrics.put("bufferSize", slots.length);
+        metrics.put("waitStrategy", waitStrategyName);
+        metrics.put("publishedSequence", cursor.get());
+        metrics.put("validatedSequence", validatedSequence.get());
+        metrics.put("loggedSequence", loggedSequence.get());
+        metrics.put("sentSequence", sent);
+        metrics.put("backlog", cursor.get() - sent);
+        return metrics;
+    }
+
+    //阶段1:校验数量并过滤已售罄商品,只看本地售罄标识,不访问redis
+    private void runValidateStage(){
+        long next = 0;
+        int idleCount = 0;
+        while (running){
+            //只处理连续已发布完成的槽位
+            long available = next - 1;
+            while (available + 1 - next < batchSize && published.get((int) (available + 1) & mask) == available + 1){
+                available++;
+            }
+            if (available < next){
+                idleCount = idle(idleCount);
+                continue;
+            }
+            for (long sequence = next; sequence <= available; sequence++){
+                OrderSlot slot = slots[(int) sequence & mask];
+                if (slot.amount == null || slot.amount <= 0 || slot.amount > 99){
+                    fail(slot, new BusinessException(EmBusinessError.PARAMETER_VALIDATION_ERROR,"数量信息不正确"));
+                }else if (soldOutRegistry.isSoldOutLocally(slot.itemId)){
+                    fail(slot, new BusinessException(EmBusinessError.STOCK_NOT_ENOUGH,"库存不足"));
+                }
+            }
+            validatedSequence.set(available);
+            waitStrategy.signalAll();
+            next = available + 1;
+            idleCount = 0;
+        }
+    }
+
+    //阶段2:一条insert批量写入库存流水
+    private void runStockLogStage(){
+        long next = 0;
+        int idleCount = 0;
+        List<StockLogDO> stockLogs = new ArrayList<>(batchSize);
+        while (running){
+            long available = Math.min(validatedSequence.get(), next + batchSize - 1);
+            if (available < next){
+                idleCount = idle(idleCount);
+                continue;
+            }
+            stockLogs.clear();
+            for (long sequence = next; sequence <= available; sequence++){
+                OrderSlot slot = slots[(int) sequence & mask];
+                if (slot.failed){
+                    continue;
+                }
+                StockLogDO stockLogDO = new StockLogDO();
+                stockLogDO.setItemId(slot.itemId);
+                stockLogDO.setAmount(slot.amount);
+                stockLogDO.setStockLogId(UUID.randomUUID().toString().replace("-",""));
+                stockLogDO.setStatus(1);
+                slot.stockLogId = stockLogDO.getStockLogId();
+                stockLogs.add(stockLogDO);
+            }
+            if (!stockLogs.isEmpty()){
+                try {
+                    stockLogDOMapper.insertBatch(stockLogs);
+                }catch (Exception e){
+                    e.printStackTrace();
+                    for (long sequence = next; sequence <= available; sequence++){
+                        OrderSlot slot = slots[(int) sequence & mask];
+                        if (!slot.failed){
+                            fail(slot, new BusinessException(EmBusinessError.UNKNOWN_ERROR,"下单失败"));
+                        }
+                    }
+                }
+            }
+            loggedSequence.set(available);
+            waitStrategy.signalAll();
+            next = available + 1;
+            idleCount = 0;
+        }
+    }
+
+    //阶段3:发送事务消息,各发送线程只处理 序号%线程数 等于自身编号的槽位
+    private void runSendStage(int senderIndex){
+        AtomicLong sentSequence = sentSequences[senderIndex];
+        long next = 0;
+        int idleCount = 0;
+        while (running){
+            long available = Math.min(loggedSequence.get(), next + batchSize - 1);
+            if (available < next){
+                idleCount = idle(idleCount);
+                continue;
+            }
+            for (long sequence = next; sequence <= available; sequence++){
+                if (sequence % senderCount == senderIndex){
+                    send(slots[(int) sequence & mask]);
+                }
+            }
+            sentSequence.set(available);
+            next = available + 1;
+            idleCount = 0;
+        }
+    }
+
+    private void send(OrderSlot slot){
+        try {
+            if (slot.failed){
+                return;
+            }
+            boolean result = mqProducer.transactionAsyncReduceStock(slot.userId, slot.itemId, slot.promoId, slot.amount, slot.stockLogId);
+            if (result){
+                slot.callback.onSuccess();
+            }else {
+                fail(slot, new BusinessException(EmBusinessError.UNKNOWN_ERROR,"下单失败"));
+            }
+        }catch (Exception e){
+            e.printStackTrace();
+            if (!slot.failed){
+                fail(slot, new BusinessException(EmBusinessError.UNKNOWN_ERROR,"下单失败"));
+            }
+        }finally {
+            slot.clear();
+        }
+    }
+
+    private void fail(OrderSlot slot, BusinessException e){
+        slot.failed = true;
+        try {
+            slot.callback.onFailure(e);
+        }catch (Exception ex){
+            ex.printStackTrace();
+        }
+    }
+
+    private int idle(int idleCount){
+        try {
+            return waitStrategy.idle(idleCount);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return idleCount;
+        }
+    }
+
+    private long minSentSequence(){
+        long min = Long.MAX_VALUE;
+        for (AtomicLong sentSequence : sentSequences){
+            min = Math.min(min, sentSequence.get());
+        }
+        return min;
+    }
+
+    private void startWorker(String name, Runnable task){
+        Thread worker = new Thread(task, name);
+        worker.setDaemon(true);
+        workers.add(worker);
+        worker.start();
+    }
+}
@@ -0,0 +1,16 @@
+package com.zc.miaoshaproject.pipeline;
+
+import com.zc.miaoshaproject.error.BusinessException;
+
+/**
+ * 描述:
+ * 流水线处理完一个下单请求后的回调,在流水线线程中执行,不要做耗时操作
+ * @Author: zhangchao
+ * @Date: 9/1/20 2:35 下午
+ **/
+public interface OrderPipelineCallback {
+
+    void onSuccess();
+
+    void onFailure(BusinessException e);
+}
@@ -0,0 +1,46 @@
+package com.zc.miaoshaproject.pipeline;
+
+/**
+ * 描述:
+ * 环形缓冲区中的槽位,启动时一次性创建,之后循环复用
+ * 字段由发布线程写入,通过可用序号的volatile写对后续阶段可见
+ * @Author: zhangchao
+ * @Date: 9/1/20 2:40 下午
+ **/
+class OrderSlot {
+
+    Integer userId;
+
+    Integer itemId;
+
+    Integer promoId;
+
+    Integer amount;
+
+    String stockLogId;
+
+    //前面的阶段已失败并回调,后续阶段跳过
+    boolean failed;
+
+    OrderPipelineCallback callback;
+
+    void fill(Integer userId, Integer itemId, Integer promoId, Integer amount, OrderPipelineCallback callback){
+        this.userId = userId;
+        this.itemId = itemId;
+        this.promoId = promoId;
+        this.amount = amount;
+        this.stockLogId = null;
+        this.failed = false;
+        this.callback = callback;
+    }
+
+    //处理完成后释放引用,便于回收
+    void clear(){
+        this.userId = null;
+        this.itemId = null;
+        this.promoId = null;
+        this.amount = null;
+        this.stockLogId = null;
+        this.callback = null;
+    }
+}
@@ -0,0 +1,119 @@
+package com.zc.miaoshaproject.pipeline;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 描述:
+ * 流水线各阶段没有可处理数据时的等待方式
+ * busyspin:一直自旋,延迟最低但独占cpu  yielding:自旋后让出cpu
+ * sleeping:自旋、让出后短暂休眠  blocking:在条件变量上等待,cpu占用最低
+ * @Author: zhangchao
+ * @Date: 9/1/20 2:30 下午
+ **/
+public interface WaitStrategy {
+
+    //没有可处理的数据时调用,counter为连续空转次数,返回新的计数
+    int idle(int counter) throws InterruptedException;
+
+    //有新数据可处理时唤醒等待的阶段线程
+    void signalAll();
+
+    static WaitStrategy of(String name){
+        switch (name){
+            case "busyspin":
+                return new BusySpin();
+            case "yielding":
+                return new Yielding();
+            case "blocking":
+                return new Blocking();
+            case "sleeping":
+                return new Sleeping();
+            default:
+                throw new IllegalArgumentException("不支持的等待策略:" + name);
+        }
+    }
+
+    class BusySpin implements WaitStrategy {
+        @Override
+        public int idle(int counter) {
+            return counter + 1;
+        }
+
+        @Override
+        public void signalAll() {
+        }
+    }
+
+    class Yielding implements WaitStrategy {
+        private static final int SPIN_TRIES = 100;
+
+        @Override
+        public int idle(int counter) {
+            if (counter < SPIN_TRIES){
+                return counter + 1;
+            }
+            Thread.yield();
+            return counter;
+        }
+
+        @Override
+        public void signalAll() {
+        }
+    }
+
+    class Sleeping implements WaitStrategy {
+        private static final int SPIN_TRIES = 100;
+
+        private static final int YIELD_TRIES = 200;
+
+        private static final long SLEEP_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+        @Override
+        public int idle(int counter) {
+            if (counter < SPIN_TRIES){
+                return counter + 1;
+            }
+            if (counter < YIELD_TRIES){
+                Thread.yield();
+                return counter + 1;
+            }
+            LockSupport.parkNanos(SLEEP_NANOS);
+            return counter;
+        }
+
+        @Override
+        public void signalAll() {
+        }
+    }
+
+    class Blocking implements WaitStrategy {
+        private final ReentrantLock lock = new ReentrantLock();
+
+        private final Condition notEmpty = lock.newCondition();
+
+        @Override
+        public int idle(int counter) throws InterruptedException {
+            lock.lock();
+            try {
+                //带超时等待,避免检查与等待之间错过唤醒
+                notEmpty.await(1, TimeUnit.MILLISECONDS);
+            }finally {
+                lock.unlock();
+            }
+            return counter;
+        }
+
+        @Override
+        public void signalAll() {
+            lock.lock();
+            try {
+                notEmpty.signalAll();
+            }finally {
+                lock.unlock();
+            }
+        }
+    }
+}
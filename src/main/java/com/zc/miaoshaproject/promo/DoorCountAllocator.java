@@ -0,0 +1,149 @@
+package com.zc.miaoshaproject.promo;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.scripting.support.ResourceScriptSource;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 描述:
+ * 秒杀大闸本地租借
+ * 每个节点按批次从redis的大闸计数中租借许可,令牌发放时在本地原子计数器上扣减;
+ * 全局许可发完后本节点记住该状态,之后直接在本地拒绝,不再访问redis;活动结束时把未用完的许可归还
+ * @Author: zhangchao
+ * @Date: 9/6/20 10:40 上午
+ **/
+@Component
+public class DoorCountAllocator implements MessageListener {
+
+    private static final String DOOR_COUNT_KEY_PREFIX = "promo_door_count_";
+
+    @Autowired
+    private RedisTemplate redisTemplate;
+
+    //复用@EnableRedisHttpSession注册的监听容器
+    @Autowired
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    //每次从redis租借的许可数量
+    @Value("${promo.door.lease.size:50}")
+    private int leaseSize;
+
+    private final Map<Integer,DoorCount> doorCountMap = new ConcurrentHashMap<>();
+
+    private DefaultRedisScript<Long> leaseScript;
+
+    @PostConstruct
+    public void init(){
+        //与库存租借使用同一个脚本:取min(剩余,申请数量)
+        leaseScript = new DefaultRedisScript<>();
+        leaseScript.setScriptSource(new ResourceScriptSource(new ClassPathResource("lua/lease_stock.lua")));
+        leaseScript.setResultType(Long.class);
+        //活动重新发布后大闸数量被重置,丢弃本地租借状态
+        redisMessageListenerContainer.addMessageListener(this, new ChannelTopic(PromoRegistry.CHANNEL));
+    }
+
+    @PreDestroy
+    public void destroy(){
+        for (Integer promoId : doorCountMap.keySet()){
+            release(promoId);
+        }
+    }
+
+    //获取一个大闸许可
+    public boolean tryAcquire(Integer promoId){
+        DoorCount doorCount = doorCountMap.computeIfAbsent(promoId, id -> new DoorCount());
+        if (doorCount.exhausted){
+            return false;
+        }
+        if (doorCount.tryTake()){
+            return true;
+        }
+        synchronized (doorCount){
+            if (doorCount.released){
+                return tryAcquire(promoId);
+            }
+            if (doorCount.tryTake()){
+                return true;
+            }
+            if (doorCount.exhausted){
+                return false;
+            }
+            Long leased = (Long) redisTemplate.execute(leaseScript,
+                    Collections.singletonList(DOOR_COUNT_KEY_PREFIX + promoId), leaseSize);
+            if (leased == null || leased <= 0){
+                doorCount.exhausted = true;
+                return false;
+            }
+            doorCount.permits.addAndGet(leased - 1);
+            return true;
+        }
+    }
+
+    //活动结束,把本地未发出的许可归还redis
+    public void release(Integer promoId){
+        DoorCount doorCount = doorCountMap.remove(promoId);
+        if (doorCount == null){
+            return;
+        }
+        long left;
+        synchronized (doorCount){
+            doorCount.released = true;
+            left = doorCount.permits.getAndSet(0);
+        }
+        if (left > 0){
+            redisTemplate.opsForValue().increment(DOOR_COUNT_KEY_PREFIX + promoId, left);
+        }
+    }
+
+    //活动重新发布,redis中的大闸数量已被覆盖,本地租借的许可作废
+    public void reset(Integer promoId){
+        DoorCount doorCount = doorCountMap.remove(promoId);
+        if (doorCount != null){
+            synchronized (doorCount){
+                doorCount.released = true;
+                doorCount.permits.set(0);
+            }
+        }
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        reset(Integer.valueOf(new String(message.getBody(), StandardCharsets.UTF_8)));
+    }
+
+    private static class DoorCount {
+        private final AtomicLong permits = new AtomicLong();
+
+        //全局许可已发完
+        private volatile boolean exhausted;
+
+        //已归还或作废,不再使用
+        private volatile boolean released;
+
+        boolean tryTake(){
+            long current;
+            while ((current = permits.get()) > 0){
+                if (permits.compareAndSet(current, current - 1)){
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
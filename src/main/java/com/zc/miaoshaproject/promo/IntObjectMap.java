@@ -0,0 +1,76 @@
+package com.zc.miaoshaproject.promo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 描述:
+ * int为key的开放寻址哈希表,key不装箱
+ * 只在构建时写入,构建完成后通过volatile引用发布,之后只读,多线程读取不需要加锁
+ * @Author: zhangchao
+ * @Date: 9/5/20 2:10 下午
+ **/
+class IntObjectMap<V> {
+
+    private static final int FREE = Integer.MIN_VALUE;
+
+    private final int[] keys;
+
+    private final Object[] values;
+
+    private final int mask;
+
+    private int size;
+
+    IntObjectMap(int expectedSize){
+        int capacity = 4;
+        //负载因子不超过0.5
+        while (capacity < expectedSize * 2){
+            capacity <<= 1;
+        }
+        keys = new int[capacity];
+        Arrays.fill(keys, FREE);
+        values = new Object[capacity];
+        mask = capacity - 1;
+    }
+
+    void put(int key, V value){
+        int index = indexOf(key);
+        if (keys[index] == FREE){
+            keys[index] = key;
+            size++;
+        }
+        values[index] = value;
+    }
+
+    @SuppressWarnings("unchecked")
+    V get(int key){
+        int index = indexOf(key);
+        return keys[index] == FREE ? null : (V) values[index];
+    }
+
+    int size(){
+        return size;
+    }
+
+    @SuppressWarnings("unchecked")
+    List<V> values(){
+        List<V> list = new ArrayList<>(size);
+        for (int i = 0; i < keys.length; i++){
+            if (keys[i] != FREE){
+                list.add((V) values[i]);
+            }
+        }
+        return list;
+    }
+
+    private int indexOf(int key){
+        int h = key * 0x9E3779B9;
+        int index = (h ^ (h >>> 16)) & mask;
+        while (keys[index] != FREE && keys[index] != key){
+            index = (index + 1) & mask;
+        }
+        return index;
+    }
+}
@@ -0,0 +1,258 @@
+package com.zc.miaoshaproject.promo;
+
+import com.zc.miaoshaproject.dao.PromoDOMapper;
+import com.zc.miaoshaproject.dataobject.PromoDO;
+import com.zc.miaoshaproject.service.ItemService;
+import com.zc.miaoshaproject.service.model.PromoModel;
+import com.zc.miaoshaproject.stock.LocalStockAllocator;
+import org.joda.time.DateTime;
+import org.springframework.beans.BeanUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 描述:
+ * 内存中的活动信息
+ * 保存所有即将开始和正在进行的活动,按活动id和商品id建立int为key的索引;
+ * 活动状态在读取时由开始/结束时间与当前时间比较得出,不在条目上保存可变状态,重新加载与到点切换不会互相覆盖;
+ * 开始/结束时间点的定时任务只负责淘汰商品缓存和归还本节点的库存;
+ * 活动发布或修改时通过redis pub/sub通知各节点重新加载,另外定时全量加载一次兜底
+ * @Author: zhangchao
+ * @Date: 9/5/20 2:30 下午
+ **/
+@Component
+public class PromoRegistry implements MessageListener {
+
+    public static final String CHANNEL = "promo_changed";
+
+    @Autowired
+    private PromoDOMapper promoDOMapper;
+
+    @Autowired
+    private LocalStockAllocator localStockAllocator;
+
+    @Autowired
+    private DoorCountAllocator doorCountAllocator;
+
+    @Autowired
+    private ItemService itemService;
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    //复用@EnableRedisHttpSession注册的监听容器
+    @Autowired
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    //多少秒全量重新加载一次
+    @Value("${promo.registry.reload.seconds:60}")
+    private int reloadSeconds;
+
+    private volatile Snapshot snapshot = new Snapshot(Collections.emptyList());
+
+    //已安排状态切换的活动及其定时任务,开始/结束时间被修改后取消旧任务重新安排
+    private final Map<Integer,Transitions> scheduledMap = new ConcurrentHashMap<>();
+
+    private ScheduledExecutorService scheduler;
+
+    @PostConstruct
+    public void init(){
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        reload();
+        scheduler.scheduleWithFixedDelay(this::reloadQuietly, reloadSeconds, reloadSeconds, TimeUnit.SECONDS);
+        redisMessageListenerContainer.addMessageListener(this, new ChannelTopic(CHANNEL));
+    }
+
+    @PreDestroy
+    public void destroy(){
+        scheduler.shutdownNow();
+    }
+
+    //活动不存在或已结束返回null
+    public PromoModel getPromo(Integer promoId){
+        return promoId == null ? null : copyOf(snapshot.promoMap.get(promoId));
+    }
+
+    public PromoModel getPromoByItemId(Integer itemId){
+        return itemId == null ? null : copyOf(snapshot.itemPromoMap.get(itemId));
+    }
+
+    //活动发布或修改后调用,本节点立即重新加载并通知其他节点
+    public void publishChange(Integer promoId){
+        reload();
+        stringRedisTemplate.convertAndSend(CHANNEL, String.valueOf(promoId));
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        //不在监听线程里查数据库
+        scheduler.execute(this::reloadQuietly);
+    }
+
+    private void reloadQuietly(){
+        try {
+            reload();
+        }catch (Exception e){
+            e.printStackTrace();
+        }
+    }
+
+    private synchronized void reload(){
+        long now = System.currentTimeMillis();
+        List<PromoDO> promoDOList = promoDOMapper.listNotEnded(new Date(now));
+        Snapshot loaded = new Snapshot(promoDOList);
+        for (PromoEntry entry : loaded.promoMap.values()){
+            scheduleTransitions(entry, now);
+        }
+        snapshot = loaded;
+        //已不在列表中的活动(已结束/被删除)不取消结束任务,到点后照常归还本节点的库存
+        scheduledMap.keySet().removeIf(promoId -> loaded.promoMap.get(promoId) == null);
+    }
+
+    private void scheduleTransitions(PromoEntry entry, long now){
+        Integer promoId = entry.promoModel.getId();
+        String times = entry.startTime + "_" + entry.endTime;
+        Transitions scheduled = scheduledMap.get(promoId);
+        if (scheduled != null){
+            if (times.equals(scheduled.times)){
+                return;
+            }
+            //时间被修改,按旧时间安排的任务不再执行
+            scheduled.cancel();
+        }
+        Transitions transitions = new Transitions(times);
+        if (entry.startTime > now){
+            transitions.futures.add(scheduler.schedule(() -> onStart(promoId, entry.promoModel.getItemId()),
+                    entry.startTime - now, TimeUnit.MILLISECONDS));
+        }
+        transitions.futures.add(scheduler.schedule(() -> onEnd(promoId, entry.promoModel.getItemId()),
+                entry.endTime - now, TimeUnit.MILLISECONDS));
+        scheduledMap.put(promoId, transitions);
+    }
+
+    //活动开始/结束时商品缓存中聚合的活动状态随之变化,淘汰商品缓存
+    private void onStart(Integer promoId, Integer itemId){
+        invalidateItemCacheQuietly(itemId);
+    }
+
+    //活动结束:移出内存,把本节点租借的库存和大闸许可归还redis
+    //任务可能在时间被修改、旧任务取消前已开始执行,按当前的结束时间再确认一次
+    private void onEnd(Integer promoId, Integer itemId){
+        PromoEntry entry = snapshot.promoMap.get(promoId);
+        if (entry != null && entry.endTime > System.currentTimeMillis()){
+            //结束时间已被推后,由重新安排的任务处理
+            return;
+        }
+        reloadQuietly();
+        if (itemId != null){
+            localStockAllocator.release(itemId);
+        }
+        doorCountAllocator.release(promoId);
+        invalidateItemCacheQuietly(itemId);
+    }
+
+    private void invalidateItemCacheQuietly(Integer itemId){
+        if (itemId == null){
+            return;
+        }
+        try {
+            itemService.invalidateItemCache(itemId);
+        }catch (Exception e){
+            e.printStackTrace();
+        }
+    }
+
+    //1:即将开始 2:进行中 3:已结束
+    private int computeStatus(PromoEntry entry, long now){
+        if (entry.startTime > now){
+            return 1;
+        }else if (entry.endTime <= now){
+            return 3;
+        }
+        return 2;
+    }
+
+    private PromoModel copyOf(PromoEntry entry){
+        if (entry == null){
+            return null;
+        }
+        int status = computeStatus(entry, System.currentTimeMillis());
+        if (status == 3){
+            return null;
+        }
+        PromoModel promoModel = new PromoModel();
+        BeanUtils.copyProperties(entry.promoModel, promoModel);
+        promoModel.setStatus(status);
+        return promoModel;
+    }
+
+    private static class PromoEntry {
+        private final PromoModel promoModel;
+        private final long startTime;
+        private final long endTime;
+
+        PromoEntry(PromoDO promoDO){
+            promoModel = new PromoModel();
+            BeanUtils.copyProperties(promoDO, promoModel);
+            promoModel.setPromoItemPrice(new BigDecimal(promoDO.getPromoItemPrice()));
+            promoModel.setStartDate(new DateTime(promoDO.getStartDate()));
+            promoModel.setEndDate(new DateTime(promoDO.getEndDate()));
+            startTime = promoDO.getStartDate().getTime();
+            endTime = promoDO.getEndDate().getTime();
+        }
+    }
+
+    //一个活动已安排的开始/结束任务
+    private static class Transitions {
+        private final String times;
+        private final List<ScheduledFuture<?>> futures = new ArrayList<>(2);
+
+        Transitions(String times){
+            this.times = times;
+        }
+
+        void cancel(){
+            for (ScheduledFuture<?> future : futures){
+                future.cancel(false);
+            }
+        }
+    }
+
+    //加载完成后整体替换,读取时不加锁
+    private static class Snapshot {
+        private final IntObjectMap<PromoEntry> promoMap;
+        private final IntObjectMap<PromoEntry> itemPromoMap;
+
+        Snapshot(List<PromoDO> promoDOList){
+            promoMap = new IntObjectMap<>(promoDOList.size());
+            itemPromoMap = new IntObjectMap<>(promoDOList.size());
+            for (PromoDO promoDO : promoDOList){
+                PromoEntry entry = new PromoEntry(promoDO);
+                promoMap.put(promoDO.getId(), entry);
+                if (promoDO.getItemId() != null && promoDO.getItemId().intValue() != 0){
+                    itemPromoMap.put(promoDO.getItemId(), entry);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package com.zc.miaoshaproject.promo;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 描述:
+ * 无状态秒杀令牌
+ * 令牌内容为 密钥编号+活动id+用户id+商品id+过期时间+随机数,后接HMAC-SHA256签名的前16字节,base64url编码;
+ * 签名密钥由主密钥按时间段派生,定期轮换,各节点无需通信即可得到相同密钥,校验在本地完成不访问redis;
+ * 可选在本地记录已使用的随机数,拒绝同一令牌重复下单;
+ * 该记录只在本节点内,同一令牌发到其他节点仍会被受理,需要严格防重时由网关按用户粘性路由到固定节点
+ * @Author: zhangchao
+ * @Date: 9/7/20 3:20 下午
+ **/
+@Component
+public class PromoTokenSigner {
+
+    private static final String ALGORITHM = "HmacSHA256";
+
+    private static final int MAC_LENGTH = 16;
+
+    //keyIndex(4) + promoId(4) + userId(4) + itemId(4) + expireTime(8) + nonce(8)
+    private static final int PAYLOAD_LENGTH = 32;
+
+    //随机数不依赖节点的workerId配置,各节点签发的令牌不会撞号
+    private final SecureRandom random = new SecureRandom();
+
+    //令牌方式 redis:令牌存放在redis中  hmac:无状态签名令牌
+    @Value("${promo.token.mode:redis}")
+    private String tokenMode;
+
+    //主密钥,各节点需配置相同的值
+    @Value("${promo.token.secret:}")
+    private String secret;
+
+    //签名密钥轮换周期,需大于令牌有效期
+    @Value("${promo.token.key.rotate.minutes:60}")
+    private int rotateMinutes;
+
+    @Value("${promo.token.ttl.seconds:300}")
+    private int ttlSeconds;
+
+    //是否拒绝同一令牌重复使用(只在本节点内判断,不防跨节点重放)
+    @Value("${promo.token.replay.check:true}")
+    private boolean replayCheck;
+
+    //本地最多记录的已使用随机数数量,每个令牌由一个大闸许可换取,按同时进行的活动大闸总数(库存*5)配置
+    @Value("${promo.token.nonce.max.size:200000}")
+    private long nonceMaxSize;
+
+    private final Map<Integer,SecretKeySpec> keyMap = new ConcurrentHashMap<>();
+
+    private final ThreadLocal<Mac> macHolder = ThreadLocal.withInitial(() -> {
+        try {
+            return Mac.getInstance(ALGORITHM);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    //已使用的令牌,key为 活动id_用户id_随机数,令牌过期后随之淘汰
+    private Cache<String,Boolean> usedNonceCache;
+
+    @PostConstruct
+    public void init(){
+        if (!isEnabled()){
+            return;
+        }
+        if (secret == null || secret.isEmpty()){
+            throw new IllegalStateException("promo.token.mode=hmac时必须配置promo.token.secret");
+        }
+        if (TimeUnit.MINUTES.toSeconds(rotateMinutes) <= ttlSeconds){
+            throw new IllegalStateException("promo.token.key.rotate.minutes必须大于令牌有效期");
+        }
+        usedNonceCache = CacheBuilder.newBuilder()
+                .maximumSize(nonceMaxSize)
+                .expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+                .build();
+    }
+
+    public boolean isEnabled(){
+        return "hmac".equals(tokenMode);
+    }
+
+    public String sign(Integer promoId, Integer userId, Integer itemId){
+        long now = System.currentTimeMillis();
+        ByteBuffer buffer = ByteBuffer.allocate(PAYLOAD_LENGTH + MAC_LENGTH);
+        buffer.putInt(keyIndex(now));
+        buffer.putInt(promoId);
+        buffer.putInt(userId);
+        buffer.putInt(itemId);
+        buffer.putLong(now + TimeUnit.SECONDS.toMillis(ttlSeconds));
+        buffer.putLong(random.nextLong());
+        buffer.put(mac(keyIndex(now), buffer.array()), 0, MAC_LENGTH);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(buffer.array());
+    }
+
+    //校验签名、有效期及令牌所属的活动/用户/商品,校验通过后该令牌不能再次使用
+    public boolean verify(String token, Integer promoId, Integer userId, Integer itemId){
+        if (token == null || promoId == null || userId == null || itemId == null){
+            return false;
+        }
+        byte[] bytes;
+        try {
+            bytes = Base64.getUrlDecoder().decode(token);
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+        if (bytes.length != PAYLOAD_LENGTH + MAC_LENGTH){
+            return false;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        int keyIndex = buffer.getInt();
+        long now = System.currentTimeMillis();
+        //只接受当前和上一个周期的密钥
+        int currentIndex = keyIndex(now);
+        if (keyIndex != currentIndex && keyIndex != currentIndex - 1){
+            return false;
+        }
+        if (buffer.getInt() != promoId || buffer.getInt() != userId || buffer.getInt() != itemId){
+            return false;
+        }
+        if (buffer.getLong() < now){
+            return false;
+        }
+        long nonce = buffer.getLong();
+
+        byte[] payload = new byte[PAYLOAD_LENGTH];
+        System.arraycopy(bytes, 0, payload, 0, PAYLOAD_LENGTH);
+        byte[] expected = new byte[MAC_LENGTH];
+        System.arraycopy(mac(keyIndex, payload), 0, expected, 0, MAC_LENGTH);
+        byte[] actual = new byte[MAC_LENGTH];
+        System.arraycopy(bytes, PAYLOAD_LENGTH, actual, 0, MAC_LENGTH);
+        if (!MessageDigest.isEqual(expected, actual)){
+            return false;
+        }
+        return !replayCheck || usedNonceCache.asMap().putIfAbsent(nonceKey(promoId, userId, nonce), Boolean.TRUE) == null;
+    }
+
+    //令牌已通过校验但下单请求未被受理(限流)时调用,允许用户用同一令牌重试
+    public void release(String token){
+        if (!isEnabled() || !replayCheck || token == null){
+            return;
+        }
+        byte[] bytes;
+        try {
+            bytes = Base64.getUrlDecoder().decode(token);
+        } catch (IllegalArgumentException e) {
+            return;
+        }
+        if (bytes.length == PAYLOAD_LENGTH + MAC_LENGTH){
+            //活动id、用户id紧跟在密钥编号之后,随机数位于载荷的最后8个字节
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            usedNonceCache.invalidate(nonceKey(buffer.getInt(4), buffer.getInt(8), buffer.getLong(PAYLOAD_LENGTH - 8)));
+        }
+    }
+
+    private String nonceKey(int promoId, int userId, long nonce){
+        return promoId + "_" + userId + "_" + nonce;
+    }
+
+    private int keyIndex(long millis){
+        return (int) (millis / TimeUnit.MINUTES.toMillis(rotateMinutes));
+    }
+
+    private byte[] mac(int keyIndex, byte[] data){
+        Mac mac = macHolder.get();
+        try {
+            mac.init(keyOf(keyIndex));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+        mac.update(data, 0, PAYLOAD_LENGTH);
+        return mac.doFinal();
+    }
+
+    //由主密钥派生出每个周期的签名密钥
+    private SecretKeySpec keyOf(int keyIndex){
+        SecretKeySpec key = keyMap.get(keyIndex);
+        if (key != null){
+            return key;
+        }
+        Mac mac = macHolder.get();
+        try {
+            mac.init(new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), ALGORITHM));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+        key = new SecretKeySpec(mac.doFinal(("promo_token_key_" + keyIndex).getBytes(StandardCharsets.UTF_8)), ALGORITHM);
+        //只保留最近几个周期的密钥
+        keyMap.keySet().removeIf(index -> index < keyIndex - 1);
+        keyMap.put(keyIndex, key);
+        return key;
+    }
+}
@@ -0,0 +1,230 @@
+package com.zc.miaoshaproject.promo;
+
+import com.zc.miaoshaproject.cache.CacheRegion;
+import com.zc.miaoshaproject.cache.SingleFlightCacheLoader;
+import com.zc.miaoshaproject.dao.PromoDOMapper;
+import com.zc.miaoshaproject.dataobject.PromoDO;
+import com.zc.miaoshaproject.service.CacheService;
+import com.zc.miaoshaproject.service.ItemService;
+import com.zc.miaoshaproject.service.PromoService;
+import com.zc.miaoshaproject.service.model.ItemModel;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.types.Expiration;
+import org.springframework.scripting.support.ResourceScriptSource;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * 描述:
+ * 活动自动预热
+ * 定时扫描即将开始的活动,在开始前一段时间发布库存和大闸数量,并把商品缓存预先加载到redis和本地缓存;
+ * 发布通过redis分布式锁+已发布标识保证多节点只执行一次,缓存预热每个节点各自执行;
+ * 活动开始时再刷新一次商品缓存,使缓存中的活动状态切换为进行中
+ * @Author: zhangchao
+ * @Date: 9/4/20 10:30 上午
+ **/
+@Component
+public class PromoWarmupScheduler {
+
+    private static final String LOCK_KEY_PREFIX = "promo_warmup_lock_";
+
+    @Autowired
+    private PromoDOMapper promoDOMapper;
+
+    @Autowired
+    private PromoService promoService;
+
+    @Autowired
+    private ItemService itemService;
+
+    @Autowired
+    private CacheService cacheService;
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Autowired
+    private SingleFlightCacheLoader singleFlightCacheLoader;
+
+    @Value("${promo.warmup.enabled:true}")
+    private boolean enabled;
+
+    //活动开始前多少秒执行预热
+    @Value("${promo.warmup.lead.seconds:300}")
+    private int leadSeconds;
+
+    //多少秒扫描一次活动表
+    @Value("${promo.warmup.scan.seconds:30}")
+    private int scanSeconds;
+
+    //已安排预热的活动及其定时任务,开始时间被修改后取消旧任务重新安排
+    private final Map<Integer,Warmups> scheduledMap = new ConcurrentHashMap<>();
+
+    private ScheduledExecutorService scheduler;
+
+    private DefaultRedisScript<Long> unlockScript;
+
+    @PostConstruct
+    public void init(){
+        unlockScript = new DefaultRedisScript<>();
+        unlockScript.setScriptSource(new ResourceScriptSource(new ClassPathResource("lua/compare_and_delete.lua")));
+        unlockScript.setResultType(Long.class);
+        if (!enabled){
+            return;
+        }
+        scheduler = Executors.newScheduledThreadPool(2);
+        scheduler.scheduleWithFixedDelay(this::scan, 0, scanSeconds, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    public void destroy(){
+        if (scheduler != null){
+            scheduler.shutdownNow();
+        }
+    }
+
+    private void scan(){
+        try {
+            long now = System.currentTimeMillis();
+            //扫描窗口多留一个扫描周期,保证在预热时间点之前就已安排
+            Date startBefore = new Date(now + TimeUnit.SECONDS.toMillis(leadSeconds + scanSeconds));
+            List<PromoDO> promoDOList = promoDOMapper.listStartBefore(startBefore, new Date(now));
+            for (PromoDO promoDO : promoDOList){
+                if (promoDO.getItemId() == null || promoDO.getItemId().intValue() == 0){
+                    continue;
+                }
+                long startTime = promoDO.getStartDate().getTime();
+                Integer promoId = promoDO.getId();
+                Integer itemId = promoDO.getItemId();
+                Warmups scheduled = scheduledMap.get(promoId);
+                if (scheduled != null){
+                    if (scheduled.startTime == startTime){
+                        continue;
+                    }
+                    //开始时间被修改,按旧时间安排的预热不再执行
+                    scheduled.cancel();
+                }
+                Warmups warmups = new Warmups(startTime);
+                long warmupDelay = Math.max(0, startTime - TimeUnit.SECONDS.toMillis(leadSeconds) - now);
+                warmups.futures.add(scheduler.schedule(() -> warmup(promoId, itemId), warmupDelay, TimeUnit.MILLISECONDS));
+                if (startTime > now){
+                    warmups.futures.add(scheduler.schedule(() -> preloadItemCache(itemId), startTime - now, TimeUnit.MILLISECONDS));
+                }
+                scheduledMap.put(promoId, warmups);
+            }
+            //清理已结束或开始时间移出扫描窗口的活动,取消还未执行的任务
+            Set<Integer> promoIds = promoDOList.stream().map(PromoDO::getId).collect(Collectors.toSet());
+            Iterator<Map.Entry<Integer,Warmups>> iterator = scheduledMap.entrySet().iterator();
+            while (iterator.hasNext()){
+                Map.Entry<Integer,Warmups> entry = iterator.next();
+                if (!promoIds.contains(entry.getKey())){
+                    entry.getValue().cancel();
+                    iterator.remove();
+                }
+            }
+        }catch (Exception e){
+            e.printStackTrace();
+        }
+    }
+
+    //发布库存和大闸,重复执行或多个节点同时执行都只发布一次
+    private void warmup(Integer promoId, Integer itemId){
+        try {
+            publishOnce(promoId);
+            preloadItemCache(itemId);
+        }catch (Exception e){
+            e.printStackTrace();
+        }
+    }
+
+    //活动未发布时加锁发布,返回是否由本次调用发布(已发布或其他节点正在发布时返回false)
+    public boolean publishOnce(Integer promoId){
+        if (promoService.isPromoPublished(promoId)){
+            return false;
+        }
+        String lockKey = LOCK_KEY_PREFIX + promoId;
+        String lockValue = UUID.randomUUID().toString();
+        if (!tryLock(lockKey, lockValue)){
+            return false;
+        }
+        try {
+            //拿到锁后再确认一次,其他节点可能刚发布完
+            if (promoService.isPromoPublished(promoId)){
+                return false;
+            }
+            promoService.publishPromo(promoId);
+            return true;
+        }finally {
+            unlock(lockKey, lockValue);
+        }
+    }
+
+    //加载商品详情和下单校验使用的商品缓存
+    private void preloadItemCache(Integer itemId){
+        try {
+            ItemModel itemModel = itemService.getItemById(itemId);
+            if (itemModel == null){
+                return;
+            }
+            singleFlightCacheLoader.put("item_validate_"+itemId, itemModel, 10, TimeUnit.MINUTES);
+            singleFlightCacheLoader.put("item_"+itemId, itemModel, 10, TimeUnit.MINUTES);
+            cacheService.put(CacheRegion.ITEM, String.valueOf(itemId), itemModel);
+            //展示用的ItemVO和详情响应由新的ItemModel重新生成
+            cacheService.evict(CacheRegion.ITEM_VO, String.valueOf(itemId));
+            cacheService.evict(CacheRegion.ITEM_PAGE, String.valueOf(itemId));
+        }catch (Exception e){
+            e.printStackTrace();
+        }
+    }
+
+    private boolean tryLock(String lockKey, String lockValue){
+        Boolean locked = stringRedisTemplate.execute((RedisCallback<Boolean>) connection -> connection.set(
+                lockKey.getBytes(StandardCharsets.UTF_8), lockValue.getBytes(StandardCharsets.UTF_8),
+                Expiration.seconds(30), RedisStringCommands.SetOption.ifAbsent()));
+        return Boolean.TRUE.equals(locked);
+    }
+
+    //比较和删除在一个脚本内完成,锁过期后被其他节点重新获取时不会误删
+    private void unlock(String lockKey, String lockValue){
+        stringRedisTemplate.execute(unlockScript, Arrays.asList(lockKey), lockValue);
+    }
+
+    //一个活动已安排的预热/开始时刷新任务
+    private static class Warmups {
+        private final long startTime;
+        private final List<ScheduledFuture<?>> futures = new ArrayList<>(2);
+
+        Warmups(long startTime){
+            this.startTime = startTime;
+        }
+
+        void cancel(){
+            for (ScheduledFuture<?> future : futures){
+                future.cancel(false);
+            }
+        }
+    }
+}
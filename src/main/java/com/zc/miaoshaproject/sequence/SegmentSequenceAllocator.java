@@ -0,0 +1,156 @@
+package com.zc.miaoshaproject.sequence;
+
+import com.zc.miaoshaproject.dao.SequenceDOMapper;
+import com.zc.miaoshaproject.dataobject.SequenceDO;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 描述:
+ * 号段方式分配序列
+ * 每个节点在独立的短事务中一次领取 step*N 个序列值,之后在内存中用原子计数器分配;
+ * 当前号段用掉80%时异步预取下一个号段,下单时不再对sequence_info加行锁
+ * @Author: zhangchao
+ * @Date: 8/27/20 11:05 上午
+ **/
+@Component
+public class SegmentSequenceAllocator {
+
+    //当前号段使用到多少比例时预取下一个号段
+    private static final double PREFETCH_RATIO = 0.8;
+
+    @Autowired
+    private SequenceDOMapper sequenceDOMapper;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    //每次领取的号段包含多少个step
+    @Value("${order.sequence.segment.multiple:1000}")
+    private int segmentMultiple;
+
+    private final Map<String,SegmentBuffer> bufferMap = new ConcurrentHashMap<>();
+
+    private TransactionTemplate requiresNewTransaction;
+
+    private ExecutorService prefetchExecutor;
+
+    @PostConstruct
+    public void init(){
+        //领取号段使用独立事务,不受外层下单事务影响,行锁只持有很短时间
+        requiresNewTransaction = new TransactionTemplate(transactionManager);
+        requiresNewTransaction.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+        prefetchExecutor = Executors.newSingleThreadExecutor();
+    }
+
+    @PreDestroy
+    public void destroy(){
+        prefetchExecutor.shutdownNow();
+    }
+
+    //获取下一个序列值
+    public int next(String name){
+        return bufferMap.computeIfAbsent(name, SegmentBuffer::new).next();
+    }
+
+    private Segment claim(String name){
+        return requiresNewTransaction.execute(status -> {
+            SequenceDO sequenceDO = sequenceDOMapper.getSequenceByName(name);
+            int start = sequenceDO.getCurrentValue();
+            int step = sequenceDO.getStep();
+            int end = start + step * segmentMultiple;
+            sequenceDO.setCurrentValue(end);
+            sequenceDOMapper.updateByPrimaryKeySelective(sequenceDO);
+            return new Segment(start, end, step);
+        });
+    }
+
+    //号段[start,end),按step递增分配
+    private static class Segment {
+        private final int start;
+        private final int end;
+        private final int step;
+        private final AtomicInteger cursor;
+
+        Segment(int start, int end, int step){
+            this.start = start;
+            this.end = end;
+            this.step = step;
+            this.cursor = new AtomicInteger(start);
+        }
+    }
+
+    //双号段缓冲:current正在使用,next为预取的下一个号段
+    private class SegmentBuffer {
+        private final String name;
+        private volatile Segment current;
+        private volatile Segment next;
+        private final AtomicBoolean prefetching = new AtomicBoolean(false);
+
+        SegmentBuffer(String name){
+            this.name = name;
+        }
+
+        int next(){
+            while (true){
+                Segment segment = current;
+                if (segment == null){
+                    synchronized (this){
+                        if (current == null){
+                            current = claim(name);
+                        }
+                    }
+                    continue;
+                }
+                int value = segment.cursor.getAndAdd(segment.step);
+                if (value < segment.end){
+                    prefetchIfNeeded(segment, value);
+                    return value;
+                }
+                //当前号段已用完,切换到预取的号段,预取还没完成则同步领取
+                synchronized (this){
+                    if (current == segment){
+                        if (next != null){
+                            current = next;
+                            next = null;
+                        }else {
+                            current = claim(name);
+                        }
+                    }
+                }
+            }
+        }
+
+        private void prefetchIfNeeded(Segment segment, int value){
+            if (next != null || value - segment.start < (segment.end - segment.start) * PREFETCH_RATIO
+                    || !prefetching.compareAndSet(false, true)){
+                return;
+            }
+            prefetchExecutor.execute(() -> {
+                try {
+                    Segment prefetched = claim(name);
+                    synchronized (this){
+                        next = prefetched;
+                    }
+                }catch (Exception e){
+                    e.printStackTrace();
+                }finally {
+                    prefetching.set(false);
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package com.zc.miaoshaproject.sequence;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 描述:
+ * 雪花算法id生成
+ * 41位毫秒时间戳 + 10位workerId + 12位毫秒内序列,时间戳和序列打包在一个AtomicLong中CAS递增,无锁且不依赖数据库;
+ * 时钟回拨时沿用上次的时间戳继续分配序列;序列用完时等待时钟走到下一毫秒,
+ * 不提前借用后续毫秒,否则高并发下时间戳会越跑越超前,节点重启后可能发出重复的id
+ * @Author: zhangchao
+ * @Date: 8/28/20 2:16 下午
+ **/
+@Component
+public class SnowflakeIdGenerator {
+
+    //2020-09-01 00:00:00 UTC
+    private static final long EPOCH = 1598918400000L;
+
+    private static final int WORKER_ID_BITS = 10;
+
+    private static final int SEQUENCE_BITS = 12;
+
+    private static final long MAX_WORKER_ID = (1L << WORKER_ID_BITS) - 1;
+
+    private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+
+    //每个节点需配置不同的workerId,取值0~1023
+    @Value("${order.no.worker.id:0}")
+    private long workerId;
+
+    //高位为相对EPOCH的时间戳,低12位为毫秒内序列
+    private final AtomicLong state = new AtomicLong();
+
+    @PostConstruct
+    public void init(){
+        if (workerId < 0 || workerId > MAX_WORKER_ID){
+            throw new IllegalArgumentException("order.no.worker.id必须在0~" + MAX_WORKER_ID + "之间");
+        }
+    }
+
+    public long nextId(){
+        while (true){
+            long current = state.get();
+            long lastTimestamp = current >>> SEQUENCE_BITS;
+            long now = System.currentTimeMillis() - EPOCH;
+            long next;
+            if (now > lastTimestamp){
+                next = now << SEQUENCE_BITS;
+            }else if ((current & SEQUENCE_MASK) < SEQUENCE_MASK){
+                next = current + 1;
+            }else {
+                //本毫秒序列已用完,让出cpu后重新读时钟
+                Thread.yield();
+                continue;
+            }
+            if (state.compareAndSet(current, next)){
+                long timestamp = next >>> SEQUENCE_BITS;
+                return (timestamp << (WORKER_ID_BITS + SEQUENCE_BITS)) | (workerId << SEQUENCE_BITS) | (next & SEQUENCE_MASK);
+            }
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package com.zc.miaoshaproject.serializer;
+
+import org.joda.time.DateTime;
+import org.springframework.data.redis.serializer.SerializationException;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * 描述:
+ * 紧凑二进制读取,与BinaryWriter一一对应
+ * @Author: zhangchao
+ * @Date: 8/31/20 2:20 下午
+ **/
+class BinaryReader {
+
+    private final byte[] buf;
+
+    private int pos;
+
+    BinaryReader(byte[] buf, int pos){
+        this.buf = buf;
+        this.pos = pos;
+    }
+
+    int readByte(){
+        check(1);
+        return buf[pos++];
+    }
+
+    long readVarLong(){
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7){
+            check(1);
+            byte b = buf[pos++];
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0){
+                return value;
+            }
+        }
+        throw new SerializationException("varint格式错误");
+    }
+
+    long readSignedVarLong(){
+        long raw = readVarLong();
+        return (raw >>> 1) ^ -(raw & 1);
+    }
+
+    int readSignedVarInt(){
+        return (int) readSignedVarLong();
+    }
+
+    String readString(){
+        int length = (int) readVarLong();
+        check(length);
+        String value = new String(buf, pos, length, StandardCharsets.UTF_8);
+        pos += length;
+        return value;
+    }
+
+    BigDecimal readDecimal(){
+        long head = readVarLong();
+        int zigzagScale = (int) (head >>> 1);
+        int scale = (zigzagScale >>> 1) ^ -(zigzagScale & 1);
+        if ((head & 1) != 0){
+            int length = (int) readVarLong();
+            check(length);
+            BigInteger unscaled = new BigInteger(Arrays.copyOfRange(buf, pos, pos + length));
+            pos += length;
+            return new BigDecimal(unscaled, scale);
+        }
+        return BigDecimal.valueOf(readSignedVarLong(), scale);
+    }
+
+    DateTime readDateTime(){
+        return new DateTime(readSignedVarLong());
+    }
+
+    private void check(int size){
+        if (size < 0 || pos + size > buf.length){
+            throw new SerializationException("二进制数据不完整");
+        }
+    }
+}
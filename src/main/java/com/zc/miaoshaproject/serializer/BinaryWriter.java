@@ -0,0 +1,85 @@
+package com.zc.miaoshaproject.serializer;
+
+import org.joda.time.DateTime;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * 描述:
+ * 紧凑二进制写入
+ * 整数使用zigzag+varint,BigDecimal写为scale+unscaled long,DateTime写为epoch毫秒
+ * @Author: zhangchao
+ * @Date: 8/31/20 2:20 下午
+ **/
+class BinaryWriter {
+
+    private byte[] buf;
+
+    private int pos;
+
+    BinaryWriter(int initialSize){
+        buf = new byte[initialSize];
+    }
+
+    void writeByte(int value){
+        ensure(1);
+        buf[pos++] = (byte) value;
+    }
+
+    //无符号varint,每个字节低7位为数据,最高位表示后面还有字节
+    void writeVarLong(long value){
+        ensure(10);
+        while ((value & ~0x7FL) != 0){
+            buf[pos++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buf[pos++] = (byte) value;
+    }
+
+    //有符号数先做zigzag,绝对值小的负数也只占很少字节
+    void writeSignedVarLong(long value){
+        writeVarLong((value << 1) ^ (value >> 63));
+    }
+
+    void writeString(String value){
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarLong(bytes.length);
+        ensure(bytes.length);
+        System.arraycopy(bytes, 0, buf, pos, bytes.length);
+        pos += bytes.length;
+    }
+
+    //头部为 zigzag(scale)<<1 | 是否超出long; unscaled超出long范围(如new BigDecimal(double)得到的长小数)时写补码字节
+    void writeDecimal(BigDecimal value){
+        BigInteger unscaled = value.unscaledValue();
+        boolean big = unscaled.bitLength() > 63;
+        int scale = value.scale();
+        writeVarLong(((((scale << 1) ^ (scale >> 31)) & 0xFFFFFFFFL) << 1) | (big ? 1 : 0));
+        if (big){
+            byte[] bytes = unscaled.toByteArray();
+            writeVarLong(bytes.length);
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buf, pos, bytes.length);
+            pos += bytes.length;
+        }else {
+            writeSignedVarLong(unscaled.longValue());
+        }
+    }
+
+    void writeDateTime(DateTime value){
+        writeSignedVarLong(value.getMillis());
+    }
+
+    byte[] toByteArray(){
+        return Arrays.copyOf(buf, pos);
+    }
+
+    private void ensure(int size){
+        if (pos + size > buf.length){
+            buf = Arrays.copyOf(buf, Math.max(buf.length << 1, pos + size));
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package com.zc.miaoshaproject.serializer;
+
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.data.redis.serializer.SerializationException;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 描述:
+ * redis value序列化
+ * ItemModel/UserModel/PromoModel写为带schema版本的紧凑二进制: 魔数 + 类型标识 + 版本 + 字段,
+ * 其余类型(库存计数、售罄标识、下单结果等)仍交给jackson;
+ * 读取时按首字节区分,json不会以魔数开头,因此切换前写入的旧缓存仍可正常读出
+ * @Author: zhangchao
+ * @Date: 8/31/20 2:20 下午
+ **/
+public class CompactModelRedisSerializer implements RedisSerializer<Object> {
+
+    //json文本首字节只会是可见字符,0x01不会与之冲突
+    private static final byte MAGIC = 0x01;
+
+    private final RedisSerializer<Object> fallback;
+
+    //false时只写jackson,但仍能读二进制(用于灰度回滚)
+    private final boolean writeBinary;
+
+    private final Map<Class<?>,ModelCodec<?>> codecByType = new HashMap<>();
+
+    private final ModelCodec<?>[] codecById = new ModelCodec<?>[16];
+
+    public CompactModelRedisSerializer(RedisSerializer<Object> fallback, boolean writeBinary){
+        this.fallback = fallback;
+        this.writeBinary = writeBinary;
+        register(ItemModelCodec.INSTANCE);
+        register(UserModelCodec.INSTANCE);
+        register(PromoModelCodec.INSTANCE);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public byte[] serialize(Object value) throws SerializationException {
+        ModelCodec<Object> codec = value == null || !writeBinary ? null : (ModelCodec<Object>) codecByType.get(value.getClass());
+        if (codec == null){
+            return fallback.serialize(value);
+        }
+        BinaryWriter writer = new BinaryWriter(128);
+        writer.writeByte(MAGIC);
+        writer.writeByte(codec.typeId());
+        writer.writeByte(codec.version());
+        codec.write(value, writer);
+        return writer.toByteArray();
+    }
+
+    @Override
+    public Object deserialize(byte[] bytes) throws SerializationException {
+        if (bytes == null || bytes.length == 0 || bytes[0] != MAGIC){
+            return fallback.deserialize(bytes);
+        }
+        if (bytes.length < 3){
+            throw new SerializationException("二进制数据不完整");
+        }
+        int typeId = bytes[1];
+        ModelCodec<?> codec = typeId >= 0 && typeId < codecById.length ? codecById[typeId] : null;
+        if (codec == null){
+            throw new SerializationException("未知的类型标识:" + typeId);
+        }
+        if (bytes[2] > codec.version()){
+            //更新版本节点写入的数据本节点无法解析,当作缓存未命中,由调用方回源后覆盖
+            return null;
+        }
+        try {
+            return codec.read(new BinaryReader(bytes, 3), bytes[2]);
+        }catch (NewerVersionException e){
+            //内嵌模型的版本比本节点新,同样当作缓存未命中
+            return null;
+        }
+    }
+
+    private void register(ModelCodec<?> codec){
+        codecByType.put(codec.type(), codec);
+        codecById[codec.typeId()] = codec;
+    }
+
+    //读取到比本节点更新的版本
+    static class NewerVersionException extends SerializationException {
+        NewerVersionException(String model, int version){
+            super(model + "版本" + version + "比本节点支持的版本新");
+        }
+    }
+}
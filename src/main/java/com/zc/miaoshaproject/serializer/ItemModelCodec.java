@@ -0,0 +1,108 @@
+package com.zc.miaoshaproject.serializer;
+
+import com.zc.miaoshaproject.service.model.ItemModel;
+import org.springframework.data.redis.serializer.SerializationException;
+
+/**
+ * 描述:
+ * ItemModel二进制编解码,聚合的PromoModel内嵌写入(不再单独写类型头)
+ * 版本2起内嵌的PromoModel前写入其自身的版本号,PromoModel单独升级版本时旧数据仍可正确读取
+ * @Author: zhangchao
+ * @Date: 8/31/20 2:20 下午
+ **/
+class ItemModelCodec implements ModelCodec<ItemModel> {
+
+    static final ItemModelCodec INSTANCE = new ItemModelCodec();
+
+    @Override
+    public int typeId() {
+        return 1;
+    }
+
+    @Override
+    public int version() {
+        return 2;
+    }
+
+    @Override
+    public Class<ItemModel> type() {
+        return ItemModel.class;
+    }
+
+    @Override
+    public void write(ItemModel model, BinaryWriter writer) {
+        int mask = (model.getId() != null ? 1 : 0)
+                | (model.getTitle() != null ? 1 << 1 : 0)
+                | (model.getPrice() != null ? 1 << 2 : 0)
+                | (model.getStock() != null ? 1 << 3 : 0)
+                | (model.getDescription() != null ? 1 << 4 : 0)
+                | (model.getSales() != null ? 1 << 5 : 0)
+                | (model.getImgUrl() != null ? 1 << 6 : 0)
+                | (model.getPromoModel() != null ? 1 << 7 : 0);
+        writer.writeVarLong(mask);
+        if (model.getId() != null){
+            writer.writeSignedVarLong(model.getId());
+        }
+        if (model.getTitle() != null){
+            writer.writeString(model.getTitle());
+        }
+        if (model.getPrice() != null){
+            writer.writeDecimal(model.getPrice());
+        }
+        if (model.getStock() != null){
+            writer.writeSignedVarLong(model.getStock());
+        }
+        if (model.getDescription() != null){
+            writer.writeString(model.getDescription());
+        }
+        if (model.getSales() != null){
+            writer.writeSignedVarLong(model.getSales());
+        }
+        if (model.getImgUrl() != null){
+            writer.writeString(model.getImgUrl());
+        }
+        if (model.getPromoModel() != null){
+            writer.writeByte(PromoModelCodec.INSTANCE.version());
+            PromoModelCodec.INSTANCE.write(model.getPromoModel(), writer);
+        }
+    }
+
+    @Override
+    public ItemModel read(BinaryReader reader, int version) {
+        if (version != 1 && version != 2){
+            throw new SerializationException("不支持的ItemModel版本:" + version);
+        }
+        int mask = (int) reader.readVarLong();
+        ItemModel model = new ItemModel();
+        if ((mask & 1) != 0){
+            model.setId(reader.readSignedVarInt());
+        }
+        if ((mask & 1 << 1) != 0){
+            model.setTitle(reader.readString());
+        }
+        if ((mask & 1 << 2) != 0){
+            model.setPrice(reader.readDecimal());
+        }
+        if ((mask & 1 << 3) != 0){
+            model.setStock(reader.readSignedVarInt());
+        }
+        if ((mask & 1 << 4) != 0){
+            model.setDescription(reader.readString());
+        }
+        if ((mask & 1 << 5) != 0){
+            model.setSales(reader.readSignedVarInt());
+        }
+        if ((mask & 1 << 6) != 0){
+            model.setImgUrl(reader.readString());
+        }
+        if ((mask & 1 << 7) != 0){
+            //版本1写入时PromoModel只有版本1,没有单独的版本号
+            int promoVersion = version == 1 ? 1 : reader.readByte();
+            if (promoVersion > PromoModelCodec.INSTANCE.version()){
+                throw new CompactModelRedisSerializer.NewerVersionException("PromoModel", promoVersion);
+            }
+            model.setPromoModel(PromoModelCodec.INSTANCE.read(reader, promoVersion));
+        }
+        return model;
+    }
+}
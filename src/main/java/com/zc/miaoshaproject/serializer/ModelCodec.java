@@ -0,0 +1,23 @@
+package com.zc.miaoshaproject.serializer;
+
+/**
+ * 描述:
+ * 单个领域模型的二进制编解码
+ * 每个模型占用一个类型标识,字段变化时递增schema版本,read需要兼容所有旧版本
+ * @Author: zhangchao
+ * @Date: 8/31/20 2:20 下午
+ **/
+interface ModelCodec<T> {
+
+    //类型标识,写入数据头部,不同模型之间不能重复
+    int typeId();
+
+    //当前写入使用的schema版本
+    int version();
+
+    Class<T> type();
+
+    void write(T model, BinaryWriter writer);
+
+    T read(BinaryReader reader, int version);
+}
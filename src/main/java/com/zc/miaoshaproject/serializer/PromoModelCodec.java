@@ -0,0 +1,94 @@
+package com.zc.miaoshaproject.serializer;
+
+import com.zc.miaoshaproject.service.model.PromoModel;
+import org.springframework.data.redis.serializer.SerializationException;
+
+/**
+ * 描述:
+ * PromoModel二进制编解码,开头用位图标记非空字段,只写非空字段
+ * @Author: zhangchao
+ * @Date: 8/31/20 2:20 下午
+ **/
+class PromoModelCodec implements ModelCodec<PromoModel> {
+
+    static final PromoModelCodec INSTANCE = new PromoModelCodec();
+
+    @Override
+    public int typeId() {
+        return 3;
+    }
+
+    @Override
+    public int version() {
+        return 1;
+    }
+
+    @Override
+    public Class<PromoModel> type() {
+        return PromoModel.class;
+    }
+
+    @Override
+    public void write(PromoModel model, BinaryWriter writer) {
+        int mask = (model.getId() != null ? 1 : 0)
+                | (model.getStatus() != null ? 1 << 1 : 0)
+                | (model.getPromoName() != null ? 1 << 2 : 0)
+                | (model.getStartDate() != null ? 1 << 3 : 0)
+                | (model.getEndDate() != null ? 1 << 4 : 0)
+                | (model.getItemId() != null ? 1 << 5 : 0)
+                | (model.getPromoItemPrice() != null ? 1 << 6 : 0);
+        writer.writeVarLong(mask);
+        if (model.getId() != null){
+            writer.writeSignedVarLong(model.getId());
+        }
+        if (model.getStatus() != null){
+            writer.writeSignedVarLong(model.getStatus());
+        }
+        if (model.getPromoName() != null){
+            writer.writeString(model.getPromoName());
+        }
+        if (model.getStartDate() != null){
+            writer.writeDateTime(model.getStartDate());
+        }
+        if (model.getEndDate() != null){
+            writer.writeDateTime(model.getEndDate());
+        }
+        if (model.getItemId() != null){
+            writer.writeSignedVarLong(model.getItemId());
+        }
+        if (model.getPromoItemPrice() != null){
+            writer.writeDecimal(model.getPromoItemPrice());
+        }
+    }
+
+    @Override
+    public PromoModel read(BinaryReader reader, int version) {
+        if (version != 1){
+            throw new SerializationException("不支持的PromoModel版本:" + version);
+        }
+        int mask = (int) reader.readVarLong();
+        PromoModel model = new PromoModel();
+        if ((mask & 1) != 0){
+            model.setId(reader.readSignedVarInt());
+        }
+        if ((mask & 1 << 1) != 0){
+            model.setStatus(reader.readSignedVarInt());
+        }
+        if ((mask & 1 << 2) != 0){
+            model.setPromoName(reader.readString());
+        }
+        if ((mask & 1 << 3) != 0){
+            model.setStartDate(reader.readDateTime());
+        }
+        if ((mask & 1 << 4) != 0){
+            model.setEndDate(reader.readDateTime());
+        }
+        if ((mask & 1 << 5) != 0){
+            model.setItemId(reader.readSignedVarInt());
+        }
+        if ((mask & 1 << 6) != 0){
+            model.setPromoItemPrice(reader.readDecimal());
+        }
+        return model;
+    }
+}
@@ -0,0 +1,101 @@
+package com.zc.miaoshaproject.serializer;
+
+import com.zc.miaoshaproject.service.model.UserModel;
+import org.springframework.data.redis.serializer.SerializationException;
+
+/**
+ * 描述:
+ * UserModel二进制编解码
+ * @Author: zhangchao
+ * @Date: 8/31/20 2:20 下午
+ **/
+class UserModelCodec implements ModelCodec<UserModel> {
+
+    static final UserModelCodec INSTANCE = new UserModelCodec();
+
+    @Override
+    public int typeId() {
+        return 2;
+    }
+
+    @Override
+    public int version() {
+        return 1;
+    }
+
+    @Override
+    public Class<UserModel> type() {
+        return UserModel.class;
+    }
+
+    @Override
+    public void write(UserModel model, BinaryWriter writer) {
+        int mask = (model.getId() != null ? 1 : 0)
+                | (model.getName() != null ? 1 << 1 : 0)
+                | (model.getGender() != null ? 1 << 2 : 0)
+                | (model.getAge() != null ? 1 << 3 : 0)
+                | (model.getTelphone() != null ? 1 << 4 : 0)
+                | (model.getRegisterMode() != null ? 1 << 5 : 0)
+                | (model.getThirdPartyId() != null ? 1 << 6 : 0)
+                | (model.getEncrptPassword() != null ? 1 << 7 : 0);
+        writer.writeVarLong(mask);
+        if (model.getId() != null){
+            writer.writeSignedVarLong(model.getId());
+        }
+        if (model.getName() != null){
+            writer.writeString(model.getName());
+        }
+        if (model.getGender() != null){
+            writer.writeByte(model.getGender());
+        }
+        if (model.getAge() != null){
+            writer.writeSignedVarLong(model.getAge());
+        }
+        if (model.getTelphone() != null){
+            writer.writeString(model.getTelphone());
+        }
+        if (model.getRegisterMode() != null){
+            writer.writeString(model.getRegisterMode());
+        }
+        if (model.getThirdPartyId() != null){
+            writer.writeString(model.getThirdPartyId());
+        }
+        if (model.getEncrptPassword() != null){
+            writer.writeString(model.getEncrptPassword());
+        }
+    }
+
+    @Override
+    public UserModel read(BinaryReader reader, int version) {
+        if (version != 1){
+            throw new SerializationException("不支持的UserModel版本:" + version);
+        }
+        int mask = (int) reader.readVarLong();
+        UserModel model = new UserModel();
+        if ((mask & 1) != 0){
+            model.setId(reader.readSignedVarInt());
+        }
+        if ((mask & 1 << 1) != 0){
+            model.setName(reader.readString());
+        }
+        if ((mask & 1 << 2) != 0){
+            model.setGender((byte) reader.readByte());
+        }
+        if ((mask & 1 << 3) != 0){
+            model.setAge(reader.readSignedVarInt());
+        }
+        if ((mask & 1 << 4) != 0){
+            model.setTelphone(reader.readString());
+        }
+        if ((mask & 1 << 5) != 0){
+            model.setRegisterMode(reader.readString());
+        }
+        if ((mask & 1 << 6) != 0){
+            model.setThirdPartyId(reader.readString());
+        }
+        if ((mask & 1 << 7) != 0){
+            model.setEncrptPassword(reader.readString());
+        }
+        return model;
+    }
+}
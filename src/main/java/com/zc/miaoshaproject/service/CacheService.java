@@ -1,15 +1,40 @@
 package com.zc.miaoshaproject.service;
 
+import com.zc.miaoshaproject.cache.CacheRegion;
+
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
 /**
  * 描述:
  * 封装本地缓存操作类
+ * 缓存按区域划分,key在区域内唯一
  * @Author: zhangchao
  * @Date: 8/20/20 5:26 下午
  **/
 public interface CacheService {
     //存方法
-    void setCommonCache(String key,Object value);
+    void put(CacheRegion region,String key,Object value);
+
+    //取方法,不存在返回null
+    Object get(CacheRegion region,String key);
+
+    //取方法,不存在时通过区域注册的加载器加载;加载结果为null时不缓存
+    Object load(CacheRegion region,String key);
+
+    //注册区域的加载器,同时用于写入后到期的异步刷新
+    void registerLoader(CacheRegion region,Function<String,Object> loader);
+
+    //淘汰所有节点本地缓存中的key
+    void evict(CacheRegion region,String key);
+
+    //淘汰所有节点本地缓存中的整个区域
+    void evictRegion(CacheRegion region);
+
+    //只淘汰本节点中满足条件的值
+    void evictLocalIf(CacheRegion region,Predicate<Object> predicate);
 
-    //取方法
-    Object getFromCommonCache(String key);
+    //各区域的命中/加载/淘汰统计
+    Map<String,Map<String,Object>> getStats();
 }
@@ -30,4 +30,7 @@ public interface ItemService {
 
     //初始化库存流水
     String initStockLog(Integer itemId,Integer amount);
+
+    //商品或活动信息变更后删除redis中的商品缓存,并淘汰所有节点的本地缓存
+    void invalidateItemCache(Integer itemId);
 }
@@ -0,0 +1,23 @@
+package com.zc.miaoshaproject.service;
+
+import com.zc.miaoshaproject.service.model.OrderResultModel;
+
+/**
+ * 描述:
+ * 异步下单结果存储
+ * @Author: zhangchao
+ * @Date: 8/29/20 10:20 上午
+ **/
+public interface OrderResultService {
+    //生成下单凭证,并记录为处理中
+    String createTicket(Integer userId);
+
+    //记录下单成功,userId由受理请求的登录用户传入
+    void success(String ticket, Integer userId);
+
+    //记录下单失败
+    void fail(String ticket, Integer userId, int errCode, String errMsg);
+
+    //查询下单结果,凭证不存在或已过期返回null
+    OrderResultModel getResult(String ticket);
+}
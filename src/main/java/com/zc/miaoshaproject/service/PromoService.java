@@ -11,6 +11,9 @@ public interface PromoService {
     //活动发布
     void publishPromo(Integer promoId);
 
+    //活动是否已发布
+    boolean isPromoPublished(Integer promoId);
+
     //生成秒杀令牌
     String generateSecondKillToken(Integer promoId,Integer itemId,Integer userId);
 }
@@ -1,43 +1,258 @@
 package com.zc.miaoshaproject.service.impl;
 
-import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.zc.miaoshaproject.cache.CacheRegion;
+import com.zc.miaoshaproject.cache.CacheWeigher;
 import com.zc.miaoshaproject.service.CacheService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.env.Environment;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
 import org.springframework.stereotype.Service;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Predicate;
 
 /**
  * 描述:
- *
+ * 分区域的本地缓存
+ * 每个区域一个guava LoadingCache,按权重限制容量,写入后超过refresh时间的条目在下次访问时由后台线程异步重新加载,
+ * 加载期间继续返回旧值;
+ * 淘汰先在本节点立即生效,再按批次合并通过redis pub/sub广播,其他节点收到后淘汰各自的本地缓存;
+ * 一条消息第一行为发送节点id,之后每行一条淘汰: "k:"+区域+":"+key 或 "r:"+区域
  * @Author: zhangchao
  * @Date: 8/20/20 5:27 下午
  **/
 @Service
-public class CacheServiceImpl implements CacheService {
+public class CacheServiceImpl implements CacheService, MessageListener {
 
-    private Cache<String,Object> commonCache = null;
+    public static final String CHANNEL = "local_cache_invalidate";
+
+    private static final String KEY = "k:";
+
+    private static final String REGION = "r:";
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    //复用@EnableRedisHttpSession注册的监听容器
+    @Autowired
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    //区域配置按区域名拼接,无法逐个使用@Value
+    @Autowired
+    private Environment environment;
+
+    //淘汰消息合并发送的间隔(毫秒)
+    @Value("${local.cache.invalidate.batch.millis:50}")
+    private long batchMillis;
+
+    //异步刷新线程数
+    @Value("${local.cache.refresh.threads:2}")
+    private int refreshThreads;
+
+    //用于忽略自己发出的广播
+    private final String nodeId = UUID.randomUUID().toString();
+
+    private final Queue<String> pending = new ConcurrentLinkedQueue<>();
+
+    private final Map<CacheRegion,LoadingCache<String,Object>> caches = new EnumMap<>(CacheRegion.class);
+
+    private final Map<CacheRegion,Function<String,Object>> loaders = new ConcurrentHashMap<>();
+
+    private final Map<CacheRegion,Map<String,Object>> settings = new EnumMap<>(CacheRegion.class);
+
+    private ScheduledExecutorService scheduler;
+
+    private ExecutorService refreshExecutor;
 
     //初始化
     @PostConstruct
     public void init(){
-        commonCache = CacheBuilder.newBuilder()
-                //设置缓存容器的初始容量为10
-                .initialCapacity(10)
-                //设置缓存中最大可以存储100个KEY,超过100个之后会按照LRU的策略移除缓存项
-                .maximumSize(100)
-                //设置写缓存后多少秒过期
-                .expireAfterWrite(60, TimeUnit.SECONDS)
-        .build();
+        refreshExecutor = Executors.newFixedThreadPool(refreshThreads);
+        for (CacheRegion region : CacheRegion.values()){
+            caches.put(region, build(region));
+        }
+
+        redisMessageListenerContainer.addMessageListener(this, new ChannelTopic(CHANNEL));
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        scheduler.scheduleWithFixedDelay(this::flushQuietly, batchMillis, batchMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void destroy(){
+        scheduler.shutdownNow();
+        refreshExecutor.shutdownNow();
+        flushQuietly();
+    }
+
+    @Override
+    public void put(CacheRegion region, String key, Object value) {
+        caches.get(region).put(key, value);
+    }
+
+    @Override
+    public Object get(CacheRegion region, String key) {
+        return caches.get(region).getIfPresent(key);
     }
+
     @Override
-    public void setCommonCache(String key, Object value) {
-        commonCache.put(key,value);
+    public Object load(CacheRegion region, String key) {
+        try {
+            return caches.get(region).get(key);
+        }catch (CacheLoader.InvalidCacheLoadException e){
+            //加载结果为null
+            return null;
+        }catch (ExecutionException | UncheckedExecutionException e){
+            if (e.getCause() instanceof RuntimeException){
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
     }
 
     @Override
-    public Object getFromCommonCache(String key) {
-        return commonCache.getIfPresent(key);
+    public void registerLoader(CacheRegion region, Function<String, Object> loader) {
+        loaders.put(region, loader);
+    }
+
+    @Override
+    public void evict(CacheRegion region, String key) {
+        String invalidation = KEY + region.getName() + ":" + key;
+        apply(invalidation);
+        pending.offer(invalidation);
+    }
+
+    @Override
+    public void evictRegion(CacheRegion region) {
+        String invalidation = REGION + region.getName();
+        apply(invalidation);
+        pending.offer(invalidation);
+    }
+
+    @Override
+    public void evictLocalIf(CacheRegion region, Predicate<Object> predicate) {
+        caches.get(region).asMap().values().removeIf(predicate);
+    }
+
+    @Override
+    public Map<String,Map<String,Object>> getStats() {
+        Map<String,Map<String,Object>> result = new LinkedHashMap<>();
+        for (Map.Entry<CacheRegion,LoadingCache<String,Object>> entry : caches.entrySet()){
+            CacheStats stats = entry.getValue().stats();
+            Map<String,Object> regionStats = new LinkedHashMap<>(settings.get(entry.getKey()));
+            regionStats.put("size", entry.getValue().size());
+            regionStats.put("hitCount", stats.hitCount());
+            regionStats.put("missCount", stats.missCount());
+            regionStats.put("hitRate", stats.hitRate());
+            regionStats.put("loadSuccessCount", stats.loadSuccessCount());
+            regionStats.put("loadExceptionCount", stats.loadExceptionCount());
+            regionStats.put("avgLoadMillis", TimeUnit.NANOSECONDS.toMillis((long) stats.averageLoadPenalty()));
+            regionStats.put("totalLoadMillis", TimeUnit.NANOSECONDS.toMillis(stats.totalLoadTime()));
+            regionStats.put("evictionCount", stats.evictionCount());
+            result.put(entry.getKey().getName(), regionStats);
+        }
+        return result;
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String[] lines = new String(message.getBody(), StandardCharsets.UTF_8).split("\n");
+        if (nodeId.equals(lines[0])){
+            return;
+        }
+        for (int i = 1; i < lines.length; i++){
+            apply(lines[i]);
+        }
+    }
+
+    private LoadingCache<String,Object> build(CacheRegion region){
+        String prefix = "local.cache." + region.getName() + ".";
+        long maxWeightBytes = environment.getProperty(prefix + "max.weight.bytes", Long.class, region.getDefaultMaxWeightBytes());
+        int expireSeconds = environment.getProperty(prefix + "expire.seconds", Integer.class, region.getDefaultExpireSeconds());
+        int refreshSeconds = environment.getProperty(prefix + "refresh.seconds", Integer.class, region.getDefaultRefreshSeconds());
+
+        Map<String,Object> setting = new LinkedHashMap<>();
+        setting.put("maxWeightBytes", maxWeightBytes);
+        setting.put("expireSeconds", expireSeconds);
+        setting.put("refreshSeconds", refreshSeconds);
+        settings.put(region, setting);
+
+        CacheBuilder<String,Object> builder = CacheBuilder.newBuilder()
+                .maximumWeight(maxWeightBytes)
+                .weigher(new CacheWeigher())
+                .expireAfterWrite(expireSeconds, TimeUnit.SECONDS)
+                .recordStats();
+        if (refreshSeconds > 0){
+            builder.refreshAfterWrite(refreshSeconds, TimeUnit.SECONDS);
+        }
+        CacheLoader<String,Object> loader = new CacheLoader<String,Object>() {
+            @Override
+            public Object load(String key) throws Exception {
+                Function<String,Object> regionLoader = loaders.get(region);
+                if (regionLoader == null){
+                    throw new IllegalStateException("本地缓存区域" + region.getName() + "未注册加载器");
+                }
+                return regionLoader.apply(key);
+            }
+        };
+        return builder.build(CacheLoader.asyncReloading(loader, refreshExecutor));
+    }
+
+    private void apply(String invalidation){
+        if (invalidation.startsWith(KEY)){
+            int split = invalidation.indexOf(':', KEY.length());
+            CacheRegion region = split < 0 ? null : CacheRegion.of(invalidation.substring(KEY.length(), split));
+            if (region != null){
+                caches.get(region).invalidate(invalidation.substring(split + 1));
+            }
+        }else if (invalidation.startsWith(REGION)){
+            CacheRegion region = CacheRegion.of(invalidation.substring(REGION.length()));
+            if (region != null){
+                caches.get(region).invalidateAll();
+            }
+        }
+    }
+
+    //把这段时间内的淘汰去重后合并为一条消息发送
+    private void flushQuietly(){
+        try {
+            Set<String> batch = new LinkedHashSet<>();
+            String invalidation;
+            while ((invalidation = pending.poll()) != null){
+                batch.add(invalidation);
+            }
+            if (batch.isEmpty()){
+                return;
+            }
+            stringRedisTemplate.convertAndSend(CHANNEL, nodeId + "\n" + String.join("\n", batch));
+        }catch (Exception e){
+            e.printStackTrace();
+        }
     }
 }
@@ -1,5 +1,8 @@
 package com.zc.miaoshaproject.service.impl;
 
+import com.zc.miaoshaproject.cache.CacheRegion;
+import com.zc.miaoshaproject.cache.IdExistenceFilter;
+import com.zc.miaoshaproject.cache.SingleFlightCacheLoader;
 import com.zc.miaoshaproject.dao.ItemDOMapper;
 import com.zc.miaoshaproject.dao.ItemStockDOMapper;
 import com.zc.miaoshaproject.dao.StockLogDOMapper;
@@ -9,19 +12,32 @@ import com.zc.miaoshaproject.dataobject.StockLogDO;
 import com.zc.miaoshaproject.error.BusinessException;
 import com.zc.miaoshaproject.error.EmBusinessError;
 import com.zc.miaoshaproject.mq.MqProducer;
+import com.zc.miaoshaproject.service.CacheService;
 import com.zc.miaoshaproject.service.ItemService;
 import com.zc.miaoshaproject.service.PromoService;
 import com.zc.miaoshaproject.service.model.ItemModel;
 import com.zc.miaoshaproject.service.model.PromoModel;
+import com.zc.miaoshaproject.stock.LocalStockAllocator;
+import com.zc.miaoshaproject.stock.SalesAccumulator;
+import com.zc.miaoshaproject.stock.SoldOutRegistry;
+import com.zc.miaoshaproject.stock.StockBucketRouter;
 import com.zc.miaoshaproject.validator.ValidationResult;
 import com.zc.miaoshaproject.validator.ValidatorImpl;
 import org.springframework.beans.BeanUtils;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
 import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scripting.support.ResourceScriptSource;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
+import javax.annotation.PostConstruct;
 import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.UUID;
 import java.util.concurrent.TimeUnit;
@@ -53,6 +69,47 @@ public class ItemServiceImpl implements ItemService {
     @Autowired
     private StockLogDOMapper stockLogDOMapper;
 
+    @Autowired
+    private LocalStockAllocator localStockAllocator;
+
+    @Autowired
+    private StockBucketRouter stockBucketRouter;
+
+    @Autowired
+    private SoldOutRegistry soldOutRegistry;
+
+    @Autowired
+    private SalesAccumulator salesAccumulator;
+
+    @Autowired
+    private SingleFlightCacheLoader singleFlightCacheLoader;
+
+    @Autowired
+    private IdExistenceFilter idExistenceFilter;
+
+    @Autowired
+    private CacheService cacheService;
+
+    //库存扣减方式 incr:increment扣减,超卖后回补  lua:lua脚本一次往返内校验+扣减+售罄标记
+    //local:从redis批量租借库存到本地,在内存中扣减
+    @Value("${stock.decrease.mode:incr}")
+    private String stockDecreaseMode;
+
+    private DefaultRedisScript<Long> decreaseStockScript;
+
+    //库存拆分时从单个子key取出不超过指定数量的库存
+    private DefaultRedisScript<Long> takeStockScript;
+
+    @PostConstruct
+    public void init(){
+        decreaseStockScript = new DefaultRedisScript<>();
+        decreaseStockScript.setScriptSource(new ResourceScriptSource(new ClassPathResource("lua/decrease_stock.lua")));
+        decreaseStockScript.setResultType(Long.class);
+        takeStockScript = new DefaultRedisScript<>();
+        takeStockScript.setScriptSource(new ResourceScriptSource(new ClassPathResource("lua/lease_stock.lua")));
+        takeStockScript.setResultType(Long.class);
+    }
+
     private ItemDO convertItemDOFromItemModel(ItemModel itemModel){
         if(itemModel == null){
             return null;
@@ -91,6 +148,9 @@ public class ItemServiceImpl implements ItemService {
         ItemStockDO itemStockDO = this.convertItemStockDOFromItemModel(itemModel);
 
         itemStockDOMapper.insertSelective(itemStockDO);
+        idExistenceFilter.addItem(itemModel.getId());
+        //清除之前可能写入的空值标记
+        invalidateItemCache(itemModel.getId());
 
         //返回创建完成的对象
         return this.getItemById(itemModel.getId());
@@ -104,6 +164,15 @@ public class ItemServiceImpl implements ItemService {
             ItemModel itemModel = this.convertModelFromDataObject(itemDO,itemStockDO);
             return itemModel;
         }).collect(Collectors.toList());
+        //销量以redis计数器为准,数据库中的值可能还未写入最新的增量
+        List<Integer> salesList = salesAccumulator.currentSales(itemModelList.stream().map(ItemModel::getId).collect(Collectors.toList()));
+        for (int i = 0; i < itemModelList.size(); i++){
+            if (salesList.get(i) != null){
+                itemModelList.get(i).setSales(salesList.get(i));
+            }
+        }
+        //数据库按旧销量排序,覆盖为最新销量后重新按销量倒序排列
+        itemModelList.sort(Comparator.comparing(ItemModel::getSales, Comparator.nullsLast(Comparator.reverseOrder())));
         return itemModelList;
     }
 
@@ -119,6 +188,7 @@ public class ItemServiceImpl implements ItemService {
 
         //将dataobject->model
         ItemModel itemModel = convertModelFromDataObject(itemDO,itemStockDO);
+        itemModel.setSales(salesAccumulator.currentSales(itemModel.getId(),itemModel.getSales()));
 
         //获取活动商品信息
         PromoModel promoModel = promoService.getPromoByItemId(itemModel.getId());
@@ -130,28 +200,33 @@ public class ItemServiceImpl implements ItemService {
 
     @Override
     public ItemModel getItemByIdInCache(Integer id) {
-        String cacheKey = "item_validate_"+id;
-        ItemModel itemModel = (ItemModel) redisTemplate.opsForValue().get(cacheKey);
-        if (itemModel==null){
-            itemModel = this.getItemById(id);
-            redisTemplate.opsForValue().set(cacheKey,itemModel);
-            redisTemplate.expire(cacheKey,10, TimeUnit.MINUTES);
+        //过滤器判定不存在的商品不再访问redis和数据库
+        if (!idExistenceFilter.mightContainItem(id)){
+            return null;
         }
-
-        return itemModel;
+        return singleFlightCacheLoader.get("item_validate_"+id,10,TimeUnit.MINUTES,() -> this.getItemById(id));
     }
 
     @Override
     @Transactional
     public boolean decreaseStock(Integer itemId, Integer amount) throws BusinessException {
 //        int affectedRow =  itemStockDOMapper.decreaseStock(itemId,amount);
+        if ("lua".equals(stockDecreaseMode)){
+            return decreaseStockByScript(itemId,amount);
+        }
+        if ("local".equals(stockDecreaseMode)){
+            return localStockAllocator.tryDecrease(itemId,amount);
+        }
+        if (stockBucketRouter.isSplit()){
+            return decreaseBucketStock(itemId,amount);
+        }
         long result = redisTemplate.opsForValue().increment("promo_item_stock_"+itemId,amount.intValue() * -1);
         if(result > 0){
             //更新库存成功,且剩余库存合法
             return true;
         }else if(result == 0){
             //扣减后库存为0--做标记(实际情况的数据阈值需要视情况定,比如 奖池40万,随机抽奖减扣奖池,这个数据可能只是一个范围,比如库存小于 10  --->售罄)
-            redisTemplate.opsForValue().set("promo_item_stock_invalid_"+itemId,"true");
+            soldOutRegistry.markSoldOut(itemId);
             //更新库存成功
             return true;
         }else {
@@ -161,16 +236,104 @@ public class ItemServiceImpl implements ItemService {
         }
     }
 
+    //lua脚本扣减:校验、扣减、售罄标记在redis内原子完成,库存不会出现负数,也不再需要回补
+    private boolean decreaseStockByScript(Integer itemId, Integer amount){
+        Long result = (Long) redisTemplate.execute(decreaseStockScript,
+                Arrays.asList("promo_item_stock_"+itemId,"promo_item_stock_invalid_"+itemId),amount);
+        if (result != null && result == 0){
+            //脚本内已写入售罄标识,这里只需广播给各节点
+            soldOutRegistry.broadcastSoldOut(itemId);
+        }
+        return result != null && result >= 0;
+    }
+
+    //库存拆分为多个子key时,从散列到的子key开始扣减,不足则顺延到下一个;
+    //单个子key都不够时跨子key凑齐,仍凑不齐再放回;所有子key都扣完才标记售罄
+    private boolean decreaseBucketStock(Integer itemId, Integer amount){
+        int bucketCount = stockBucketRouter.getBucketCount();
+        int start = stockBucketRouter.startBucket();
+        for (int i = 0; i < bucketCount; i++){
+            String bucketKey = stockBucketRouter.bucketKey(itemId,(start + i) % bucketCount);
+            Long result = (Long) redisTemplate.execute(decreaseStockScript, Collections.singletonList(bucketKey),amount);
+            if (result != null && result >= 0){
+                if (result == 0){
+                    markSoldOutIfEmpty(itemId);
+                }
+                return true;
+            }
+        }
+        if (takeAcrossBuckets(itemId,amount,start)){
+            markSoldOutIfEmpty(itemId);
+            return true;
+        }
+        markSoldOutIfEmpty(itemId);
+        return false;
+    }
+
+    //依次从各子key取出剩余部分,凑不齐时把已取出的放回原子key
+    private boolean takeAcrossBuckets(Integer itemId, int amount, int start){
+        int bucketCount = stockBucketRouter.getBucketCount();
+        long[] taken = new long[bucketCount];
+        long total = 0;
+        for (int i = 0; i < bucketCount && total < amount; i++){
+            int bucket = (start + i) % bucketCount;
+            Long result = (Long) redisTemplate.execute(takeStockScript,
+                    Collections.singletonList(stockBucketRouter.bucketKey(itemId,bucket)),amount - total);
+            taken[bucket] = result == null ? 0 : result;
+            total += taken[bucket];
+        }
+        if (total >= amount){
+            return true;
+        }
+        for (int bucket = 0; bucket < bucketCount; bucket++){
+            if (taken[bucket] > 0){
+                restoreBucketStock(itemId,bucket,taken[bucket]);
+            }
+        }
+        return false;
+    }
+
+    //各子key不是一次检查的,打标识期间可能有库存放回;放回方先加库存再撤销标识,这里先打标识再复查,两边总有一方能看到对方
+    private void markSoldOutIfEmpty(Integer itemId){
+        if (!stockBucketRouter.allEmpty(itemId)){
+            return;
+        }
+        soldOutRegistry.markSoldOut(itemId);
+        if (!stockBucketRouter.allEmpty(itemId)){
+            soldOutRegistry.clearSoldOut(itemId);
+        }
+    }
+
+    //库存放回后重新可用,撤销售罄标识
+    private void restoreBucketStock(Integer itemId, int bucket, long amount){
+        long left = redisTemplate.opsForValue().increment(stockBucketRouter.bucketKey(itemId,bucket),amount);
+        if (left > 0 && soldOutRegistry.isSoldOut(itemId)){
+            soldOutRegistry.clearSoldOut(itemId);
+        }
+    }
+
     @Override
     public boolean increaseStock(Integer itemId, Integer amount) throws BusinessException {
-        redisTemplate.opsForValue().increment("promo_item_stock_"+itemId,amount.intValue());
+        if ("local".equals(stockDecreaseMode)){
+            localStockAllocator.increase(itemId,amount);
+            return true;
+        }
+        if (stockBucketRouter.isSplit()){
+            restoreBucketStock(itemId,stockBucketRouter.startBucket(),amount);
+            return true;
+        }
+        long left = redisTemplate.opsForValue().increment("promo_item_stock_"+itemId,amount.intValue());
+        //超卖回补后仍为0时保持售罄,只有库存重新可用才撤销
+        if (left > 0 && soldOutRegistry.isSoldOut(itemId)){
+            soldOutRegistry.clearSoldOut(itemId);
+        }
         return true;
     }
 
+    //销量先累加到计数器,定时汇总写库
     @Override
-    @Transactional
     public void increaseSales(Integer itemId, Integer amount) throws BusinessException {
-        itemDOMapper.increaseSales(itemId,amount);
+        salesAccumulator.add(itemId,amount);
     }
 
     private ItemModel convertModelFromDataObject(ItemDO itemDO,ItemStockDO itemStockDO){
@@ -182,6 +345,14 @@ public class ItemServiceImpl implements ItemService {
         return itemModel;
     }
 
+    @Override
+    public void invalidateItemCache(Integer itemId) {
+        redisTemplate.delete(Arrays.asList("item_"+itemId,"item_validate_"+itemId));
+        cacheService.evict(CacheRegion.ITEM,String.valueOf(itemId));
+        cacheService.evict(CacheRegion.ITEM_VO,String.valueOf(itemId));
+        cacheService.evict(CacheRegion.ITEM_PAGE,String.valueOf(itemId));
+    }
+
     @Override
     public String initStockLog(Integer itemId, Integer amount) {
         //可以将userid信息关联上
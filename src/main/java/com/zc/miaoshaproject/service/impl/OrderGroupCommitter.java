@@ -0,0 +1,234 @@
+package com.zc.miaoshaproject.service.impl;
+
+import com.zc.miaoshaproject.dao.OrderDOMapper;
+import com.zc.miaoshaproject.dao.StockLogDOMapper;
+import com.zc.miaoshaproject.dataobject.OrderDO;
+import com.zc.miaoshaproject.dataobject.StockLogDO;
+import com.zc.miaoshaproject.error.BusinessException;
+import com.zc.miaoshaproject.error.EmBusinessError;
+import com.zc.miaoshaproject.stock.SalesAccumulator;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 描述:
+ * 订单入库
+ * single:每个订单一个事务  group:收集几毫秒或N个订单后在一个事务中批量写入,
+ * 包括一条多行insert写订单、一条 in (...) 更新库存流水状态;
+ * 整批失败时逐个单独提交,只让有问题的订单失败,每个调用方都拿到自己的结果;
+ * 销量在事务提交后累加到SalesAccumulator,下单事务不再更新item行
+ * @Author: zhangchao
+ * @Date: 9/2/20 10:15 上午
+ **/
+@Component
+public class OrderGroupCommitter {
+
+    @Autowired
+    private OrderDOMapper orderDOMapper;
+
+    @Autowired
+    private SalesAccumulator salesAccumulator;
+
+    @Autowired
+    private StockLogDOMapper stockLogDOMapper;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    //订单入库方式 single/group
+    @Value("${order.persist.mode:single}")
+    private String orderPersistMode;
+
+    //一批最多包含多少个订单
+    @Value("${order.group.commit.max.size:100}")
+    private int maxBatchSize;
+
+    //收到第一个订单后最多再等待多久凑批
+    @Value("${order.group.commit.window.millis:5}")
+    private long windowMillis;
+
+    private final LinkedBlockingQueue<PendingOrder> pendingQueue = new LinkedBlockingQueue<>();
+
+    private TransactionTemplate transactionTemplate;
+
+    private Thread committer;
+
+    private volatile boolean running;
+
+    @PostConstruct
+    public void init(){
+        transactionTemplate = new TransactionTemplate(transactionManager);
+        if (!isGroupMode()){
+            return;
+        }
+        running = true;
+        committer = new Thread(this::runCommitter, "order-group-committer");
+        committer.setDaemon(true);
+        committer.start();
+    }
+
+    @PreDestroy
+    public void destroy(){
+        if (!running){
+            return;
+        }
+        running = false;
+        try {
+            committer.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        PendingOrder pendingOrder;
+        while ((pendingOrder = pendingQueue.poll()) != null){
+            pendingOrder.result.completeExceptionally(new BusinessException(EmBusinessError.UNKNOWN_ERROR,"下单失败"));
+        }
+    }
+
+    public boolean isGroupMode(){
+        return "group".equals(orderPersistMode);
+    }
+
+    //加入下一批提交,阻塞到所在批次提交完成
+    public void commit(OrderDO orderDO, String stockLogId) throws BusinessException {
+        if (!running){
+            throw new BusinessException(EmBusinessError.UNKNOWN_ERROR,"下单失败");
+        }
+        PendingOrder pendingOrder = new PendingOrder(orderDO, stockLogId);
+        pendingQueue.offer(pendingOrder);
+        try {
+            pendingOrder.result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BusinessException(EmBusinessError.UNKNOWN_ERROR,"下单失败");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof BusinessException){
+                throw (BusinessException) e.getCause();
+            }
+            e.printStackTrace();
+            throw new BusinessException(EmBusinessError.UNKNOWN_ERROR,"下单失败");
+        }
+    }
+
+    //单个订单在独立事务中入库
+    public void commitSingle(OrderDO orderDO, String stockLogId) throws BusinessException {
+        Boolean created = transactionTemplate.execute(status -> {
+            StockLogDO stockLogDO = stockLogDOMapper.selectByPrimaryKey(stockLogId);
+            if (stockLogDO == null){
+                return false;
+            }
+            orderDOMapper.insertSelective(orderDO);
+            //设置库存流水状态
+            stockLogDO.setStatus(2);
+            stockLogDOMapper.updateByPrimaryKeySelective(stockLogDO);
+            return true;
+        });
+        if (!Boolean.TRUE.equals(created)){
+            throw new BusinessException(EmBusinessError.UNKNOWN_ERROR,"下单失败");
+        }
+        //加上商品的销量,订单已提交,累加失败不影响下单结果
+        try {
+            salesAccumulator.add(orderDO.getItemId(), orderDO.getAmount());
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void runCommitter(){
+        List<PendingOrder> batch = new ArrayList<>(maxBatchSize);
+        while (running || !pendingQueue.isEmpty()){
+            try {
+                PendingOrder first = pendingQueue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null){
+                    continue;
+                }
+                batch.add(first);
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(windowMillis);
+                while (batch.size() < maxBatchSize){
+                    long remaining = deadline - System.nanoTime();
+                    PendingOrder next = remaining > 0 ? pendingQueue.poll(remaining, TimeUnit.NANOSECONDS) : pendingQueue.poll();
+                    if (next == null){
+                        break;
+                    }
+                    batch.add(next);
+                }
+                commitBatch(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void commitBatch(List<PendingOrder> batch){
+        try {
+            transactionTemplate.execute(status -> {
+                List<OrderDO> orders = new ArrayList<>(batch.size());
+                List<String> stockLogIds = new ArrayList<>(batch.size());
+                for (PendingOrder pendingOrder : batch){
+                    orders.add(pendingOrder.orderDO);
+                    stockLogIds.add(pendingOrder.stockLogId);
+                }
+                orderDOMapper.insertBatch(orders);
+                int updated = stockLogDOMapper.markOrderCreated(stockLogIds);
+                if (updated != stockLogIds.size()){
+                    //有库存流水不存在或状态不对,整批回滚后逐个提交
+                    throw new IllegalStateException("stock log status mismatch, expected " + stockLogIds.size() + " but " + updated);
+                }
+                return null;
+            });
+        } catch (Exception e) {
+            e.printStackTrace();
+            for (PendingOrder pendingOrder : batch){
+                try {
+                    commitSingle(pendingOrder.orderDO, pendingOrder.stockLogId);
+                    pendingOrder.result.complete(null);
+                } catch (Exception ex) {
+                    pendingOrder.result.completeExceptionally(ex);
+                }
+            }
+            return;
+        }
+        //同一商品的销量汇总后累加
+        Map<Integer,Integer> salesMap = new HashMap<>();
+        for (PendingOrder pendingOrder : batch){
+            salesMap.merge(pendingOrder.orderDO.getItemId(), pendingOrder.orderDO.getAmount(), Integer::sum);
+        }
+        for (Map.Entry<Integer,Integer> entry : salesMap.entrySet()){
+            try {
+                salesAccumulator.add(entry.getKey(), entry.getValue());
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+        for (PendingOrder pendingOrder : batch){
+            pendingOrder.result.complete(null);
+        }
+    }
+
+    private static class PendingOrder {
+        private final OrderDO orderDO;
+        private final String stockLogId;
+        private final CompletableFuture<Void> result = new CompletableFuture<>();
+
+        PendingOrder(OrderDO orderDO, String stockLogId){
+            this.orderDO = orderDO;
+            this.stockLogId = stockLogId;
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package com.zc.miaoshaproject.service.impl;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.zc.miaoshaproject.service.OrderResultService;
+import com.zc.miaoshaproject.service.model.OrderResultModel;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 描述:
+ * 下单结果优先存放在本地缓存,超过ttl自动淘汰;
+ * 最终结果同时写入redis,轮询请求落到其他节点时从redis取
+ * @Author: zhangchao
+ * @Date: 8/29/20 10:24 上午
+ **/
+@Service
+public class OrderResultServiceImpl implements OrderResultService {
+
+    //凭证前32位为uuid,后面为生成时间戳,下划线后为userId
+    private static final int UUID_LENGTH = 32;
+
+    private static final char USER_SEPARATOR = '_';
+
+    @Autowired
+    private RedisTemplate redisTemplate;
+
+    //下单结果保留时间
+    @Value("${order.result.ttl.seconds:600}")
+    private int ttlSeconds;
+
+    //本地最多保留的下单结果数量
+    @Value("${order.result.max.size:1000000}")
+    private int maxSize;
+
+    private Cache<String,OrderResultModel> resultCache;
+
+    @PostConstruct
+    public void init(){
+        resultCache = CacheBuilder.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+                .build();
+    }
+
+    @Override
+    public String createTicket(Integer userId) {
+        String ticket = UUID.randomUUID().toString().replace("-","") + System.currentTimeMillis() + USER_SEPARATOR + userId;
+        resultCache.put(ticket, buildResult(ticket, userId, OrderResultModel.PROCESSING, null, null));
+        return ticket;
+    }
+
+    @Override
+    public void success(String ticket, Integer userId) {
+        complete(ticket, userId, OrderResultModel.SUCCESS, null, null);
+    }
+
+    @Override
+    public void fail(String ticket, Integer userId, int errCode, String errMsg) {
+        complete(ticket, userId, OrderResultModel.FAIL, errCode, errMsg);
+    }
+
+    @Override
+    public OrderResultModel getResult(String ticket) {
+        OrderResultModel resultModel = resultCache.getIfPresent(ticket);
+        if (resultModel != null){
+            return resultModel;
+        }
+        resultModel = (OrderResultModel) redisTemplate.opsForValue().get("order_result_"+ticket);
+        if (resultModel != null){
+            return resultModel;
+        }
+        //处理中的结果只在受理节点本地,凭证未过期时视为处理中,userId取自凭证
+        long createTime = parseCreateTime(ticket);
+        if (createTime > 0 && System.currentTimeMillis() - createTime < TimeUnit.SECONDS.toMillis(ttlSeconds)){
+            return buildResult(ticket, parseUserId(ticket), OrderResultModel.PROCESSING, null, null);
+        }
+        return null;
+    }
+
+    //userId由调用方传入,不依赖本地处理中的记录(可能已被淘汰)
+    private void complete(String ticket, Integer userId, int status, Integer errCode, String errMsg){
+        OrderResultModel resultModel = buildResult(ticket, userId, status, errCode, errMsg);
+        resultCache.put(ticket, resultModel);
+
+        String cacheKey = "order_result_"+ticket;
+        redisTemplate.opsForValue().set(cacheKey, resultModel);
+        redisTemplate.expire(cacheKey, ttlSeconds, TimeUnit.SECONDS);
+    }
+
+    private long parseCreateTime(String ticket){
+        int separator = ticket == null ? -1 : ticket.indexOf(USER_SEPARATOR);
+        if (separator <= UUID_LENGTH){
+            return -1;
+        }
+        try {
+            return Long.parseLong(ticket.substring(UUID_LENGTH, separator));
+        }catch (NumberFormatException e){
+            return -1;
+        }
+    }
+
+    private Integer parseUserId(String ticket){
+        try {
+            return Integer.valueOf(ticket.substring(ticket.indexOf(USER_SEPARATOR) + 1));
+        }catch (NumberFormatException e){
+            return null;
+        }
+    }
+
+    private OrderResultModel buildResult(String ticket, Integer userId, int status, Integer errCode, String errMsg){
+        OrderResultModel resultModel = new OrderResultModel();
+        resultModel.setTicket(ticket);
+        resultModel.setUserId(userId);
+        resultModel.setStatus(status);
+        resultModel.setErrCode(errCode);
+        resultModel.setErrMsg(errMsg);
+        return resultModel;
+    }
+}
@@ -1,14 +1,13 @@
 package com.zc.miaoshaproject.service.impl;
 
 import com.zc.miaoshaproject.dao.OrderDOMapper;
-import com.zc.miaoshaproject.dao.SequenceDOMapper;
 import com.zc.miaoshaproject.dao.StockLogDOMapper;
 import com.zc.miaoshaproject.dataobject.OrderDO;
-import com.zc.miaoshaproject.dataobject.SequenceDO;
-import com.zc.miaoshaproject.dataobject.StockLogDO;
 import com.zc.miaoshaproject.error.BusinessException;
 import com.zc.miaoshaproject.error.EmBusinessError;
 import com.zc.miaoshaproject.mq.MqProducer;
+import com.zc.miaoshaproject.sequence.SegmentSequenceAllocator;
+import com.zc.miaoshaproject.sequence.SnowflakeIdGenerator;
 import com.zc.miaoshaproject.service.ItemService;
 import com.zc.miaoshaproject.service.OrderService;
 import com.zc.miaoshaproject.service.UserService;
@@ -16,9 +15,8 @@ import com.zc.miaoshaproject.service.model.ItemModel;
 import com.zc.miaoshaproject.service.model.OrderModel;
 import org.springframework.beans.BeanUtils;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
-import org.springframework.transaction.annotation.Propagation;
-import org.springframework.transaction.annotation.Transactional;
 
 import java.math.BigDecimal;
 import java.time.LocalDateTime;
@@ -30,7 +28,14 @@ import java.time.format.DateTimeFormatter;
 public class OrderServiceImpl implements OrderService {
 
     @Autowired
-    private SequenceDOMapper sequenceDOMapper;
+    private SegmentSequenceAllocator segmentSequenceAllocator;
+
+    @Autowired
+    private SnowflakeIdGenerator snowflakeIdGenerator;
+
+    //订单号生成方式 sequence:日期+数据库号段序列  snowflake:雪花算法,不依赖数据库
+    @Value("${order.no.generator:sequence}")
+    private String orderNoGenerator;
 
     @Autowired
     private ItemService itemService;
@@ -47,8 +52,11 @@ public class OrderServiceImpl implements OrderService {
     @Autowired
     private StockLogDOMapper stockLogDOMapper;
 
+    @Autowired
+    private OrderGroupCommitter orderGroupCommitter;
+
+    //数据库写入在OrderGroupCommitter的事务中完成,这里不再开启事务,避免凑批等待期间占用数据库连接
     @Override
-    @Transactional
     public OrderModel createOrder(Integer userId, Integer itemId, Integer promoId, Integer amount, String stockLogId) throws BusinessException {
         //1.校验下单状态,下单的商品是否存在，用户是否合法，购买数量是否正确
         ItemModel itemModel = itemService.getItemByIdInCache(itemId);
@@ -98,20 +106,15 @@ public class OrderServiceImpl implements OrderService {
         orderModel.setOrderPrice(orderModel.getItemPrice().multiply(new BigDecimal(amount)));
 
         //生成交易流水号,订单号
-        orderModel.setId(generateOrderNo());
+        orderModel.setId(generateOrderNo(userId));
         OrderDO orderDO = convertFromOrderModel(orderModel);
-        orderDOMapper.insertSelective(orderDO);
-
-        //加上商品的销量
-        itemService.increaseSales(itemId,amount);
 
-        //设置库存流水状态
-        StockLogDO stockLogDO = stockLogDOMapper.selectByPrimaryKey(stockLogId);
-        if (stockLogDO==null){
-            throw new BusinessException(EmBusinessError.UNKNOWN_ERROR,"下单失败");
+        //订单入库,加上商品的销量,设置库存流水状态
+        if (orderGroupCommitter.isGroupMode()){
+            orderGroupCommitter.commit(orderDO, stockLogId);
+        }else {
+            orderGroupCommitter.commitSingle(orderDO, stockLogId);
         }
-        stockLogDO.setStatus(2);
-        stockLogDOMapper.updateByPrimaryKeySelective(stockLogDO);
 
         //事务提交成功后,异步执行的任务
 //        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
@@ -134,8 +137,10 @@ public class OrderServiceImpl implements OrderService {
     }
 
 
-    @Transactional(propagation = Propagation.REQUIRES_NEW)
-    private String generateOrderNo(){
+    private String generateOrderNo(Integer userId){
+        if ("snowflake".equals(orderNoGenerator)){
+            return generateSnowflakeOrderNo(userId);
+        }
         //订单号有16位
         StringBuilder stringBuilder = new StringBuilder();
         //前8位为时间信息，年月日
@@ -144,12 +149,8 @@ public class OrderServiceImpl implements OrderService {
         stringBuilder.append(nowDate);
 
         //中间6位为自增序列
-        //获取当前sequence
-        int sequence = 0;
-        SequenceDO sequenceDO =  sequenceDOMapper.getSequenceByName("order_info");
-        sequence = sequenceDO.getCurrentValue();
-        sequenceDO.setCurrentValue(sequenceDO.getCurrentValue() + sequenceDO.getStep());
-        sequenceDOMapper.updateByPrimaryKeySelective(sequenceDO);
+        //从本地号段获取当前sequence,号段用完时在独立事务中领取下一段
+        int sequence = segmentSequenceAllocator.next("order_info");
         String sequenceStr = String.valueOf(sequence);
         for(int i = 0; i < 6-sequenceStr.length();i++){
             stringBuilder.append(0);
@@ -162,6 +163,19 @@ public class OrderServiceImpl implements OrderService {
 
         return stringBuilder.toString();
     }
+
+    //雪花id + 2位分库分表位(取userId后两位),同一用户的订单落在同一分片
+    private String generateSnowflakeOrderNo(Integer userId){
+        int shard = userId == null ? 0 : Math.abs(userId % 100);
+        StringBuilder stringBuilder = new StringBuilder(21);
+        stringBuilder.append(snowflakeIdGenerator.nextId());
+        if (shard < 10){
+            stringBuilder.append(0);
+        }
+        stringBuilder.append(shard);
+        return stringBuilder.toString();
+    }
+
     private OrderDO convertFromOrderModel(OrderModel orderModel){
         if(orderModel == null){
             return null;
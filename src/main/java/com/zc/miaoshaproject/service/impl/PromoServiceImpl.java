@@ -2,19 +2,23 @@ package com.zc.miaoshaproject.service.impl;
 
 import com.zc.miaoshaproject.dao.PromoDOMapper;
 import com.zc.miaoshaproject.dataobject.PromoDO;
+import com.zc.miaoshaproject.promo.DoorCountAllocator;
+import com.zc.miaoshaproject.promo.PromoRegistry;
+import com.zc.miaoshaproject.promo.PromoTokenSigner;
 import com.zc.miaoshaproject.service.ItemService;
 import com.zc.miaoshaproject.service.PromoService;
 import com.zc.miaoshaproject.service.UserService;
 import com.zc.miaoshaproject.service.model.ItemModel;
 import com.zc.miaoshaproject.service.model.PromoModel;
 import com.zc.miaoshaproject.service.model.UserModel;
+import com.zc.miaoshaproject.stock.SoldOutRegistry;
+import com.zc.miaoshaproject.stock.StockBucketRouter;
 import org.joda.time.DateTime;
-import org.springframework.beans.BeanUtils;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.stereotype.Service;
 
-import java.math.BigDecimal;
 import java.util.UUID;
 import java.util.concurrent.TimeUnit;
 
@@ -35,26 +39,29 @@ public class PromoServiceImpl implements PromoService {
     @Autowired
     private UserService userService;
 
-    @Override
-    public PromoModel getPromoByItemId(Integer itemId) {
-        //获取对应商品的秒杀活动信息
-        PromoDO promoDO = promoDOMapper.selectByItemId(itemId);
+    @Autowired
+    private StockBucketRouter stockBucketRouter;
 
-        //dataobject->model
-        PromoModel promoModel = convertFromDataObject(promoDO);
-        if(promoModel == null){
-            return null;
-        }
+    @Autowired
+    private SoldOutRegistry soldOutRegistry;
 
-        //判断当前时间是否秒杀活动即将开始或正在进行
-        if(promoModel.getStartDate().isAfterNow()){
-            promoModel.setStatus(1);
-        }else if(promoModel.getEndDate().isBeforeNow()){
-            promoModel.setStatus(3);
-        }else{
-            promoModel.setStatus(2);
-        }
-        return promoModel;
+    @Autowired
+    private PromoRegistry promoRegistry;
+
+    @Autowired
+    private DoorCountAllocator doorCountAllocator;
+
+    @Autowired
+    private PromoTokenSigner promoTokenSigner;
+
+    //大闸扣减方式 global:每次令牌请求扣减redis中的计数  lease:节点批量租借许可后在本地扣减
+    @Value("${promo.door.count.mode:global}")
+    private String doorCountMode;
+
+    @Override
+    public PromoModel getPromoByItemId(Integer itemId) {
+        //从内存中获取对应商品即将开始或正在进行的秒杀活动,状态由定时任务按开始/结束时间切换
+        return promoRegistry.getPromoByItemId(itemId);
     }
 
     @Override
@@ -66,48 +73,48 @@ public class PromoServiceImpl implements PromoService {
         }
         ItemModel itemModel = itemService.getItemById(promoDO.getItemId());
 
-        //将库存同步到redis内
-        redisTemplate.opsForValue().set("promo_item_stock_"+itemModel.getId(), itemModel.getStock());
+        //将库存同步到redis内,配置了拆分则分散写入各个子key
+        if (stockBucketRouter.isSplit()){
+            stockBucketRouter.publish(itemModel.getId(), itemModel.getStock());
+        }else {
+            redisTemplate.opsForValue().set("promo_item_stock_"+itemModel.getId(), itemModel.getStock());
+        }
+
+        //重新发布后库存可用,撤销之前的售罄标识
+        soldOutRegistry.clearSoldOut(itemModel.getId());
 
         //将大闸的限制数字设置到redis(令牌分发时使用)  具体规则需要根据实际情况调整
         redisTemplate.opsForValue().set("promo_door_count_"+promoId,itemModel.getStock().intValue()*5);
+
+        //记录已发布,活动预热时不再重复发布(活动进行中重复发布会用数据库库存覆盖redis库存)
+        String publishedKey = "promo_published_"+promoId;
+        redisTemplate.opsForValue().set(publishedKey,"true");
+        redisTemplate.expireAt(publishedKey,new DateTime(promoDO.getEndDate()).plusDays(1).toDate());
+
+        //通知各节点重新加载活动信息
+        promoRegistry.publishChange(promoId);
+
+        //商品缓存中聚合了活动信息,重新加载
+        itemService.invalidateItemCache(itemModel.getId());
     }
 
-    private PromoModel convertFromDataObject(PromoDO promoDO){
-        if(promoDO == null){
-            return null;
-        }
-        PromoModel promoModel = new PromoModel();
-        BeanUtils.copyProperties(promoDO,promoModel);
-        promoModel.setPromoItemPrice(new BigDecimal(promoDO.getPromoItemPrice()));
-        promoModel.setStartDate(new DateTime(promoDO.getStartDate()));
-        promoModel.setEndDate(new DateTime(promoDO.getEndDate()));
-        return promoModel;
+    @Override
+    public boolean isPromoPublished(Integer promoId) {
+        return redisTemplate.hasKey("promo_published_"+promoId);
     }
 
     @Override
     public String generateSecondKillToken(Integer promoId, Integer itemId, Integer userId) {
         //0.校验库存
-        //缓存查询是否售罄
-        if(redisTemplate.hasKey("promo_item_stock_invalid_"+itemId)){
+        //查询是否售罄,已售罄的商品在本地内存中直接拒绝
+        if(soldOutRegistry.isSoldOut(itemId)){
            return null;
         }
-        //1.校验活动
-        PromoDO promoDO = promoDOMapper.selectByPrimaryKey(promoId);
-
-        //dataobject->model
-        PromoModel promoModel = convertFromDataObject(promoDO);
+        //1.校验活动,从内存中获取,不访问数据库
+        PromoModel promoModel = promoRegistry.getPromo(promoId);
         if(promoModel == null){
             return null;
         }
-        //判断当前时间是否秒杀活动即将开始或正在进行
-        if(promoModel.getStartDate().isAfterNow()){
-            promoModel.setStatus(1);
-        }else if(promoModel.getEndDate().isBeforeNow()){
-            promoModel.setStatus(3);
-        }else{
-            promoModel.setStatus(2);
-        }
         //判断活动是否正在进行
         if(promoModel.getStatus().intValue() != 2){
             return null;
@@ -126,12 +133,23 @@ public class PromoServiceImpl implements PromoService {
         }
 
         //4.校验秒杀大闸的count数量
-        Long count = redisTemplate.opsForValue().increment("promo_door_count_" + promoId, -1);
-        // 边界数值需要根据实际业务场景定,比如:红包雨红包是随机金额,这个界限
-        if (count<0){
-            return null;
+        if ("lease".equals(doorCountMode)){
+            //本地许可用完再批量租借,全局许可发完后直接在本地拒绝
+            if (!doorCountAllocator.tryAcquire(promoId)){
+                return null;
+            }
+        }else {
+            Long count = redisTemplate.opsForValue().increment("promo_door_count_" + promoId, -1);
+            // 边界数值需要根据实际业务场景定,比如:红包雨红包是随机金额,这个界限
+            if (count<0){
+                return null;
+            }
         }
         //生成token
+        if (promoTokenSigner.isEnabled()){
+            //无状态签名令牌,不写redis
+            return promoTokenSigner.sign(promoId,userId,itemId);
+        }
         String cacheKey ="promo_token_"+promoId+"_userid_"+userId+"_itemid_"+itemId;
         String token = UUID.randomUUID().toString().replace("-","");
         redisTemplate.opsForValue().set(cacheKey,token);
@@ -1,11 +1,15 @@
 package com.zc.miaoshaproject.service.impl;
 
+import com.zc.miaoshaproject.cache.CacheRegion;
+import com.zc.miaoshaproject.cache.IdExistenceFilter;
+import com.zc.miaoshaproject.cache.SingleFlightCacheLoader;
 import com.zc.miaoshaproject.dao.UserDOMapper;
 import com.zc.miaoshaproject.dao.UserPasswordDOMapper;
 import com.zc.miaoshaproject.dataobject.UserDO;
 import com.zc.miaoshaproject.dataobject.UserPasswordDO;
 import com.zc.miaoshaproject.error.BusinessException;
 import com.zc.miaoshaproject.error.EmBusinessError;
+import com.zc.miaoshaproject.service.CacheService;
 import com.zc.miaoshaproject.service.UserService;
 import com.zc.miaoshaproject.service.model.UserModel;
 import com.zc.miaoshaproject.validator.ValidationResult;
@@ -14,10 +18,10 @@ import org.apache.commons.lang3.StringUtils;
 import org.springframework.beans.BeanUtils;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.dao.DuplicateKeyException;
-import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
+import javax.annotation.PostConstruct;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -35,7 +39,20 @@ public class UserServiceImpl implements UserService {
     private ValidatorImpl validator;
 
     @Autowired
-    private RedisTemplate redisTemplate;
+    private SingleFlightCacheLoader singleFlightCacheLoader;
+
+    @Autowired
+    private IdExistenceFilter idExistenceFilter;
+
+    @Autowired
+    private CacheService cacheService;
+
+    @PostConstruct
+    public void init(){
+        //本地缓存未命中时从redis取,redis不存在时单飞回源数据库
+        cacheService.registerLoader(CacheRegion.USER, key ->
+                singleFlightCacheLoader.get("user_validate_"+key,10,TimeUnit.MINUTES,() -> this.getUserById(Integer.valueOf(key))));
+    }
 
     @Override
     public UserModel getUserById(Integer id) {
@@ -52,14 +69,11 @@ public class UserServiceImpl implements UserService {
 
     @Override
     public UserModel getUserByIdInCache(Integer id) {
-        String cacheKey = "user_validate_"+id;
-        UserModel userModel = (UserModel) redisTemplate.opsForValue().get(cacheKey);
-        if(userModel==null){
-            userModel = this.getUserById(id);
-            redisTemplate.opsForValue().set(cacheKey,userModel);
-            redisTemplate.expire(cacheKey,10, TimeUnit.MINUTES);
+        //过滤器判定不存在的用户不再访问redis和数据库
+        if (!idExistenceFilter.mightContainUser(id)){
+            return null;
         }
-        return userModel;
+        return (UserModel) cacheService.load(CacheRegion.USER,String.valueOf(id));
     }
 
     @Override
@@ -89,6 +103,7 @@ public class UserServiceImpl implements UserService {
 
         UserPasswordDO userPasswordDO = convertPasswordFromModel(userModel);
         userPasswordDOMapper.insertSelective(userPasswordDO);
+        idExistenceFilter.addUser(userModel.getId());
 
         return;
     }
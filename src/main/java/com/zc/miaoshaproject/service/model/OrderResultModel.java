@@ -0,0 +1,67 @@
+package com.zc.miaoshaproject.service.model;
+
+import java.io.Serializable;
+
+/**
+ */
+//异步下单的处理结果
+public class OrderResultModel implements Serializable {
+
+    public static final int PROCESSING = 0;
+    public static final int SUCCESS = 1;
+    public static final int FAIL = 2;
+
+    //下单凭证
+    private String ticket;
+
+    //下单的用户id,为空表示本节点与redis中都还没有结果
+    private Integer userId;
+
+    //0表示处理中，1表示下单成功，2表示下单失败
+    private Integer status;
+
+    //下单失败时的错误码与错误信息
+    private Integer errCode;
+
+    private String errMsg;
+
+    public String getTicket() {
+        return ticket;
+    }
+
+    public void setTicket(String ticket) {
+        this.ticket = ticket;
+    }
+
+    public Integer getUserId() {
+        return userId;
+    }
+
+    public void setUserId(Integer userId) {
+        this.userId = userId;
+    }
+
+    public Integer getStatus() {
+        return status;
+    }
+
+    public void setStatus(Integer status) {
+        this.status = status;
+    }
+
+    public Integer getErrCode() {
+        return errCode;
+    }
+
+    public void setErrCode(Integer errCode) {
+        this.errCode = errCode;
+    }
+
+    public String getErrMsg() {
+        return errMsg;
+    }
+
+    public void setErrMsg(String errMsg) {
+        this.errMsg = errMsg;
+    }
+}
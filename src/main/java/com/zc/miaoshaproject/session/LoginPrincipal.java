@@ -0,0 +1,42 @@
+package com.zc.miaoshaproject.session;
+
+/**
+ * 描述:
+ * 登录凭证对应的精简用户信息,只包含下单链路需要的字段,不含密码
+ * @Author: zhangchao
+ * @Date: 9/8/20 10:10 上午
+ **/
+public class LoginPrincipal {
+
+    private final Integer id;
+
+    private final String name;
+
+    private final String telphone;
+
+    //对应redis中登录凭证的过期时间
+    private final long expireTime;
+
+    public LoginPrincipal(Integer id, String name, String telphone, long expireTime) {
+        this.id = id;
+        this.name = name;
+        this.telphone = telphone;
+        this.expireTime = expireTime;
+    }
+
+    public Integer getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getTelphone() {
+        return telphone;
+    }
+
+    public long getExpireTime() {
+        return expireTime;
+    }
+}
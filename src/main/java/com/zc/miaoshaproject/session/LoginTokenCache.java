@@ -0,0 +1,125 @@
+package com.zc.miaoshaproject.session;
+
+import com.zc.miaoshaproject.cache.CacheRegion;
+import com.zc.miaoshaproject.service.CacheService;
+import com.zc.miaoshaproject.service.model.UserModel;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 描述:
+ * 登录凭证本地缓存
+ * 登录凭证 -> 精简用户信息,存放在本地缓存的session区域,过期时间与redis中的登录凭证一致;
+ * 同一用户的后续请求不再访问redis和反序列化UserModel;
+ * 退出登录通过本地缓存的淘汰广播失效,修改密码时通过redis pub/sub通知各节点按用户失效
+ * @Author: zhangchao
+ * @Date: 9/8/20 10:25 上午
+ **/
+@Component
+public class LoginTokenCache implements MessageListener {
+
+    public static final String CHANNEL = "login_token_invalid";
+
+    private static final String USER_PREFIX = "user:";
+
+    private static final String USER_TOKENS_KEY_PREFIX = "login_tokens_";
+
+    @Autowired
+    private RedisTemplate redisTemplate;
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    //复用@EnableRedisHttpSession注册的监听容器
+    @Autowired
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    @Autowired
+    private CacheService cacheService;
+
+    //登录凭证在redis中的有效期,本地缓存不会超过该时间
+    @Value("${login.token.ttl.minutes:60}")
+    private int ttlMinutes;
+
+    @PostConstruct
+    public void init(){
+        redisMessageListenerContainer.addMessageListener(this, new ChannelTopic(CHANNEL));
+    }
+
+    //登录成功后写入redis,同时记录该用户的登录凭证,修改密码时统一失效
+    public void login(String token, UserModel userModel){
+        redisTemplate.opsForValue().set(token,userModel);
+        redisTemplate.expire(token,ttlMinutes, TimeUnit.MINUTES);
+        String userTokensKey = USER_TOKENS_KEY_PREFIX + userModel.getId();
+        stringRedisTemplate.opsForSet().add(userTokensKey, token);
+        stringRedisTemplate.expire(userTokensKey, ttlMinutes, TimeUnit.MINUTES);
+    }
+
+    //获取登录用户,未登录或已过期返回null
+    public LoginPrincipal get(String token){
+        LoginPrincipal principal = (LoginPrincipal) cacheService.get(CacheRegion.SESSION, token);
+        long now = System.currentTimeMillis();
+        if (principal != null){
+            if (principal.getExpireTime() > now){
+                return principal;
+            }
+            //已过期,条目随区域过期时间淘汰
+            return null;
+        }
+        UserModel userModel = (UserModel) redisTemplate.opsForValue().get(token);
+        if (userModel == null){
+            return null;
+        }
+        Long expireMillis = redisTemplate.getExpire(token, TimeUnit.MILLISECONDS);
+        if (expireMillis == null || expireMillis == -2){
+            return null;
+        }
+        //没有设置过期时间的按最长有效期处理
+        long ttl = expireMillis < 0 ? TimeUnit.MINUTES.toMillis(ttlMinutes) : expireMillis;
+        principal = new LoginPrincipal(userModel.getId(), userModel.getName(), userModel.getTelphone(), now + ttl);
+        cacheService.put(CacheRegion.SESSION, token, principal);
+        return principal;
+    }
+
+    //退出登录
+    public void logout(String token){
+        redisTemplate.delete(token);
+        cacheService.evict(CacheRegion.SESSION, token);
+    }
+
+    //修改密码等场景下使该用户所有的登录凭证失效
+    public void invalidateUser(Integer userId){
+        String userTokensKey = USER_TOKENS_KEY_PREFIX + userId;
+        Set<String> tokens = stringRedisTemplate.opsForSet().members(userTokensKey);
+        if (tokens != null && !tokens.isEmpty()){
+            redisTemplate.delete(tokens);
+        }
+        stringRedisTemplate.delete(userTokensKey);
+        removeUser(userId);
+        stringRedisTemplate.convertAndSend(CHANNEL, USER_PREFIX + userId);
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        if (body.startsWith(USER_PREFIX)){
+            removeUser(Integer.valueOf(body.substring(USER_PREFIX.length())));
+        }
+    }
+
+    private void removeUser(Integer userId){
+        cacheService.evictLocalIf(CacheRegion.SESSION, value -> userId.equals(((LoginPrincipal) value).getId()));
+    }
+}
@@ -0,0 +1,428 @@
+package com.zc.miaoshaproject.stock;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.scripting.support.ResourceScriptSource;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 描述:
+ * 本地库存预分配
+ * 每个节点按批次从redis租借库存,放入按cpu分段的本地计数器中,扣减直接在内存完成;
+ * 剩余量低于阈值时后台预先补货,长时间无人扣减(活动结束)或应用关闭时把未用完的库存归还redis;
+ * 各节点手里的库存记录在redis hash中,全局库存与所有节点的租借都用完才打售罄标识,
+ * 全局库存为空但其他节点仍持有租借时,广播通知空闲节点提前归还;
+ * 库存拆分时每个子key各有一个同hash tag的租借记录hash,本节点的记录只放在最近一次租到库存的子key下,
+ * 租借、记录和检查都在单个slot内完成,可以在redis集群中执行
+ * @Author: zhangchao
+ * @Date: 8/24/20 4:10 下午
+ **/
+@Component
+public class LocalStockAllocator implements MessageListener {
+
+    public static final String RECLAIM_CHANNEL = "promo_item_stock_reclaim";
+
+    private static final String LEASED_KEY_PREFIX = "promo_item_stock_leased_";
+
+    //分段之间间隔8个long(64字节),避免伪共享
+    private static final int PAD = 8;
+
+    //全局库存为空后,间隔多久再去redis确认一次(其他节点可能归还了库存)
+    private static final long EXHAUSTED_RECHECK_MILLIS = 1000;
+
+    @Autowired
+    private RedisTemplate redisTemplate;
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    //复用@EnableRedisHttpSession注册的监听容器
+    @Autowired
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    @Autowired
+    private StockBucketRouter stockBucketRouter;
+
+    @Autowired
+    private SoldOutRegistry soldOutRegistry;
+
+    //每次从redis租借的数量
+    @Value("${stock.local.lease.size:100}")
+    private int leaseSize;
+
+    //本地剩余量低于租借数量的百分之多少时后台补货
+    @Value("${stock.local.refill.percent:20}")
+    private int refillPercent;
+
+    //多少秒无人扣减则把本地库存归还redis
+    @Value("${stock.local.idle.seconds:60}")
+    private int idleSeconds;
+
+    private final Map<Integer,LocalStock> stockMap = new ConcurrentHashMap<>();
+
+    //本节点标识,用于租借记录和忽略自己发出的归还通知
+    private final String nodeId = UUID.randomUUID().toString();
+
+    private final AtomicLong leaseSeq = new AtomicLong();
+
+    private int stripes;
+
+    private ScheduledExecutorService scheduler;
+
+    private DefaultRedisScript<Long> leaseScript;
+
+    private DefaultRedisScript<Long> returnScript;
+
+    private DefaultRedisScript<Long> settleScript;
+
+    @PostConstruct
+    public void init(){
+        int n = 1;
+        while (n < Runtime.getRuntime().availableProcessors()){
+            n <<= 1;
+        }
+        stripes = n;
+
+        leaseScript = new DefaultRedisScript<>();
+        leaseScript.setScriptSource(new ResourceScriptSource(new ClassPathResource("lua/lease_stock.lua")));
+        leaseScript.setResultType(Long.class);
+        returnScript = new DefaultRedisScript<>();
+        returnScript.setScriptSource(new ResourceScriptSource(new ClassPathResource("lua/return_stock.lua")));
+        returnScript.setResultType(Long.class);
+        settleScript = new DefaultRedisScript<>();
+        settleScript.setScriptSource(new ResourceScriptSource(new ClassPathResource("lua/settle_lease.lua")));
+        settleScript.setResultType(Long.class);
+
+        redisMessageListenerContainer.addMessageListener(this, new ChannelTopic(RECLAIM_CHANNEL));
+
+        scheduler = Executors.newScheduledThreadPool(2);
+        scheduler.scheduleWithFixedDelay(this::releaseIdle, idleSeconds, Math.max(1, idleSeconds / 4), TimeUnit.SECONDS);
+    }
+
+    //从本地扣减库存,本地不足时同步向redis租借一次
+    public boolean tryDecrease(Integer itemId, int amount){
+        LocalStock stock = stockMap.computeIfAbsent(itemId, id -> new LocalStock());
+        stock.lastAccess = System.currentTimeMillis();
+        if (stock.tryTake(amount)){
+            refillIfNeeded(itemId, stock);
+            return true;
+        }
+        synchronized (stock){
+            if (stock.released){
+                return tryDecrease(itemId, amount);
+            }
+            if (stock.takeCombined(amount)){
+                return true;
+            }
+            if (stock.exhaustedAt + EXHAUSTED_RECHECK_MILLIS > System.currentTimeMillis()){
+                return false;
+            }
+            long leased = lease(itemId, stock, Math.max(leaseSize, amount));
+            if (leased <= 0){
+                stock.exhaustedAt = System.currentTimeMillis();
+                if (stock.sum() == 0 && !markSoldOutIfDrained(itemId, stock)){
+                    //其他节点手里还有库存,通知空闲的节点归还
+                    stringRedisTemplate.convertAndSend(RECLAIM_CHANNEL, nodeId + ":" + itemId);
+                }
+                return false;
+            }
+            stock.add(leased);
+            return stock.takeCombined(amount);
+        }
+    }
+
+    //库存回补到本地
+    public void increase(Integer itemId, int amount){
+        LocalStock stock = stockMap.get(itemId);
+        if (stock != null){
+            synchronized (stock){
+                //见过全局库存为空时,本节点的租借记录可能已是0,直接还给redis,避免售罄判断漏掉这部分库存
+                if (!stock.released && stock.exhaustedAt == 0){
+                    stock.add(amount);
+                    return;
+                }
+            }
+        }
+        giveBack(itemId, amount);
+    }
+
+    //把本地未用完的库存归还redis
+    public void release(Integer itemId){
+        LocalStock stock = stockMap.remove(itemId);
+        if (stock == null){
+            return;
+        }
+        long left;
+        synchronized (stock){
+            stock.released = true;
+            left = stock.drain();
+        }
+        returnLease(itemId, stock, left);
+    }
+
+    //其他节点租不到库存时通知归还,只归还一段时间内没有扣减的商品,正在扣减的节点用完后自然会更新租借记录
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        int split = body.lastIndexOf(':');
+        if (split < 0 || nodeId.equals(body.substring(0, split))){
+            return;
+        }
+        Integer itemId = Integer.valueOf(body.substring(split + 1));
+        LocalStock stock = stockMap.get(itemId);
+        if (stock != null && stock.lastAccess + EXHAUSTED_RECHECK_MILLIS < System.currentTimeMillis()){
+            scheduler.execute(() -> release(itemId));
+        }
+    }
+
+    @PreDestroy
+    public void destroy(){
+        scheduler.shutdownNow();
+        for (Integer itemId : stockMap.keySet()){
+            release(itemId);
+        }
+    }
+
+    private void releaseIdle(){
+        long deadline = System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(idleSeconds);
+        for (Map.Entry<Integer,LocalStock> entry : stockMap.entrySet()){
+            if (entry.getValue().lastAccess < deadline){
+                release(entry.getKey());
+            }
+        }
+    }
+
+    private void refillIfNeeded(Integer itemId, LocalStock stock){
+        if (stock.sum() * 100 >= (long) leaseSize * refillPercent
+                || stock.exhaustedAt + EXHAUSTED_RECHECK_MILLIS > System.currentTimeMillis()
+                || !stock.refilling.compareAndSet(false, true)){
+            return;
+        }
+        scheduler.execute(() -> {
+            try {
+                //在锁内租借,记录到redis的本地剩余量不会漏掉并发回补的库存
+                synchronized (stock){
+                    if (stock.released){
+                        return;
+                    }
+                    long leased = lease(itemId, stock, leaseSize);
+                    if (leased > 0){
+                        stock.add(leased);
+                    }else {
+                        stock.exhaustedAt = System.currentTimeMillis();
+                    }
+                }
+            }catch (Exception e){
+                e.printStackTrace();
+            }finally {
+                stock.refilling.set(false);
+            }
+        });
+    }
+
+    //租借并记录本节点手里的库存,需在stock锁内调用
+    //库存做了拆分时依次从各个子key租借,直到租到为止,记录随租借写到该子key对应的hash中,再删除之前子key下的旧记录
+    private long lease(Integer itemId, LocalStock stock, int size){
+        long local = stock.sum();
+        if (!stockBucketRouter.isSplit()){
+            Long leased = (Long) redisTemplate.execute(leaseScript,
+                    Arrays.asList("promo_item_stock_"+itemId, LEASED_KEY_PREFIX+itemId), size, stock.leaseId, local);
+            return leased == null ? 0 : leased;
+        }
+        int bucketCount = stockBucketRouter.getBucketCount();
+        int start = stockBucketRouter.startBucket();
+        for (int i = 0; i < bucketCount; i++){
+            int bucket = (start + i) % bucketCount;
+            Long leased = (Long) redisTemplate.execute(leaseScript,
+                    Arrays.asList(stockBucketRouter.bucketKey(itemId, bucket), leasedBucketKey(itemId, bucket)), size, stock.leaseId, local);
+            if (leased != null && leased > 0){
+                //新记录已写入,旧记录晚一步删除,期间重复计数只会推迟售罄判断,不会漏掉库存
+                if (stock.recordBucket >= 0 && stock.recordBucket != bucket){
+                    settleBucket(itemId, stock.recordBucket, stock, 0, false);
+                }
+                stock.recordBucket = bucket;
+                return leased;
+            }
+        }
+        return 0;
+    }
+
+    //全局库存与所有节点的租借都已用完时打售罄标识并广播,本节点剩余量需为0
+    private boolean markSoldOutIfDrained(Integer itemId, LocalStock stock){
+        if (!stockBucketRouter.isSplit()){
+            Long result = (Long) redisTemplate.execute(settleScript,
+                    Arrays.asList(LEASED_KEY_PREFIX+itemId, "promo_item_stock_"+itemId, "promo_item_stock_invalid_"+itemId),
+                    stock.leaseId, 0, 1);
+            if (result == null || result != 1){
+                return false;
+            }
+            //售罄标识已由脚本写入,只需广播
+            soldOutRegistry.broadcastSoldOut(itemId);
+            return true;
+        }
+        //逐个子key在各自的slot内删除本节点记录并检查
+        stock.recordBucket = -1;
+        if (!allBucketsDrained(itemId, stock)){
+            return false;
+        }
+        soldOutRegistry.markSoldOut(itemId);
+        //各子key不是一次检查的,打标识期间可能有库存归还;归还方先加库存再撤销标识,这里先打标识再复查,两边总有一方能看到对方
+        if (!allBucketsDrained(itemId, stock)){
+            soldOutRegistry.clearSoldOut(itemId);
+            return false;
+        }
+        return true;
+    }
+
+    private boolean allBucketsDrained(Integer itemId, LocalStock stock){
+        for (int i = 0; i < stockBucketRouter.getBucketCount(); i++){
+            if (!settleBucket(itemId, i, stock, 0, true)){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean settleBucket(Integer itemId, int bucket, LocalStock stock, long local, boolean checkDrained){
+        Long result = (Long) redisTemplate.execute(settleScript,
+                Arrays.asList(leasedBucketKey(itemId, bucket), stockBucketRouter.bucketKey(itemId, bucket)),
+                stock.leaseId, local, checkDrained ? 1 : 0);
+        return result != null && result == 1;
+    }
+
+    //promo_item_stock_leased_{itemId_bucket},与子key使用相同的hash tag
+    private String leasedBucketKey(Integer itemId, int bucket){
+        return LEASED_KEY_PREFIX + "{" + itemId + "_" + bucket + "}";
+    }
+
+    //归还租借库存并删除这一批本地库存的租借记录
+    private void returnLease(Integer itemId, LocalStock stock, long amount){
+        if (stockBucketRouter.isSplit()){
+            //先把库存加回记录所在的子key再删除记录,期间库存不会从售罄判断中消失
+            int bucket = stock.recordBucket >= 0 ? stock.recordBucket : stockBucketRouter.startBucket();
+            if (amount > 0){
+                redisTemplate.opsForValue().increment(stockBucketRouter.bucketKey(itemId, bucket), amount);
+            }
+            if (stock.recordBucket >= 0){
+                settleBucket(itemId, bucket, stock, 0, false);
+            }
+        }else {
+            redisTemplate.execute(returnScript,
+                    Arrays.asList("promo_item_stock_"+itemId,"promo_item_stock_invalid_"+itemId,LEASED_KEY_PREFIX+itemId),
+                    amount, stock.leaseId);
+        }
+        if (amount > 0 && soldOutRegistry.isSoldOutLocally(itemId)){
+            soldOutRegistry.clearSoldOut(itemId);
+        }
+    }
+
+    private void giveBack(Integer itemId, long amount){
+        if (stockBucketRouter.isSplit()){
+            //子key与售罄标识不在同一个slot,不能放在一个脚本里执行
+            redisTemplate.opsForValue().increment(stockBucketRouter.bucketKey(itemId, stockBucketRouter.startBucket()), amount);
+        }else {
+            redisTemplate.execute(returnScript,
+                    Arrays.asList("promo_item_stock_"+itemId,"promo_item_stock_invalid_"+itemId), amount);
+        }
+        if (soldOutRegistry.isSoldOutLocally(itemId)){
+            soldOutRegistry.clearSoldOut(itemId);
+        }
+    }
+
+    //单个商品的本地库存,按线程散列到不同分段做CAS扣减
+    private class LocalStock {
+        private final AtomicLongArray cells = new AtomicLongArray(stripes * PAD);
+
+        private final AtomicBoolean refilling = new AtomicBoolean(false);
+
+        //redis中记录这一批本地库存的field,重新创建的本地库存使用新的field,归还旧批次时不会误删
+        private final String leaseId = nodeId + "-" + leaseSeq.incrementAndGet();
+
+        private volatile long lastAccess = System.currentTimeMillis();
+
+        private volatile long exhaustedAt;
+
+        //库存拆分时本节点租借记录所在的子key,-1表示没有记录;在锁内读写,归还时已不再租借
+        private int recordBucket = -1;
+
+        //已归还redis,不再接受扣减/回补
+        private volatile boolean released;
+
+        private int home(){
+            return (int) (Thread.currentThread().getId() & (stripes - 1));
+        }
+
+        //先扣当前线程所在分段,不足再依次尝试其他分段
+        boolean tryTake(int amount){
+            int home = home();
+            for (int i = 0; i < stripes; i++){
+                int index = ((home + i) & (stripes - 1)) * PAD;
+                long current;
+                while ((current = cells.get(index)) >= amount){
+                    if (cells.compareAndSet(index, current, current - amount)){
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        //各分段单独都不够时,在锁内把所有分段归拢后再扣减
+        boolean takeCombined(int amount){
+            if (tryTake(amount)){
+                return true;
+            }
+            long total = drain();
+            if (total >= amount){
+                add(total - amount);
+                return true;
+            }
+            add(total);
+            return false;
+        }
+
+        void add(long amount){
+            if (amount > 0){
+                cells.addAndGet(home() * PAD, amount);
+            }
+        }
+
+        long drain(){
+            long total = 0;
+            for (int i = 0; i < stripes; i++){
+                total += cells.getAndSet(i * PAD, 0);
+            }
+            return total;
+        }
+
+        long sum(){
+            long total = 0;
+            for (int i = 0; i < stripes; i++){
+                total += cells.get(i * PAD);
+            }
+            return total;
+        }
+    }
+}
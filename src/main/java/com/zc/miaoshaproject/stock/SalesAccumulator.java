@@ -0,0 +1,125 @@
+package com.zc.miaoshaproject.stock;
+
+import com.zc.miaoshaproject.dao.ItemDOMapper;
+import com.zc.miaoshaproject.dataobject.ItemDO;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scripting.support.ResourceScriptSource;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 描述:
+ * 商品销量延迟写入
+ * 下单成功后销量先累加到本地LongAdder和redis计数器,定时汇总后一次性写入item表,应用关闭时再写一次;
+ * 两次写库之间以redis计数器为准,下单事务不再更新item行,避免热点商品行锁影响商品列表查询
+ * @Author: zhangchao
+ * @Date: 9/3/20 11:20 上午
+ **/
+@Component
+public class SalesAccumulator {
+
+    private static final String SALES_KEY_PREFIX = "item_sales_";
+
+    @Autowired
+    private ItemDOMapper itemDOMapper;
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    //多少秒汇总写库一次
+    @Value("${item.sales.flush.seconds:5}")
+    private int flushSeconds;
+
+    //尚未写库的销量增量
+    private final Map<Integer,LongAdder> pendingMap = new ConcurrentHashMap<>();
+
+    private ScheduledExecutorService scheduler;
+
+    private DefaultRedisScript<Long> increaseScript;
+
+    @PostConstruct
+    public void init(){
+        increaseScript = new DefaultRedisScript<>();
+        increaseScript.setScriptSource(new ResourceScriptSource(new ClassPathResource("lua/increase_sales.lua")));
+        increaseScript.setResultType(Long.class);
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        scheduler.scheduleWithFixedDelay(this::flush, flushSeconds, flushSeconds, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    public void destroy(){
+        scheduler.shutdown();
+        try {
+            scheduler.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+    }
+
+    //订单事务提交后调用
+    public void add(Integer itemId, int amount){
+        List<String> keys = Collections.singletonList(SALES_KEY_PREFIX + itemId);
+        Long sales = stringRedisTemplate.execute(increaseScript, keys, String.valueOf(amount));
+        if (sales != null && sales < 0){
+            //计数器不存在(首次下单/redis重启/key被淘汰),用数据库中的销量初始化;
+            //初始化和累加在同一个脚本内,多个节点同时初始化时只有第一个生效,各自的增量都不会丢
+            ItemDO itemDO = itemDOMapper.selectByPrimaryKey(itemId);
+            int dbSales = itemDO == null || itemDO.getSales() == null ? 0 : itemDO.getSales();
+            stringRedisTemplate.execute(increaseScript, keys, String.valueOf(amount), String.valueOf(dbSales));
+        }
+        pendingMap.computeIfAbsent(itemId, id -> new LongAdder()).add(amount);
+    }
+
+    //读取当前销量,redis计数器不存在时使用数据库中的值
+    public Integer currentSales(Integer itemId, Integer dbSales){
+        String sales = stringRedisTemplate.opsForValue().get(SALES_KEY_PREFIX + itemId);
+        return sales == null ? dbSales : Integer.valueOf(sales);
+    }
+
+    //批量读取,与itemIds一一对应,不存在的为null
+    public List<Integer> currentSales(List<Integer> itemIds){
+        List<String> keys = new ArrayList<>(itemIds.size());
+        for (Integer itemId : itemIds){
+            keys.add(SALES_KEY_PREFIX + itemId);
+        }
+        List<String> values = stringRedisTemplate.opsForValue().multiGet(keys);
+        List<Integer> salesList = new ArrayList<>(itemIds.size());
+        for (int i = 0; i < itemIds.size(); i++){
+            String sales = values == null ? null : values.get(i);
+            salesList.add(sales == null ? null : Integer.valueOf(sales));
+        }
+        return salesList;
+    }
+
+    //把累计的增量写入数据库,写库失败的增量放回下次再写
+    public void flush(){
+        for (Map.Entry<Integer,LongAdder> entry : pendingMap.entrySet()){
+            long delta = entry.getValue().sumThenReset();
+            if (delta == 0){
+                continue;
+            }
+            try {
+                itemDOMapper.increaseSales(entry.getKey(), (int) delta);
+            }catch (Exception e){
+                e.printStackTrace();
+                entry.getValue().add(delta);
+            }
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package com.zc.miaoshaproject.stock;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 描述:
+ * 本地售罄标识
+ * 以itemId为下标的并发bitset,商品售罄后通过redis pub/sub广播到所有节点,
+ * 之后对该商品的请求直接在内存中拒绝,不再访问redis;启动时扫描redis中的售罄标识重建
+ * @Author: zhangchao
+ * @Date: 8/25/20 3:47 下午
+ **/
+@Component
+public class SoldOutRegistry implements MessageListener {
+
+    public static final String CHANNEL = "promo_item_sold_out";
+
+    private static final String INVALID_KEY_PREFIX = "promo_item_stock_invalid_";
+
+    @Autowired
+    private RedisTemplate redisTemplate;
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    //复用@EnableRedisHttpSession注册的监听容器
+    @Autowired
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    //读不加锁,扩容和写在锁内完成
+    private volatile AtomicLongArray words = new AtomicLongArray(16);
+
+    @PostConstruct
+    public void init(){
+        redisMessageListenerContainer.addMessageListener(this, new ChannelTopic(CHANNEL));
+
+        //从redis中的售罄标识重建
+        stringRedisTemplate.execute((RedisCallback<Object>) connection -> {
+            rebuild(connection);
+            return null;
+        });
+    }
+
+    //本地已标记售罄直接返回,否则回退到redis确认(兼容丢失的广播消息)
+    public boolean isSoldOut(Integer itemId){
+        if (isSoldOutLocally(itemId)){
+            return true;
+        }
+        if (redisTemplate.hasKey(INVALID_KEY_PREFIX + itemId)){
+            setBit(itemId, true);
+            return true;
+        }
+        return false;
+    }
+
+    public boolean isSoldOutLocally(Integer itemId){
+        AtomicLongArray current = words;
+        int index = itemId >>> 6;
+        return index < current.length() && (current.get(index) & (1L << itemId)) != 0;
+    }
+
+    //写入redis售罄标识并广播
+    public void markSoldOut(Integer itemId){
+        redisTemplate.opsForValue().set(INVALID_KEY_PREFIX + itemId,"true");
+        broadcastSoldOut(itemId);
+    }
+
+    //redis售罄标识已由lua脚本写入,只设置本地标识并广播
+    public void broadcastSoldOut(Integer itemId){
+        setBit(itemId, true);
+        stringRedisTemplate.convertAndSend(CHANNEL, "soldout:" + itemId);
+    }
+
+    //库存重新可用(活动重新发布/租借库存归还),撤销售罄标识并广播
+    public void clearSoldOut(Integer itemId){
+        redisTemplate.delete(INVALID_KEY_PREFIX + itemId);
+        setBit(itemId, false);
+        stringRedisTemplate.convertAndSend(CHANNEL, "clear:" + itemId);
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        int split = body.indexOf(':');
+        if (split < 0){
+            return;
+        }
+        Integer itemId = Integer.valueOf(body.substring(split + 1));
+        setBit(itemId, "soldout".equals(body.substring(0, split)));
+    }
+
+    private void rebuild(RedisConnection connection){
+        ScanOptions options = ScanOptions.scanOptions().match(INVALID_KEY_PREFIX + "*").count(1000).build();
+        try (Cursor<byte[]> cursor = connection.scan(options)){
+            while (cursor.hasNext()){
+                String key = new String(cursor.next(), StandardCharsets.UTF_8);
+                setBit(Integer.valueOf(key.substring(INVALID_KEY_PREFIX.length())), true);
+            }
+        }catch (Exception e){
+            e.printStackTrace();
+        }
+    }
+
+    private synchronized void setBit(Integer itemId, boolean soldOut){
+        int index = itemId >>> 6;
+        AtomicLongArray current = words;
+        if (index >= current.length()){
+            if (!soldOut){
+                return;
+            }
+            int length = current.length();
+            while (length <= index){
+                length <<= 1;
+            }
+            AtomicLongArray grown = new AtomicLongArray(length);
+            for (int i = 0; i < current.length(); i++){
+                grown.set(i, current.get(i));
+            }
+            current = grown;
+        }
+        long bit = 1L << itemId;
+        long word = current.get(index);
+        current.set(index, soldOut ? word | bit : word & ~bit);
+        words = current;
+    }
+}
@@ -0,0 +1,64 @@
+package com.zc.miaoshaproject.stock;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.stereotype.Component;
+
+/**
+ * 描述:
+ * 热点库存拆分
+ * 活动库存拆成N个子key,每个子key使用各自的hash tag,在redis集群中落到不同分片上;
+ * 扣减时按线程散列选择起始子key,当前子key不足时顺延到下一个
+ * @Author: zhangchao
+ * @Date: 8/25/20 10:32 上午
+ **/
+@Component
+public class StockBucketRouter {
+
+    @Autowired
+    private RedisTemplate redisTemplate;
+
+    //库存拆分的子key数量,1表示不拆分,仍使用promo_item_stock_{itemId}
+    @Value("${stock.bucket.count:1}")
+    private int bucketCount;
+
+    public int getBucketCount() {
+        return bucketCount;
+    }
+
+    public boolean isSplit(){
+        return bucketCount > 1;
+    }
+
+    //promo_item_stock_{itemId_bucket},花括号内为hash tag
+    public String bucketKey(Integer itemId, int bucket){
+        return "promo_item_stock_{" + itemId + "_" + bucket + "}";
+    }
+
+    //按当前线程散列出起始子key
+    public int startBucket(){
+        return (int) (Thread.currentThread().getId() % bucketCount);
+    }
+
+    //把活动库存平均拆分到各个子key,除不尽的部分依次多分一个
+    public void publish(Integer itemId, int stock){
+        int base = stock / bucketCount;
+        int remainder = stock % bucketCount;
+        for (int i = 0; i < bucketCount; i++){
+            redisTemplate.opsForValue().set(bucketKey(itemId, i), i < remainder ? base + 1 : base);
+        }
+    }
+
+    //所有子key是否都已扣完
+    //子key分布在不同slot,redis集群不支持跨slot的mget,逐个读取
+    public boolean allEmpty(Integer itemId){
+        for (int i = 0; i < bucketCount; i++){
+            Object value = redisTemplate.opsForValue().get(bucketKey(itemId, i));
+            if (value != null && ((Number) value).longValue() > 0){
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,8 @@
+-- 只有值与加锁时写入的值一致才删除,避免删掉锁过期后其他节点重新加的锁
+-- KEYS[1] 锁key
+-- ARGV[1] 加锁时写入的值
+-- 返回值: 1 已删除, 0 锁已不属于自己
+if redis.call('get', KEYS[1]) == ARGV[1] then
+    return redis.call('del', KEYS[1])
+end
+return 0
@@ -0,0 +1,16 @@
+-- 原子扣减活动库存
+-- KEYS[1] 库存key  promo_item_stock_{itemId}
+-- KEYS[2] 售罄标识key promo_item_stock_invalid_{itemId},库存拆分成多个子key时不传,由调用方判断是否全部售罄
+-- ARGV[1] 扣减数量
+-- 返回值: >=0 扣减后的剩余库存; -1 库存不足(库存不会被扣成负数)
+local stock = tonumber(redis.call('get', KEYS[1]))
+local amount = tonumber(ARGV[1])
+if stock == nil or stock < amount then
+    return -1
+end
+local left = redis.call('decrby', KEYS[1], amount)
+if left == 0 and #KEYS > 1 then
+    -- 库存刚好被扣完,同一次调用内打上售罄标识
+    redis.call('set', KEYS[2], 'true')
+end
+return left
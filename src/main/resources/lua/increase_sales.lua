@@ -0,0 +1,12 @@
+-- 累加商品销量计数器,计数器不存在时先用数据库中的销量初始化
+-- KEYS[1] 销量计数器 item_sales_{itemId}
+-- ARGV[1] 增量
+-- ARGV[2] (可选) 计数器不存在时的初始值
+-- 返回值: 累加后的销量; 计数器不存在且没有传初始值时返回-1,不做修改,由调用方查库后带上初始值重试
+if redis.call('exists', KEYS[1]) == 0 then
+    if ARGV[2] == nil then
+        return -1
+    end
+    redis.call('set', KEYS[1], ARGV[2])
+end
+return redis.call('incrby', KEYS[1], ARGV[1])
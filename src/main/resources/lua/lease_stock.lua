@@ -0,0 +1,22 @@
+-- 从全局库存中批量租借库存到本地
+-- KEYS[1] 库存key  promo_item_stock_{itemId}
+-- KEYS[2] (可选) 各节点租借量hash,需与KEYS[1]在同一个slot
+-- ARGV[1] 期望租借的数量
+-- ARGV[2] (可选) 本次租借记录的field
+-- ARGV[3] (可选) 租借前本地剩余量
+-- 返回值: 实际租借到的数量,全局库存为空时返回0
+local stock = tonumber(redis.call('get', KEYS[1]))
+local lease = 0
+if stock ~= nil and stock > 0 then
+    lease = tonumber(ARGV[1])
+    if stock < lease then
+        lease = stock
+    end
+    redis.call('decrby', KEYS[1], lease)
+end
+-- 与扣减在同一个脚本中记录本节点手里的库存,售罄判断时不会漏掉刚租走的库存;
+-- 没租到时只更新已有的记录,库存拆分时不会在没租到的子key上留下重复记录
+if KEYS[2] ~= nil and (lease > 0 or redis.call('hexists', KEYS[2], ARGV[2]) == 1) then
+    redis.call('hset', KEYS[2], ARGV[2], tonumber(ARGV[3]) + lease)
+end
+return lease
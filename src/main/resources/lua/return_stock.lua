@@ -0,0 +1,15 @@
+-- 归还本地未用完的租借库存
+-- KEYS[1] 库存key  promo_item_stock_{itemId}
+-- KEYS[2] 售罄标识key promo_item_stock_invalid_{itemId}
+-- KEYS[3] (可选) 各节点租借量hash promo_item_stock_leased_{itemId}
+-- ARGV[1] 归还数量
+-- ARGV[2] (可选) 要清除的租借记录field
+local left = redis.call('incrby', KEYS[1], tonumber(ARGV[1]))
+if KEYS[3] ~= nil then
+    redis.call('hdel', KEYS[3], ARGV[2])
+end
+if left > 0 then
+    -- 库存重新可用,撤销售罄标识
+    redis.call('del', KEYS[2])
+end
+return left
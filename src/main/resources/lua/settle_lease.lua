@@ -0,0 +1,30 @@
+-- 记录本节点手里的租借库存,并检查库存与所有节点的租借是否都已用完
+-- KEYS[1] 各节点租借量hash promo_item_stock_leased_{itemId}
+-- KEYS[2] 库存key,需与KEYS[1]在同一个slot(库存拆分时为一个子key及其对应的hash)
+-- KEYS[3] (可选) 售罄标识key promo_item_stock_invalid_{itemId},库存拆分时不传,由调用方汇总各子key的结果后标记
+-- ARGV[1] 租借记录field
+-- ARGV[2] 本节点剩余量,为0时删除记录
+-- ARGV[3] 为1时检查是否已全部用完
+-- 返回值: 1 已全部用完(传了KEYS[3]时同时打上售罄标识), 0 仍有库存
+if tonumber(ARGV[2]) > 0 then
+    redis.call('hset', KEYS[1], ARGV[1], ARGV[2])
+else
+    redis.call('hdel', KEYS[1], ARGV[1])
+end
+if tonumber(ARGV[3]) ~= 1 then
+    return 0
+end
+local stock = tonumber(redis.call('get', KEYS[2]))
+if stock ~= nil and stock > 0 then
+    return 0
+end
+local leased = redis.call('hvals', KEYS[1])
+for i = 1, #leased do
+    if tonumber(leased[i]) > 0 then
+        return 0
+    end
+end
+if KEYS[3] ~= nil then
+    redis.call('set', KEYS[3], 'true')
+end
+return 1
@@ -0,0 +1,78 @@
+package com.zc.miaoshaproject.cache;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scripting.support.ResourceScriptSource;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * 描述:
+ * compare_and_delete.lua只删除自己持有的锁/租约,需要本地redis(127.0.0.1:6379),连不上时跳过
+ * @Author: zhangchao
+ * @Date: 9/14/20 2:15 下午
+ **/
+public class CompareAndDeleteScriptTest {
+
+    private static final String LOCK_KEY = "test_cache_load_lease_1";
+
+    private LettuceConnectionFactory connectionFactory;
+
+    private StringRedisTemplate redisTemplate;
+
+    private DefaultRedisScript<Long> script;
+
+    @Before
+    public void setUp(){
+        connectionFactory = new LettuceConnectionFactory("127.0.0.1", 6379);
+        connectionFactory.afterPropertiesSet();
+        try {
+            connectionFactory.getConnection().ping();
+        }catch (Exception e){
+            connectionFactory.destroy();
+            Assume.assumeNoException("redis不可用", e);
+        }
+        redisTemplate = new StringRedisTemplate(connectionFactory);
+        script = new DefaultRedisScript<>();
+        script.setScriptSource(new ResourceScriptSource(new ClassPathResource("lua/compare_and_delete.lua")));
+        script.setResultType(Long.class);
+        redisTemplate.delete(LOCK_KEY);
+    }
+
+    @After
+    public void tearDown(){
+        if (redisTemplate != null){
+            redisTemplate.delete(LOCK_KEY);
+            connectionFactory.destroy();
+        }
+    }
+
+    @Test
+    public void deletesOwnLock(){
+        redisTemplate.opsForValue().set(LOCK_KEY, "owner");
+        assertEquals(Long.valueOf(1), redisTemplate.execute(script, Arrays.asList(LOCK_KEY), "owner"));
+        assertNull(redisTemplate.opsForValue().get(LOCK_KEY));
+    }
+
+    @Test
+    public void keepsLockTakenByOthers(){
+        //自己的锁已过期,被其他节点重新获取
+        redisTemplate.opsForValue().set(LOCK_KEY, "other");
+        assertEquals(Long.valueOf(0), redisTemplate.execute(script, Arrays.asList(LOCK_KEY), "owner"));
+        assertEquals("other", redisTemplate.opsForValue().get(LOCK_KEY));
+    }
+
+    @Test
+    public void missingLockIsNoop(){
+        assertEquals(Long.valueOf(0), redisTemplate.execute(script, Arrays.asList(LOCK_KEY), "owner"));
+    }
+}
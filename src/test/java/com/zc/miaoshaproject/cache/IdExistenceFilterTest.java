@@ -0,0 +1,103 @@
+package com.zc.miaoshaproject.cache;
+
+import com.zc.miaoshaproject.dao.ItemDOMapper;
+import com.zc.miaoshaproject.dao.UserDOMapper;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 描述:
+ * id过滤器分页重建,大于重建时最大id的id放行
+ * @Author: zhangchao
+ * @Date: 9/14/20 4:30 下午
+ **/
+public class IdExistenceFilterTest {
+
+    //商品id为1~25000中的偶数,跨越多页
+    private static final int MAX_ITEM_ID = 25000;
+
+    private final AtomicInteger itemPageLoads = new AtomicInteger();
+
+    private IdExistenceFilter filter;
+
+    @Before
+    public void setUp() throws Exception {
+        filter = new IdExistenceFilter();
+        set("itemDOMapper", Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{ItemDOMapper.class}, (proxy, method, args) -> {
+            if (!"listIdsAfter".equals(method.getName())){
+                throw new UnsupportedOperationException(method.getName());
+            }
+            itemPageLoads.incrementAndGet();
+            List<Integer> ids = new ArrayList<>();
+            for (int id = (Integer) args[0] + 1; id <= MAX_ITEM_ID && ids.size() < (Integer) args[1]; id++){
+                if (id % 2 == 0){
+                    ids.add(id);
+                }
+            }
+            return ids;
+        }));
+        set("userDOMapper", Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{UserDOMapper.class}, (proxy, method, args) -> {
+            if (!"listIdsAfter".equals(method.getName())){
+                throw new UnsupportedOperationException(method.getName());
+            }
+            return new ArrayList<Integer>();
+        }));
+        set("expectedInsertions", 1000);
+        set("fpp", 0.001);
+    }
+
+    @Test
+    public void allowsEverythingBeforeFirstBuild(){
+        assertTrue(filter.mightContainItem(3));
+    }
+
+    @Test
+    public void rebuildPagesThroughAllIds() throws Exception {
+        rebuild();
+        //12500个id按10000一页读取两页,超出预估容量后按实际数量再读一遍
+        assertEquals(4, itemPageLoads.get());
+        for (int id = 2; id <= MAX_ITEM_ID; id += 2){
+            assertTrue(filter.mightContainItem(id));
+        }
+        int falsePositives = 0;
+        for (int id = 1; id <= MAX_ITEM_ID; id += 2){
+            if (filter.mightContainItem(id)){
+                falsePositives++;
+            }
+        }
+        assertTrue("误判数量过多:" + falsePositives, falsePositives < 100);
+    }
+
+    @Test
+    public void idAboveMaxAtRebuildFallsThrough() throws Exception {
+        rebuild();
+        assertFalse(filter.mightContainItem(-1));
+        //其他节点新建商品但通知丢失,id大于重建时的最大id,仍然放行
+        assertTrue(filter.mightContainItem(MAX_ITEM_ID + 1));
+        //用户表为空,最大id为0,所有正数id都放行
+        assertTrue(filter.mightContainUser(1));
+    }
+
+    private void rebuild() throws Exception {
+        Method method = IdExistenceFilter.class.getDeclaredMethod("rebuild");
+        method.setAccessible(true);
+        method.invoke(filter);
+    }
+
+    private void set(String name, Object value) throws Exception {
+        Field field = IdExistenceFilter.class.getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(filter, value);
+    }
+}
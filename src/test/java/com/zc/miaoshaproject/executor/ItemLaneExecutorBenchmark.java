@@ -0,0 +1,200 @@
+package com.zc.miaoshaproject.executor;
+
+import org.junit.Test;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 描述:
+ * 商品热度倾斜时的尾延迟压测:共享线程池(OrderTaskExecutor) 对比 按商品分道(ItemLaneExecutor);
+ * 按固定速率提交下单任务,大部分请求落在一个热点商品上,且热点商品的请求量超过其串行处理能力;
+ * 每个任务持有商品锁(模拟同一商品争抢库存行锁)后等待固定时长(模拟redis/数据库往返);
+ * 分别统计热点商品、其他商品、与热点商品同通道的其他商品从提交到执行完的p50/p99/p999延迟和拒绝数;
+ * 默认不跑,mvn test -Pbenchmark -Dtest=ItemLaneExecutorBenchmark
+ * @Author: zhangchao
+ * @Date: 9/17/20 4:30 下午
+ **/
+public class ItemLaneExecutorBenchmark {
+
+    private static final int HOT_ITEM = 1;
+
+    private static final int COLD_ITEMS = 32;
+
+    //每秒提交的任务数
+    private static final int RATE = 2000;
+
+    //落在热点商品上的比例,热点商品约每秒1600个请求,超过串行处理能力(约每秒900个)
+    private static final double HOT_RATIO = 0.8;
+
+    private static final long SERVICE_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private static final int WARMUP_SECONDS = 2;
+
+    private static final int MEASURE_SECONDS = 5;
+
+    //与配置默认值一致
+    private static final int POOL_SIZE = 20;
+
+    private static final int POOL_QUEUE_CAPACITY = 1000;
+
+    private static final int LANE_COUNT = 16;
+
+    private static final int LANE_QUEUE_CAPACITY = 200;
+
+    private final Object[] itemLocks = new Object[COLD_ITEMS + 2];
+
+    @Test
+    public void skewedItemsTailLatency() throws Exception {
+        for (int i = 0; i < itemLocks.length; i++){
+            itemLocks[i] = new Object();
+        }
+        System.out.println(String.format("rate=%d/s hot=%.0f%% service=%dms", RATE, HOT_RATIO * 100,
+                TimeUnit.NANOSECONDS.toMillis(SERVICE_NANOS)));
+        System.out.println(String.format("%-6s %-10s %8s %8s %10s %10s %10s %10s",
+                "mode", "items", "done", "rejected", "p50(ms)", "p99(ms)", "p999(ms)", "max(ms)"));
+
+        OrderTaskExecutor pool = newPool();
+        run(pool, null, WARMUP_SECONDS);
+        print("pool", run(pool, null, MEASURE_SECONDS));
+        pool.destroy();
+
+        ItemLaneExecutor lanes = newLanes();
+        run(null, lanes, WARMUP_SECONDS);
+        print("lane", run(null, lanes, MEASURE_SECONDS));
+        lanes.destroy();
+    }
+
+    //下标0:热点商品 1:与热点商品不同通道的其他商品 2:与热点商品同通道的其他商品
+    private Stats[] run(OrderTaskExecutor pool, ItemLaneExecutor lanes, int seconds) throws Exception {
+        Stats[] stats = {new Stats("hot"), new Stats("cold"), new Stats("coldSameLane")};
+        Object hotLane = lanes == null ? null : laneOf(lanes, HOT_ITEM);
+        Random random = new Random(7);
+        int total = RATE * seconds;
+        long interval = TimeUnit.SECONDS.toNanos(1) / RATE;
+        AtomicInteger pending = new AtomicInteger(total);
+        long begin = System.nanoTime();
+        for (int i = 0; i < total; i++){
+            //按计划时间提交,不等待已提交的任务执行完,执行端变慢时请求量也不会跟着下降
+            long scheduled = begin + i * interval;
+            long delay = scheduled - System.nanoTime();
+            if (delay > 0){
+                LockSupport.parkNanos(delay);
+            }
+            int itemId = random.nextDouble() < HOT_RATIO ? HOT_ITEM : 2 + random.nextInt(COLD_ITEMS);
+            Stats target = itemId == HOT_ITEM ? stats[0]
+                    : hotLane != null && laneOf(lanes, itemId) == hotLane ? stats[2] : stats[1];
+            long submitTime = System.nanoTime();
+            Runnable task = () -> {
+                synchronized (itemLocks[itemId]){
+                    LockSupport.parkNanos(SERVICE_NANOS);
+                }
+                target.record(System.nanoTime() - submitTime);
+                pending.decrementAndGet();
+            };
+            try {
+                if (lanes == null){
+                    pool.execute(task);
+                }else {
+                    lanes.execute(itemId, task);
+                }
+            }catch (RejectedExecutionException e){
+                target.rejected.incrementAndGet();
+                pending.decrementAndGet();
+            }
+        }
+        //等待已接收的任务执行完
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(60);
+        while (pending.get() > 0 && System.nanoTime() < deadline){
+            Thread.sleep(10);
+        }
+        assertTrue("任务未在60秒内执行完", pending.get() == 0);
+        return stats;
+    }
+
+    private void print(String mode, Stats[] stats){
+        for (Stats stat : stats){
+            long[] latencies = stat.sorted();
+            //共享线程池没有通道,不区分是否与热点商品同通道
+            if (latencies.length == 0 && stat.rejected.get() == 0){
+                continue;
+            }
+            System.out.println(String.format("%-6s %-10s %8d %8d %10.1f %10.1f %10.1f %10.1f",
+                    mode, stat.name, latencies.length, stat.rejected.get(), percentile(latencies, 0.5),
+                    percentile(latencies, 0.99), percentile(latencies, 0.999), percentile(latencies, 1.0)));
+        }
+    }
+
+    private double percentile(long[] sorted, double p){
+        if (sorted.length == 0){
+            return 0;
+        }
+        int index = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, index)] / 1e6;
+    }
+
+    private OrderTaskExecutor newPool() throws Exception {
+        OrderTaskExecutor pool = new OrderTaskExecutor();
+        set(pool, "coreSize", POOL_SIZE);
+        set(pool, "maxSize", POOL_SIZE);
+        set(pool, "queueCapacity", POOL_QUEUE_CAPACITY);
+        pool.init();
+        return pool;
+    }
+
+    private ItemLaneExecutor newLanes() throws Exception {
+        ItemLaneExecutor lanes = new ItemLaneExecutor();
+        set(lanes, "laneCount", LANE_COUNT);
+        set(lanes, "laneQueueCapacity", LANE_QUEUE_CAPACITY);
+        lanes.init();
+        return lanes;
+    }
+
+    private Object laneOf(ItemLaneExecutor lanes, int itemId) throws Exception {
+        Method method = ItemLaneExecutor.class.getDeclaredMethod("laneOf", Integer.class);
+        method.setAccessible(true);
+        return method.invoke(lanes, itemId);
+    }
+
+    private void set(Object target, String name, Object value) throws Exception {
+        Field field = target.getClass().getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(target, value);
+    }
+
+    private static class Stats {
+
+        private final String name;
+
+        private final List<Long> latencies = new ArrayList<>();
+
+        private final AtomicInteger rejected = new AtomicInteger();
+
+        Stats(String name){
+            this.name = name;
+        }
+
+        synchronized void record(long nanos){
+            latencies.add(nanos);
+        }
+
+        synchronized long[] sorted(){
+            long[] values = new long[latencies.size()];
+            for (int i = 0; i < values.length; i++){
+                values[i] = latencies.get(i);
+            }
+            Arrays.sort(values);
+            return values;
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package com.zc.miaoshaproject.executor;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * 描述:
+ * 同一商品的任务按提交顺序串行执行,通道队列满时拒绝
+ * @Author: zhangchao
+ * @Date: 9/13/20 2:10 下午
+ **/
+public class ItemLaneExecutorTest {
+
+    private static final int ITEMS = 40;
+
+    private static final int TASKS_PER_ITEM = 500;
+
+    private ItemLaneExecutor executor;
+
+    @Before
+    public void setUp() throws Exception {
+        executor = newExecutor(4, ITEMS * TASKS_PER_ITEM);
+    }
+
+    @After
+    public void tearDown(){
+        executor.destroy();
+    }
+
+    @Test
+    public void tasksOfSameItemRunInSubmitOrder() throws Exception {
+        Map<Integer,List<Integer>> executed = new ConcurrentHashMap<>();
+        Map<Integer,AtomicInteger> running = new ConcurrentHashMap<>();
+        AtomicInteger overlaps = new AtomicInteger();
+        for (int itemId = 1; itemId <= ITEMS; itemId++){
+            executed.put(itemId, Collections.synchronizedList(new ArrayList<>()));
+            running.put(itemId, new AtomicInteger());
+        }
+
+        //每个商品由一个固定的生产线程提交,多个生产线程并发
+        int producers = 8;
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(ITEMS * TASKS_PER_ITEM);
+        ExecutorService producerPool = Executors.newFixedThreadPool(producers);
+        for (int p = 0; p < producers; p++){
+            int producer = p;
+            producerPool.execute(() -> {
+                try {
+                    start.await();
+                }catch (InterruptedException e){
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                for (int seq = 0; seq < TASKS_PER_ITEM; seq++){
+                    for (int itemId = producer + 1; itemId <= ITEMS; itemId += producers){
+                        Integer item = itemId;
+                        int current = seq;
+                        executor.execute(item, () -> {
+                            if (running.get(item).incrementAndGet() > 1){
+                                overlaps.incrementAndGet();
+                            }
+                            executed.get(item).add(current);
+                            running.get(item).decrementAndGet();
+                            done.countDown();
+                        });
+                    }
+                }
+            });
+        }
+        start.countDown();
+        producerPool.shutdown();
+        assertTrue(done.await(60, TimeUnit.SECONDS));
+
+        assertEquals("同一商品的任务不能并发执行", 0, overlaps.get());
+        for (Map.Entry<Integer,List<Integer>> entry : executed.entrySet()){
+            List<Integer> seqs = entry.getValue();
+            assertEquals(TASKS_PER_ITEM, seqs.size());
+            for (int i = 0; i < seqs.size(); i++){
+                assertEquals("商品" + entry.getKey() + "的任务顺序错乱", Integer.valueOf(i), seqs.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void fullLaneRejects() throws Exception {
+        executor.destroy();
+        executor = newExecutor(1, 1);
+        CountDownLatch block = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(1);
+        executor.execute(1, () -> {
+            started.countDown();
+            try {
+                block.await();
+            }catch (InterruptedException e){
+                Thread.currentThread().interrupt();
+            }
+        });
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        executor.execute(1, () -> { });
+        try {
+            executor.execute(1, () -> { });
+            fail("通道队列已满时应拒绝");
+        }catch (RejectedExecutionException e){
+            //预期
+        }finally {
+            block.countDown();
+        }
+    }
+
+    private ItemLaneExecutor newExecutor(int laneCount, int queueCapacity) throws Exception {
+        ItemLaneExecutor laneExecutor = new ItemLaneExecutor();
+        set(laneExecutor, "laneCount", laneCount);
+        set(laneExecutor, "laneQueueCapacity", queueCapacity);
+        laneExecutor.init();
+        return laneExecutor;
+    }
+
+    private void set(Object target, String name, Object value) throws Exception {
+        Field field = target.getClass().getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(target, value);
+    }
+}
@@ -0,0 +1,177 @@
+package com.zc.miaoshaproject.mq;
+
+import com.google.common.cache.CacheBuilder;
+import com.zc.miaoshaproject.dao.ItemStockDOMapper;
+import com.zc.miaoshaproject.dao.StockLogDOMapper;
+import com.zc.miaoshaproject.dataobject.StockLogDO;
+import org.apache.rocketmq.client.consumer.listener.ConsumeConcurrentlyContext;
+import org.apache.rocketmq.client.consumer.listener.ConsumeConcurrentlyStatus;
+import org.apache.rocketmq.common.message.MessageExt;
+import org.apache.rocketmq.common.message.MessageQueue;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.SimpleTransactionStatus;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * 描述:
+ * 库存消息重复投递/流水状态异常时不重复扣减、不产生毒消息,用内存中的mapper和事务模拟数据库
+ * @Author: zhangchao
+ * @Date: 9/13/20 10:05 上午
+ **/
+public class MqConsumerTest {
+
+    private static final Integer ITEM_ID = 1;
+
+    //item_stock表
+    private Map<Integer,Integer> stockTable = new HashMap<>();
+
+    //stock_log表,只记录状态
+    private Map<String,Integer> stockLogTable = new HashMap<>();
+
+    private Map<Integer,Integer> stockSnapshot;
+
+    private Map<String,Integer> stockLogSnapshot;
+
+    @Before
+    public void setUp(){
+        stockTable.put(ITEM_ID, 100);
+    }
+
+    @Test
+    public void replayedMessageIsAppliedOnce() throws Exception {
+        stockLogTable.put("s1", 2);
+        assertEquals(ConsumeConcurrentlyStatus.CONSUME_SUCCESS, consume(newConsumer(), message("s1", 3)));
+        assertEquals(Integer.valueOf(97), stockTable.get(ITEM_ID));
+
+        //重启后本地去重缓存为空,同一条消息和一条新消息一起重新投递
+        stockLogTable.put("s2", 2);
+        assertEquals(ConsumeConcurrentlyStatus.CONSUME_SUCCESS, consume(newConsumer(), message("s1", 3), message("s2", 2)));
+        assertEquals(Integer.valueOf(95), stockTable.get(ITEM_ID));
+        assertEquals(Integer.valueOf(4), stockLogTable.get("s1"));
+        assertEquals(Integer.valueOf(4), stockLogTable.get("s2"));
+    }
+
+    @Test
+    public void rolledBackOrMissingStockLogIsDropped() throws Exception {
+        stockLogTable.put("s1", 2);
+        stockLogTable.put("s3", 3);
+        MqConsumer consumer = newConsumer();
+        assertEquals(ConsumeConcurrentlyStatus.CONSUME_SUCCESS,
+                consume(consumer, message("s1", 3), message("s3", 5), message("missing", 7)));
+        assertEquals(Integer.valueOf(97), stockTable.get(ITEM_ID));
+        assertEquals(Integer.valueOf(4), stockLogTable.get("s1"));
+        assertEquals(Integer.valueOf(3), stockLogTable.get("s3"));
+
+        //再次投递也不会变成每次都回滚的毒消息
+        assertEquals(ConsumeConcurrentlyStatus.CONSUME_SUCCESS, consume(consumer, message("s3", 5)));
+        assertEquals(Integer.valueOf(97), stockTable.get(ITEM_ID));
+    }
+
+    private ConsumeConcurrentlyStatus consume(MqConsumer consumer, MessageExt... messages) throws Exception {
+        Method method = MqConsumer.class.getDeclaredMethod("consumeBatch", List.class, ConsumeConcurrentlyContext.class);
+        method.setAccessible(true);
+        return (ConsumeConcurrentlyStatus) method.invoke(consumer, Arrays.asList(messages), new ConsumeConcurrentlyContext(new MessageQueue()));
+    }
+
+    private MqConsumer newConsumer() throws Exception {
+        MqConsumer consumer = new MqConsumer();
+        set(consumer, "itemStockDOMapper", itemStockDOMapper());
+        set(consumer, "stockLogDOMapper", stockLogDOMapper());
+        set(consumer, "transactionTemplate", new TransactionTemplate(transactionManager()));
+        set(consumer, "appliedStockLogCache", CacheBuilder.newBuilder().maximumSize(100).build());
+        return consumer;
+    }
+
+    private MessageExt message(String stockLogId, int amount){
+        MessageExt message = new MessageExt();
+        message.setBody(("{\"itemId\":" + ITEM_ID + ",\"amount\":" + amount + ",\"stockLogId\":\"" + stockLogId + "\"}").getBytes());
+        return message;
+    }
+
+    private ItemStockDOMapper itemStockDOMapper(){
+        return (ItemStockDOMapper) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{ItemStockDOMapper.class}, (proxy, method, args) -> {
+            if (!"decreaseStock".equals(method.getName())){
+                throw new UnsupportedOperationException(method.getName());
+            }
+            Integer itemId = (Integer) args[0];
+            Integer amount = (Integer) args[1];
+            Integer stock = stockTable.get(itemId);
+            if (stock == null || stock < amount){
+                return 0;
+            }
+            stockTable.put(itemId, stock - amount);
+            return 1;
+        });
+    }
+
+    private StockLogDOMapper stockLogDOMapper(){
+        return (StockLogDOMapper) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{StockLogDOMapper.class}, (proxy, method, args) -> {
+            switch (method.getName()){
+                case "selectByPrimaryKey":
+                case "selectByPrimaryKeyForUpdate":
+                    Integer status = stockLogTable.get(args[0]);
+                    if (status == null){
+                        return null;
+                    }
+                    StockLogDO stockLogDO = new StockLogDO();
+                    stockLogDO.setStockLogId((String) args[0]);
+                    stockLogDO.setItemId(ITEM_ID);
+                    stockLogDO.setStatus(status);
+                    return stockLogDO;
+                case "markStockApplied":
+                    int updated = 0;
+                    for (Object stockLogId : (List) args[0]){
+                        if (Integer.valueOf(2).equals(stockLogTable.get(stockLogId))){
+                            stockLogTable.put((String) stockLogId, 4);
+                            updated++;
+                        }
+                    }
+                    return updated;
+                default:
+                    throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+
+    //开启事务时保存两张表的快照,回滚时恢复
+    private PlatformTransactionManager transactionManager(){
+        return new PlatformTransactionManager() {
+            @Override
+            public TransactionStatus getTransaction(TransactionDefinition definition) {
+                stockSnapshot = new HashMap<>(stockTable);
+                stockLogSnapshot = new HashMap<>(stockLogTable);
+                return new SimpleTransactionStatus();
+            }
+
+            @Override
+            public void commit(TransactionStatus status) {
+            }
+
+            @Override
+            public void rollback(TransactionStatus status) {
+                stockTable = stockSnapshot;
+                stockLogTable = stockLogSnapshot;
+            }
+        };
+    }
+
+    private void set(Object target, String name, Object value) throws Exception {
+        Field field = target.getClass().getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(target, value);
+    }
+}
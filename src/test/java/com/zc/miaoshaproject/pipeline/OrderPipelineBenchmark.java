@@ -0,0 +1,253 @@
+package com.zc.miaoshaproject.pipeline;
+
+import com.zc.miaoshaproject.dao.StockLogDOMapper;
+import com.zc.miaoshaproject.error.BusinessException;
+import com.zc.miaoshaproject.error.EmBusinessError;
+import com.zc.miaoshaproject.executor.OrderTaskExecutor;
+import com.zc.miaoshaproject.mq.MqProducer;
+import com.zc.miaoshaproject.service.impl.ItemServiceImpl;
+import com.zc.miaoshaproject.stock.SoldOutRegistry;
+import org.junit.Test;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 描述:
+ * 下单受理吞吐压测:每个请求一个Callable提交到共享线程池(售罄检查+单条写流水+发事务消息) 对比 环形缓冲区流水线(批量写流水);
+ * 多个请求线程各自同步等待下单结果,缓冲区或线程池队列满时让出cpu后重试;
+ * noio场景下流水表和消息发送立即返回,只比较交接开销;io场景下每次写库/发消息等待固定时长,模拟数据库和mq的往返;
+ * 统计吞吐、请求延迟、满队列重试次数和每个请求的写库次数;默认不跑,mvn test -Pbenchmark -Dtest=OrderPipelineBenchmark
+ * @Author: zhangchao
+ * @Date: 9/18/20 10:40 上午
+ **/
+public class OrderPipelineBenchmark {
+
+    private static final int CLIENTS = 64;
+
+    private static final int REQUESTS = 40000;
+
+    private static final int ITEM_ID = 1;
+
+    //io场景:一次写库往返、批量写入时每行的额外耗时、一次发消息往返
+    private static final long INSERT_NANOS = TimeUnit.MICROSECONDS.toNanos(200);
+
+    private static final long INSERT_ROW_NANOS = TimeUnit.MICROSECONDS.toNanos(2);
+
+    private static final long SEND_NANOS = TimeUnit.MICROSECONDS.toNanos(300);
+
+    //与配置默认值一致
+    private static final int POOL_SIZE = 20;
+
+    private static final int POOL_QUEUE_CAPACITY = 1000;
+
+    private static final int BUFFER_SIZE = 1024;
+
+    private static final int BATCH_SIZE = 64;
+
+    private static final int SENDER_COUNT = 8;
+
+    private final AtomicLong insertCalls = new AtomicLong();
+
+    private volatile boolean simulateIo;
+
+    //没有商品售罄,只做本地标识检查
+    private final SoldOutRegistry soldOutRegistry = new SoldOutRegistry();
+
+    private final StockLogDOMapper stockLogDOMapper = (StockLogDOMapper) Proxy.newProxyInstance(getClass().getClassLoader(),
+            new Class[]{StockLogDOMapper.class}, (proxy, method, args) -> {
+                if ("insertSelective".equals(method.getName())){
+                    insertCalls.incrementAndGet();
+                    io(INSERT_NANOS);
+                    return 1;
+                }
+                if ("insertBatch".equals(method.getName())){
+                    insertCalls.incrementAndGet();
+                    int rows = ((List) args[0]).size();
+                    io(INSERT_NANOS + rows * INSERT_ROW_NANOS);
+                    return rows;
+                }
+                throw new UnsupportedOperationException(method.getName());
+            });
+
+    private final MqProducer mqProducer = new MqProducer(){
+        @Override
+        public boolean transactionAsyncReduceStock(Integer userId, Integer itemId, Integer promoId, Integer amount, String stockLogId) {
+            io(SEND_NANOS);
+            return true;
+        }
+    };
+
+    private final ItemServiceImpl itemService = new ItemServiceImpl();
+
+    @Test
+    public void pipelineVersusCallablePerRequest() throws Exception {
+        int cores = Runtime.getRuntime().availableProcessors();
+        List<String> strategies = Arrays.asList("yielding", "sleeping", "blocking");
+        if (cores >= SENDER_COUNT + 2){
+            strategies = Arrays.asList("busyspin", "yielding", "sleeping", "blocking");
+        }else {
+            System.out.println("cores=" + cores + ",不足以让每个阶段独占一个核,跳过busyspin");
+        }
+        System.out.println(String.format("clients=%d requests=%d", CLIENTS, REQUESTS));
+        System.out.println(String.format("%-5s %-18s %10s %9s %9s %9s %12s",
+                "scene", "mode", "ops/s", "p50(ms)", "p99(ms)", "retries", "inserts/req"));
+        for (boolean io : new boolean[]{false, true}){
+            simulateIo = io;
+            OrderTaskExecutor pool = newPool();
+            Client poolClient = callback -> {
+                pool.submit(createOrderTask(callback));
+                return true;
+            };
+            run(poolClient);
+            print(io, "pool", run(poolClient));
+            pool.destroy();
+
+            for (String strategy : strategies){
+                OrderPipeline pipeline = newPipeline(strategy);
+                Client pipelineClient = callback -> pipeline.publish(1, ITEM_ID, null, 1, callback);
+                run(pipelineClient);
+                print(io, "pipeline-" + strategy, run(pipelineClient));
+                pipeline.destroy();
+            }
+        }
+    }
+
+    //返回{吞吐, p50纳秒, p99纳秒, 重试次数, 写库次数}
+    private double[] run(Client client) throws Exception {
+        insertCalls.set(0);
+        AtomicInteger next = new AtomicInteger();
+        AtomicLong retries = new AtomicLong();
+        AtomicInteger failures = new AtomicInteger();
+        long[] latencies = new long[REQUESTS];
+        ExecutorService clients = Executors.newFixedThreadPool(CLIENTS);
+        CountDownLatch start = new CountDownLatch(1);
+        for (int c = 0; c < CLIENTS; c++){
+            clients.execute(() -> {
+                try {
+                    start.await();
+                    int i;
+                    while ((i = next.getAndIncrement()) < REQUESTS){
+                        long begin = System.nanoTime();
+                        CompletableFuture<Object> future = new CompletableFuture<>();
+                        OrderPipelineCallback callback = new OrderPipelineCallback() {
+                            @Override
+                            public void onSuccess() {
+                                future.complete(null);
+                            }
+
+                            @Override
+                            public void onFailure(BusinessException e) {
+                                failures.incrementAndGet();
+                                future.complete(null);
+                            }
+                        };
+                        while (!submit(client, callback)){
+                            retries.incrementAndGet();
+                            Thread.yield();
+                        }
+                        future.get();
+                        latencies[i] = System.nanoTime() - begin;
+                    }
+                }catch (Exception e){
+                    throw new IllegalStateException(e);
+                }
+            });
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        clients.shutdown();
+        assertTrue(clients.awaitTermination(300, TimeUnit.SECONDS));
+        long elapsed = System.nanoTime() - begin;
+        assertEquals("下单不应失败", 0, failures.get());
+        Arrays.sort(latencies);
+        return new double[]{REQUESTS * 1e9 / elapsed, latencies[REQUESTS / 2], latencies[REQUESTS * 99 / 100 - 1],
+                retries.get(), insertCalls.get()};
+    }
+
+    private boolean submit(Client client, OrderPipelineCallback callback){
+        try {
+            return client.submit(callback);
+        }catch (RejectedExecutionException e){
+            return false;
+        }
+    }
+
+    private void print(boolean io, String mode, double[] result){
+        System.out.println(String.format("%-5s %-18s %10.0f %9.2f %9.2f %9.0f %12.3f", io ? "io" : "noio", mode,
+                result[0], result[1] / 1e6, result[2] / 1e6, result[3], result[4] / REQUESTS));
+    }
+
+    //与OrderController.createOrderTask相同的三步,结果通过回调通知请求线程
+    private Callable<Object> createOrderTask(OrderPipelineCallback callback){
+        return () -> {
+            if (soldOutRegistry.isSoldOutLocally(ITEM_ID)){
+                callback.onFailure(new BusinessException(EmBusinessError.STOCK_NOT_ENOUGH, "库存不足"));
+                return null;
+            }
+            String stockLogId = itemService.initStockLog(ITEM_ID, 1);
+            if (!mqProducer.transactionAsyncReduceStock(1, ITEM_ID, null, 1, stockLogId)){
+                callback.onFailure(new BusinessException(EmBusinessError.UNKNOWN_ERROR, "下单失败"));
+                return null;
+            }
+            callback.onSuccess();
+            return null;
+        };
+    }
+
+    private void io(long nanos){
+        if (simulateIo){
+            LockSupport.parkNanos(nanos);
+        }
+    }
+
+    private OrderTaskExecutor newPool() throws Exception {
+        set(itemService, "stockLogDOMapper", stockLogDOMapper);
+        OrderTaskExecutor pool = new OrderTaskExecutor();
+        set(pool, "coreSize", POOL_SIZE);
+        set(pool, "maxSize", POOL_SIZE);
+        set(pool, "queueCapacity", POOL_QUEUE_CAPACITY);
+        pool.init();
+        return pool;
+    }
+
+    private OrderPipeline newPipeline(String waitStrategy) throws Exception {
+        OrderPipeline pipeline = new OrderPipeline();
+        set(pipeline, "soldOutRegistry", soldOutRegistry);
+        set(pipeline, "stockLogDOMapper", stockLogDOMapper);
+        set(pipeline, "mqProducer", mqProducer);
+        set(pipeline, "orderExecutorMode", "pipeline");
+        set(pipeline, "bufferSize", BUFFER_SIZE);
+        set(pipeline, "batchSize", BATCH_SIZE);
+        set(pipeline, "senderCount", SENDER_COUNT);
+        set(pipeline, "waitStrategyName", waitStrategy);
+        pipeline.init();
+        return pipeline;
+    }
+
+    private void set(Object target, String name, Object value) throws Exception {
+        Field field = target.getClass().getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(target, value);
+    }
+
+    private interface Client {
+        //队列已满时返回false或抛出RejectedExecutionException
+        boolean submit(OrderPipelineCallback callback);
+    }
+}
@@ -0,0 +1,187 @@
+package com.zc.miaoshaproject.pipeline;
+
+import com.zc.miaoshaproject.dao.StockLogDOMapper;
+import com.zc.miaoshaproject.dataobject.StockLogDO;
+import com.zc.miaoshaproject.error.BusinessException;
+import com.zc.miaoshaproject.error.EmBusinessError;
+import com.zc.miaoshaproject.mq.MqProducer;
+import com.zc.miaoshaproject.stock.SoldOutRegistry;
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.data.redis.connection.DefaultMessage;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 描述:
+ * 多线程发布、缓冲区反复绕圈时,每个请求恰好回调一次,流水与消息一一对应,槽位内容不串
+ * @Author: zhangchao
+ * @Date: 9/13/20 4:25 下午
+ **/
+public class OrderPipelineTest {
+
+    private static final int PUBLISHERS = 8;
+
+    private static final int REQUESTS_PER_PUBLISHER = 20000;
+
+    private static final int SOLD_OUT_ITEM = 6;
+
+    private OrderPipeline pipeline;
+
+    //请求编号 -> 回调次数
+    private final Map<Integer,AtomicInteger> callbacks = new ConcurrentHashMap<>();
+
+    private final Map<Integer,Integer> failCodes = new ConcurrentHashMap<>();
+
+    private final Set<String> insertedStockLogIds = ConcurrentHashMap.newKeySet();
+
+    private final Set<String> sentStockLogIds = ConcurrentHashMap.newKeySet();
+
+    private final AtomicInteger insertCalls = new AtomicInteger();
+
+    private final AtomicInteger mismatches = new AtomicInteger();
+
+    @After
+    public void tearDown(){
+        if (pipeline != null){
+            pipeline.destroy();
+        }
+    }
+
+    @Test
+    public void everySlotIsHandledExactlyOnce() throws Exception {
+        pipeline = newPipeline();
+        int total = PUBLISHERS * REQUESTS_PER_PUBLISHER;
+        CountDownLatch done = new CountDownLatch(total);
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService publishers = Executors.newFixedThreadPool(PUBLISHERS);
+        for (int p = 0; p < PUBLISHERS; p++){
+            int publisher = p;
+            publishers.execute(() -> {
+                try {
+                    start.await();
+                }catch (InterruptedException e){
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                for (int i = 0; i < REQUESTS_PER_PUBLISHER; i++){
+                    int requestId = publisher * REQUESTS_PER_PUBLISHER + i + 1;
+                    callbacks.put(requestId, new AtomicInteger());
+                    OrderPipelineCallback callback = new OrderPipelineCallback() {
+                        @Override
+                        public void onSuccess() {
+                            callbacks.get(requestId).incrementAndGet();
+                            done.countDown();
+                        }
+
+                        @Override
+                        public void onFailure(BusinessException e) {
+                            failCodes.put(requestId, e.getErrCode());
+                            callbacks.get(requestId).incrementAndGet();
+                            done.countDown();
+                        }
+                    };
+                    //缓冲区写满时重试,验证绕圈复用槽位
+                    while (!pipeline.publish(requestId, itemOf(requestId), null, amountOf(requestId), callback)){
+                        Thread.yield();
+                    }
+                }
+            });
+        }
+        start.countDown();
+        publishers.shutdown();
+        assertTrue("部分请求没有回调", done.await(60, TimeUnit.SECONDS));
+        //多等一会,确认没有重复回调
+        Thread.sleep(200);
+
+        assertEquals("槽位内容与请求不一致", 0, mismatches.get());
+        int succeeded = 0;
+        for (Map.Entry<Integer,AtomicInteger> entry : callbacks.entrySet()){
+            int requestId = entry.getKey();
+            assertEquals("请求" + requestId + "的回调次数", 1, entry.getValue().get());
+            Integer failCode = failCodes.get(requestId);
+            if (amountOf(requestId) <= 0){
+                assertEquals(Integer.valueOf(EmBusinessError.PARAMETER_VALIDATION_ERROR.getErrCode()), failCode);
+            }else if (itemOf(requestId) == SOLD_OUT_ITEM){
+                assertEquals(Integer.valueOf(EmBusinessError.STOCK_NOT_ENOUGH.getErrCode()), failCode);
+            }else if (failCode == null){
+                succeeded++;
+            }
+        }
+        assertEquals("发送的消息与成功回调一一对应", succeeded, sentStockLogIds.size());
+        assertTrue("发送的流水都已写入", insertedStockLogIds.containsAll(sentStockLogIds));
+        assertTrue(succeeded > 0);
+    }
+
+    private OrderPipeline newPipeline() throws Exception {
+        SoldOutRegistry soldOutRegistry = new SoldOutRegistry();
+        soldOutRegistry.onMessage(new DefaultMessage(SoldOutRegistry.CHANNEL.getBytes(), ("soldout:" + SOLD_OUT_ITEM).getBytes()), null);
+
+        StockLogDOMapper stockLogDOMapper = (StockLogDOMapper) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class[]{StockLogDOMapper.class}, (proxy, method, args) -> {
+                    if (!"insertBatch".equals(method.getName())){
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                    //偶尔写入失败,整批回调失败
+                    if (insertCalls.incrementAndGet() % 50 == 0){
+                        throw new IllegalStateException("insert failed");
+                    }
+                    for (Object stockLog : (List) args[0]){
+                        if (!insertedStockLogIds.add(((StockLogDO) stockLog).getStockLogId())){
+                            mismatches.incrementAndGet();
+                        }
+                    }
+                    return ((List) args[0]).size();
+                });
+
+        MqProducer mqProducer = new MqProducer(){
+            @Override
+            public boolean transactionAsyncReduceStock(Integer userId, Integer itemId, Integer promoId, Integer amount, String stockLogId) {
+                if (!itemOf(userId).equals(itemId) || !amountOf(userId).equals(amount) || !sentStockLogIds.add(stockLogId)){
+                    mismatches.incrementAndGet();
+                }
+                return true;
+            }
+        };
+
+        OrderPipeline orderPipeline = new OrderPipeline();
+        set(orderPipeline, "soldOutRegistry", soldOutRegistry);
+        set(orderPipeline, "stockLogDOMapper", stockLogDOMapper);
+        set(orderPipeline, "mqProducer", mqProducer);
+        set(orderPipeline, "orderExecutorMode", "pipeline");
+        set(orderPipeline, "bufferSize", 64);
+        set(orderPipeline, "batchSize", 16);
+        set(orderPipeline, "senderCount", 4);
+        set(orderPipeline, "waitStrategyName", "yielding");
+        orderPipeline.init();
+        return orderPipeline;
+    }
+
+    //请求编号同时作为userId,商品和数量由编号推出,发送时据此校验槽位没有串
+    private static Integer itemOf(int requestId){
+        return requestId % 7;
+    }
+
+    private static Integer amountOf(int requestId){
+        return requestId % 13 == 0 ? 0 : requestId % 5 + 1;
+    }
+
+    private void set(Object target, String name, Object value) throws Exception {
+        Field field = target.getClass().getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(target, value);
+    }
+}
@@ -0,0 +1,107 @@
+package com.zc.miaoshaproject.promo;
+
+import com.zc.miaoshaproject.dao.PromoDOMapper;
+import com.zc.miaoshaproject.dataobject.PromoDO;
+import com.zc.miaoshaproject.service.ItemService;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * 描述:
+ * 活动状态在读取时按当前时间得出,加载时还未开始的活动到点后无需等待重新加载即为进行中
+ * @Author: zhangchao
+ * @Date: 9/15/20 5:10 下午
+ **/
+public class PromoRegistryTest {
+
+    private final List<PromoDO> promoTable = new ArrayList<>();
+
+    private ScheduledExecutorService scheduler;
+
+    private PromoRegistry promoRegistry;
+
+    @Before
+    public void setUp() throws Exception {
+        PromoDOMapper promoDOMapper = (PromoDOMapper) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class[]{PromoDOMapper.class}, (proxy, method, args) -> {
+                    if (!"listNotEnded".equals(method.getName())){
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                    return new ArrayList<>(promoTable);
+                });
+        //到点的任务只淘汰商品缓存
+        ItemService itemService = (ItemService) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class[]{ItemService.class}, (proxy, method, args) -> null);
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        promoRegistry = new PromoRegistry();
+        set("promoDOMapper", promoDOMapper);
+        set("itemService", itemService);
+        set("scheduler", scheduler);
+    }
+
+    @After
+    public void tearDown(){
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    public void statusFollowsClockWithoutReload() throws Exception {
+        long now = System.currentTimeMillis();
+        promoTable.add(promo(1, 11, now + 300, now + 3600000));
+        promoTable.add(promo(2, 12, now - 1000, now + 300));
+        reload();
+        assertEquals(Integer.valueOf(1), promoRegistry.getPromo(1).getStatus());
+        assertEquals(Integer.valueOf(2), promoRegistry.getPromoByItemId(12).getStatus());
+
+        //开始任务执行前阻塞调度线程,状态也不依赖任务切换
+        scheduler.execute(() -> {
+            try {
+                Thread.sleep(1000);
+            }catch (InterruptedException e){
+                Thread.currentThread().interrupt();
+            }
+        });
+        Thread.sleep(500);
+        assertEquals(Integer.valueOf(2), promoRegistry.getPromo(1).getStatus());
+        assertEquals(Integer.valueOf(2), promoRegistry.getPromoByItemId(11).getStatus());
+        //已过结束时间的活动在重新加载前同样视为不存在
+        assertNull(promoRegistry.getPromo(2));
+        assertNull(promoRegistry.getPromoByItemId(12));
+    }
+
+    private PromoDO promo(int id, int itemId, long startTime, long endTime){
+        PromoDO promoDO = new PromoDO();
+        promoDO.setId(id);
+        promoDO.setItemId(itemId);
+        promoDO.setPromoName("秒杀" + id);
+        promoDO.setStartDate(new Date(startTime));
+        promoDO.setEndDate(new Date(endTime));
+        promoDO.setPromoItemPrice(99.0);
+        return promoDO;
+    }
+
+    private void reload() throws Exception {
+        Method method = PromoRegistry.class.getDeclaredMethod("reload");
+        method.setAccessible(true);
+        method.invoke(promoRegistry);
+    }
+
+    private void set(String name, Object value) throws Exception {
+        Field field = PromoRegistry.class.getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(promoRegistry, value);
+    }
+}
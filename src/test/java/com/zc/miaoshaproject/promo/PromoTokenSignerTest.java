@@ -0,0 +1,76 @@
+package com.zc.miaoshaproject.promo;
+
+import org.junit.Test;
+
+import java.lang.reflect.Field;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 描述:
+ * 签名令牌:配置相同的多个节点签发的令牌互不冲突,同一令牌在本节点只能使用一次,被限流时释放后可重试
+ * @Author: zhangchao
+ * @Date: 9/15/20 4:05 下午
+ **/
+public class PromoTokenSignerTest {
+
+    @Test
+    public void tokensFromNodesWithSameConfigDoNotCollide() throws Exception {
+        PromoTokenSigner nodeA = newSigner();
+        PromoTokenSigner nodeB = newSigner();
+        Set<String> tokens = new HashSet<>();
+        for (int i = 0; i < 10000; i++){
+            String tokenA = nodeA.sign(1, 7, 3);
+            String tokenB = nodeB.sign(1, 7, 3);
+            assertTrue(tokens.add(tokenA));
+            assertTrue(tokens.add(tokenB));
+        }
+        //节点a已校验过b签发的所有令牌也不会误判为重放
+        for (String token : tokens){
+            assertTrue(nodeA.verify(token, 1, 7, 3));
+        }
+    }
+
+    @Test
+    public void tokenIsUsedOnceUntilReleased() throws Exception {
+        PromoTokenSigner signer = newSigner();
+        String token = signer.sign(1, 7, 3);
+        assertFalse(signer.verify(token, 1, 8, 3));
+        assertTrue(signer.verify(token, 1, 7, 3));
+        assertFalse(signer.verify(token, 1, 7, 3));
+
+        //下单被限流,释放后同一令牌可以重试
+        signer.release(token);
+        assertTrue(signer.verify(token, 1, 7, 3));
+        assertFalse(signer.verify(token, 1, 7, 3));
+    }
+
+    @Test
+    public void tamperedTokenIsRejected() throws Exception {
+        PromoTokenSigner signer = newSigner();
+        char[] chars = signer.sign(1, 7, 3).toCharArray();
+        chars[10] = chars[10] == 'A' ? 'B' : 'A';
+        assertFalse(signer.verify(new String(chars), 1, 7, 3));
+    }
+
+    private PromoTokenSigner newSigner() throws Exception {
+        PromoTokenSigner signer = new PromoTokenSigner();
+        set(signer, "tokenMode", "hmac");
+        set(signer, "secret", "test_secret");
+        set(signer, "rotateMinutes", 60);
+        set(signer, "ttlSeconds", 300);
+        set(signer, "replayCheck", true);
+        set(signer, "nonceMaxSize", 100000L);
+        signer.init();
+        return signer;
+    }
+
+    private void set(Object target, String name, Object value) throws Exception {
+        Field field = target.getClass().getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(target, value);
+    }
+}
@@ -0,0 +1,138 @@
+package com.zc.miaoshaproject.promo;
+
+import com.zc.miaoshaproject.dao.PromoDOMapper;
+import com.zc.miaoshaproject.dataobject.PromoDO;
+import com.zc.miaoshaproject.service.ItemService;
+import com.zc.miaoshaproject.service.PromoService;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 描述:
+ * 活动开始时间被修改或活动移出扫描窗口后,按旧时间安排的预热任务被取消
+ * @Author: zhangchao
+ * @Date: 9/16/20 2:20 下午
+ **/
+public class PromoWarmupSchedulerTest {
+
+    private final List<PromoDO> promoTable = new ArrayList<>();
+
+    //预热执行时先确认活动是否已发布,以此计数预热次数
+    private final AtomicInteger warmupRuns = new AtomicInteger();
+
+    private ScheduledExecutorService scheduler;
+
+    private PromoWarmupScheduler warmupScheduler;
+
+    @Before
+    public void setUp() throws Exception {
+        PromoDOMapper promoDOMapper = (PromoDOMapper) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class[]{PromoDOMapper.class}, (proxy, method, args) -> {
+                    if (!"listStartBefore".equals(method.getName())){
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                    return new ArrayList<>(promoTable);
+                });
+        PromoService promoService = (PromoService) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class[]{PromoService.class}, (proxy, method, args) -> {
+                    if (!"isPromoPublished".equals(method.getName())){
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                    warmupRuns.incrementAndGet();
+                    return true;
+                });
+        //商品不存在时跳过缓存预热
+        ItemService itemService = (ItemService) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class[]{ItemService.class}, (proxy, method, args) -> null);
+        scheduler = Executors.newScheduledThreadPool(2);
+        warmupScheduler = new PromoWarmupScheduler();
+        set("promoDOMapper", promoDOMapper);
+        set("promoService", promoService);
+        set("itemService", itemService);
+        set("scheduler", scheduler);
+        set("leadSeconds", 1);
+        set("scanSeconds", 30);
+    }
+
+    @After
+    public void tearDown(){
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    public void rescheduledPromoIsNotWarmedAtOldTime() throws Exception {
+        long now = System.currentTimeMillis();
+        PromoDO promoDO = promo(1, now + 1400);
+        promoTable.add(promoDO);
+        scan();
+        //开始时间推后
+        promoDO.setStartDate(new Date(now + 60000));
+        scan();
+        Thread.sleep(1000);
+        assertEquals(0, warmupRuns.get());
+    }
+
+    @Test
+    public void droppedPromoIsCancelled() throws Exception {
+        long now = System.currentTimeMillis();
+        promoTable.add(promo(1, now + 1400));
+        scan();
+        promoTable.clear();
+        scan();
+        Thread.sleep(1000);
+        assertEquals(0, warmupRuns.get());
+        assertTrue(scheduledMap().isEmpty());
+    }
+
+    @Test
+    public void unchangedPromoIsWarmedOnce() throws Exception {
+        long now = System.currentTimeMillis();
+        promoTable.add(promo(1, now + 1200));
+        scan();
+        scan();
+        Thread.sleep(800);
+        assertEquals(1, warmupRuns.get());
+    }
+
+    private PromoDO promo(int id, long startTime){
+        PromoDO promoDO = new PromoDO();
+        promoDO.setId(id);
+        promoDO.setItemId(id + 10);
+        promoDO.setStartDate(new Date(startTime));
+        promoDO.setEndDate(new Date(startTime + 3600000));
+        return promoDO;
+    }
+
+    private void scan() throws Exception {
+        Method method = PromoWarmupScheduler.class.getDeclaredMethod("scan");
+        method.setAccessible(true);
+        method.invoke(warmupScheduler);
+    }
+
+    private Map<?,?> scheduledMap() throws Exception {
+        Field field = PromoWarmupScheduler.class.getDeclaredField("scheduledMap");
+        field.setAccessible(true);
+        return (Map<?,?>) field.get(warmupScheduler);
+    }
+
+    private void set(String name, Object value) throws Exception {
+        Field field = PromoWarmupScheduler.class.getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(warmupScheduler, value);
+    }
+}
@@ -0,0 +1,131 @@
+package com.zc.miaoshaproject.sequence;
+
+import com.zc.miaoshaproject.service.impl.OrderServiceImpl;
+import org.junit.Test;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 描述:
+ * 雪花id生成吞吐压测:不同线程数下每秒生成的id数、折算到每个核的吞吐,
+ * 以及同一毫秒序列用完借用后续毫秒导致id时间戳超前于系统时钟的毫秒数;
+ * 同时测完整订单号(雪花id+2位分片位)的生成;默认不跑,mvn test -Pbenchmark -Dtest=SnowflakeIdGeneratorBenchmark
+ * @Author: zhangchao
+ * @Date: 9/17/20 2:10 下午
+ **/
+public class SnowflakeIdGeneratorBenchmark {
+
+    //与SnowflakeIdGenerator一致
+    private static final long EPOCH = 1598918400000L;
+
+    private static final int TIMESTAMP_SHIFT = 22;
+
+    private static final int[] THREADS = {1, 2, 4, 8, 16};
+
+    private static final long WARMUP_MILLIS = 2000;
+
+    private static final long MEASURE_MILLIS = 3000;
+
+    //防止生成结果被jit优化掉
+    private volatile long sink;
+
+    @Test
+    public void nextIdThroughput() throws Exception {
+        int cores = Runtime.getRuntime().availableProcessors();
+        System.out.println("cores=" + cores);
+        System.out.println(String.format("%-8s %8s %14s %14s %10s", "target", "threads", "ids/s", "ids/s/core", "aheadMs"));
+        for (int threads : THREADS){
+            SnowflakeIdGenerator generator = newGenerator();
+            run(threads, WARMUP_MILLIS, generator::nextId);
+            long[] result = run(threads, MEASURE_MILLIS, generator::nextId);
+            print("nextId", threads, cores, result);
+        }
+        for (int threads : THREADS){
+            OrderServiceImpl orderService = newOrderService(newGenerator());
+            Method method = OrderServiceImpl.class.getDeclaredMethod("generateOrderNo", Integer.class);
+            method.setAccessible(true);
+            IdSupplier orderNo = () -> {
+                String value = (String) method.invoke(orderService, 12345);
+                //去掉末尾2位分片位即为雪花id
+                return Long.parseLong(value.substring(0, value.length() - 2));
+            };
+            run(threads, WARMUP_MILLIS, orderNo);
+            long[] result = run(threads, MEASURE_MILLIS, orderNo);
+            print("orderNo", threads, cores, result);
+        }
+    }
+
+    private void print(String target, int threads, int cores, long[] result){
+        double idsPerSecond = result[0] * 1000.0 / MEASURE_MILLIS;
+        System.out.println(String.format("%-8s %8d %14.0f %14.0f %10d", target, threads,
+                idsPerSecond, idsPerSecond / Math.min(threads, cores), result[1]));
+        assertTrue(result[0] > 0);
+    }
+
+    //返回{生成的id数量, 最后一个id的时间戳超前系统时钟的毫秒数}
+    private long[] run(int threads, long millis, IdSupplier supplier) throws Exception {
+        AtomicLong count = new AtomicLong();
+        AtomicLong maxId = new AtomicLong();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        long deadline = System.currentTimeMillis() + millis;
+        for (int t = 0; t < threads; t++){
+            pool.execute(() -> {
+                long generated = 0;
+                long last = 0;
+                try {
+                    start.await();
+                    //每生成1024个检查一次是否到时间,避免频繁读时钟
+                    while (System.currentTimeMillis() < deadline){
+                        for (int i = 0; i < 1024; i++){
+                            last = supplier.next();
+                        }
+                        generated += 1024;
+                    }
+                }catch (Exception e){
+                    throw new IllegalStateException(e);
+                }
+                count.addAndGet(generated);
+                maxId.accumulateAndGet(last, Math::max);
+                sink = last;
+            });
+        }
+        start.countDown();
+        pool.shutdown();
+        assertTrue(pool.awaitTermination(millis + 60000, TimeUnit.MILLISECONDS));
+        long ahead = (maxId.get() >>> TIMESTAMP_SHIFT) + EPOCH - System.currentTimeMillis();
+        return new long[]{count.get(), Math.max(0, ahead)};
+    }
+
+    private SnowflakeIdGenerator newGenerator() throws Exception {
+        SnowflakeIdGenerator generator = new SnowflakeIdGenerator();
+        set(generator, "workerId", 1L);
+        generator.init();
+        return generator;
+    }
+
+    private OrderServiceImpl newOrderService(SnowflakeIdGenerator generator) throws Exception {
+        OrderServiceImpl orderService = new OrderServiceImpl();
+        set(orderService, "snowflakeIdGenerator", generator);
+        set(orderService, "orderNoGenerator", "snowflake");
+        return orderService;
+    }
+
+    private void set(Object target, String name, Object value) throws Exception {
+        Field field = target.getClass().getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(target, value);
+    }
+
+    private interface IdSupplier {
+        long next() throws Exception;
+    }
+}
@@ -0,0 +1,93 @@
+package com.zc.miaoshaproject.sequence;
+
+import org.junit.Test;
+
+import java.lang.reflect.Field;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 描述:
+ * 雪花id多线程下不重复、每个线程内单调递增,workerId写入对应的位
+ * @Author: zhangchao
+ * @Date: 9/13/20 11:30 上午
+ **/
+public class SnowflakeIdGeneratorTest {
+
+    private static final int THREADS = 16;
+
+    private static final int IDS_PER_THREAD = 20000;
+
+    @Test
+    public void idsAreUniqueAndIncreasingAcrossThreads() throws Exception {
+        SnowflakeIdGenerator generator = newGenerator(37);
+        long[][] ids = new long[THREADS][IDS_PER_THREAD];
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        for (int t = 0; t < THREADS; t++){
+            long[] threadIds = ids[t];
+            executor.execute(() -> {
+                try {
+                    start.await();
+                }catch (InterruptedException e){
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                for (int i = 0; i < IDS_PER_THREAD; i++){
+                    threadIds[i] = generator.nextId();
+                }
+            });
+        }
+        start.countDown();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(60, TimeUnit.SECONDS));
+
+        Set<Long> all = new HashSet<>(THREADS * IDS_PER_THREAD * 2);
+        for (long[] threadIds : ids){
+            for (int i = 0; i < IDS_PER_THREAD; i++){
+                assertTrue("id必须为正数", threadIds[i] > 0);
+                if (i > 0){
+                    assertTrue("同一线程内id单调递增", threadIds[i] > threadIds[i - 1]);
+                }
+                assertEquals(37, (threadIds[i] >>> 12) & 1023);
+                all.add(threadIds[i]);
+            }
+        }
+        assertEquals("id不能重复", THREADS * IDS_PER_THREAD, all.size());
+    }
+
+    @Test
+    public void sequenceOverflowWaitsForNextMillisecond() throws Exception {
+        SnowflakeIdGenerator generator = newGenerator(0);
+        //单线程连续生成超过一毫秒内4096个序列的数量
+        long previous = generator.nextId();
+        for (int i = 0; i < 100000; i++){
+            long id = generator.nextId();
+            assertTrue(id > previous);
+            previous = id;
+        }
+        //id中的时间戳不能超前于系统时钟(EPOCH为2020-09-01 00:00:00 UTC)
+        assertTrue((previous >>> 22) + 1598918400000L <= System.currentTimeMillis());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void workerIdOutOfRangeIsRejected() throws Exception {
+        newGenerator(1024);
+    }
+
+    private SnowflakeIdGenerator newGenerator(long workerId) throws Exception {
+        SnowflakeIdGenerator generator = new SnowflakeIdGenerator();
+        Field field = SnowflakeIdGenerator.class.getDeclaredField("workerId");
+        field.setAccessible(true);
+        field.set(generator, workerId);
+        generator.init();
+        return generator;
+    }
+}
@@ -0,0 +1,137 @@
+package com.zc.miaoshaproject.serializer;
+
+import com.zc.miaoshaproject.config.RedisConfig;
+import com.zc.miaoshaproject.service.model.ItemModel;
+import com.zc.miaoshaproject.service.model.PromoModel;
+import com.zc.miaoshaproject.service.model.UserModel;
+import org.joda.time.DateTime;
+import org.junit.Test;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.serializer.RedisSerializer;
+
+import java.lang.reflect.Field;
+import java.math.BigDecimal;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 描述:
+ * 领域模型redis编码压测:RedisConfig中的jackson编码 对比 compact二进制编码;
+ * 两种编码器都由RedisConfig按redis.value.codec创建,与线上配置一致;
+ * 统计每种模型的编码后字节数和单次序列化/反序列化耗时(ns/op),另测compact编码器读取旧json缓存的耗时;
+ * 默认不跑,mvn test -Pbenchmark -Dtest=CompactModelRedisSerializerBenchmark
+ * @Author: zhangchao
+ * @Date: 9/18/20 3:15 下午
+ **/
+public class CompactModelRedisSerializerBenchmark {
+
+    private static final int OPS_PER_ROUND = 200000;
+
+    private static final int WARMUP_ROUNDS = 5;
+
+    private static final int ROUNDS = 5;
+
+    //防止结果被jit优化掉
+    private volatile Object sink;
+
+    @Test
+    public void jacksonVersusCompact() throws Exception {
+        RedisSerializer<Object> jackson = valueSerializer("jackson");
+        RedisSerializer<Object> compact = valueSerializer("compact");
+        Object[] models = {newItemModel(), newPromoModel(), newUserModel()};
+
+        System.out.println(String.format("%-12s %-14s %8s %12s %12s", "model", "codec", "bytes", "ser(ns/op)", "deser(ns/op)"));
+        for (Object model : models){
+            String name = model.getClass().getSimpleName();
+            byte[] jsonBytes = jackson.serialize(model);
+            byte[] compactBytes = compact.serialize(model);
+            assertTrue(compactBytes.length < jsonBytes.length);
+
+            print(name, "jackson", jsonBytes.length, serialize(jackson, model), deserialize(jackson, jsonBytes));
+            print(name, "compact", compactBytes.length, serialize(compact, model), deserialize(compact, compactBytes));
+            //切换到compact后,还没过期的json缓存走jackson回退读取
+            print(name, "compact(json)", jsonBytes.length, Double.NaN, deserialize(compact, jsonBytes));
+        }
+    }
+
+    private double serialize(RedisSerializer<Object> serializer, Object model){
+        return measure(() -> sink = serializer.serialize(model));
+    }
+
+    private double deserialize(RedisSerializer<Object> serializer, byte[] bytes){
+        return measure(() -> sink = serializer.deserialize(bytes));
+    }
+
+    //预热若干轮后取多轮平均
+    private double measure(Runnable op){
+        for (int r = 0; r < WARMUP_ROUNDS; r++){
+            for (int i = 0; i < OPS_PER_ROUND; i++){
+                op.run();
+            }
+        }
+        long total = 0;
+        for (int r = 0; r < ROUNDS; r++){
+            long begin = System.nanoTime();
+            for (int i = 0; i < OPS_PER_ROUND; i++){
+                op.run();
+            }
+            total += System.nanoTime() - begin;
+        }
+        return (double) total / ROUNDS / OPS_PER_ROUND;
+    }
+
+    private void print(String model, String codec, int bytes, double serNanos, double deserNanos){
+        System.out.println(String.format("%-12s %-14s %8d %12s %12.0f", model, codec, bytes,
+                Double.isNaN(serNanos) ? "-" : String.format("%.0f", serNanos), deserNanos));
+    }
+
+    @SuppressWarnings("unchecked")
+    private RedisSerializer<Object> valueSerializer(String codec) throws Exception {
+        RedisConfig redisConfig = new RedisConfig();
+        Field field = RedisConfig.class.getDeclaredField("valueCodec");
+        field.setAccessible(true);
+        field.set(redisConfig, codec);
+        //只取value序列化器,不会建立连接
+        RedisTemplate redisTemplate = redisConfig.redisTemplate(new LettuceConnectionFactory());
+        return (RedisSerializer<Object>) redisTemplate.getValueSerializer();
+    }
+
+    private ItemModel newItemModel(){
+        ItemModel itemModel = new ItemModel();
+        itemModel.setId(12);
+        itemModel.setTitle("iphone12");
+        itemModel.setPrice(new BigDecimal("6999.00"));
+        itemModel.setStock(100);
+        itemModel.setDescription("最新款");
+        itemModel.setSales(35);
+        itemModel.setImgUrl("http://img.example.com/1.jpg");
+        itemModel.setPromoModel(newPromoModel());
+        return itemModel;
+    }
+
+    private PromoModel newPromoModel(){
+        PromoModel promoModel = new PromoModel();
+        promoModel.setId(3);
+        promoModel.setStatus(2);
+        promoModel.setPromoName("秒杀");
+        promoModel.setStartDate(new DateTime(1600000000000L));
+        promoModel.setEndDate(new DateTime(1600003600000L));
+        promoModel.setItemId(12);
+        promoModel.setPromoItemPrice(new BigDecimal("99.90"));
+        return promoModel;
+    }
+
+    private UserModel newUserModel(){
+        UserModel userModel = new UserModel();
+        userModel.setId(1);
+        userModel.setName("张三");
+        userModel.setGender((byte) 1);
+        userModel.setAge(30);
+        userModel.setTelphone("13800000000");
+        userModel.setRegisterMode("byphone");
+        userModel.setThirdPartyId("");
+        userModel.setEncrptPassword("4QrcOUm6Wau+VuBX8g+IPg==");
+        return userModel;
+    }
+}
@@ -0,0 +1,209 @@
+package com.zc.miaoshaproject.serializer;
+
+import com.zc.miaoshaproject.service.model.ItemModel;
+import com.zc.miaoshaproject.service.model.PromoModel;
+import com.zc.miaoshaproject.service.model.UserModel;
+import org.joda.time.DateTime;
+import org.junit.Test;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.data.redis.serializer.SerializationException;
+
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * 描述:
+ * 三个模型的二进制编解码往返一致,覆盖超出long范围的BigDecimal、空字段、旧版本数据和更新版本数据
+ * @Author: zhangchao
+ * @Date: 9/14/20 10:40 上午
+ **/
+public class CompactModelRedisSerializerTest {
+
+    //非领域模型按字符串处理,便于确认走的是哪条路径
+    private final RedisSerializer<Object> fallback = new RedisSerializer<Object>() {
+        @Override
+        public byte[] serialize(Object value) throws SerializationException {
+            return value == null ? null : ("json:" + value).getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public Object deserialize(byte[] bytes) throws SerializationException {
+            return bytes == null ? null : new String(bytes, StandardCharsets.UTF_8);
+        }
+    };
+
+    private final CompactModelRedisSerializer serializer = new CompactModelRedisSerializer(fallback, true);
+
+    @Test
+    public void itemModelWithPromoRoundTrip(){
+        ItemModel itemModel = newItemModel();
+        itemModel.setPromoModel(newPromoModel());
+        assertItemEquals(itemModel, (ItemModel) serializer.deserialize(serializer.serialize(itemModel)));
+    }
+
+    @Test
+    public void itemModelWithNullFieldsRoundTrip(){
+        ItemModel itemModel = new ItemModel();
+        itemModel.setId(7);
+        itemModel.setSales(0);
+        assertItemEquals(itemModel, (ItemModel) serializer.deserialize(serializer.serialize(itemModel)));
+    }
+
+    @Test
+    public void promoModelRoundTrip(){
+        PromoModel promoModel = newPromoModel();
+        assertPromoEquals(promoModel, (PromoModel) serializer.deserialize(serializer.serialize(promoModel)));
+    }
+
+    @Test
+    public void userModelRoundTrip(){
+        UserModel userModel = new UserModel();
+        userModel.setId(Integer.MAX_VALUE);
+        userModel.setName("张三");
+        userModel.setGender((byte) 1);
+        userModel.setAge(-1);
+        userModel.setTelphone("13800000000");
+        userModel.setRegisterMode("byphone");
+        userModel.setThirdPartyId("");
+        userModel.setEncrptPassword("4QrcOUm6Wau+VuBX8g+IPg==");
+        UserModel decoded = (UserModel) serializer.deserialize(serializer.serialize(userModel));
+        assertEquals(userModel.getId(), decoded.getId());
+        assertEquals(userModel.getName(), decoded.getName());
+        assertEquals(userModel.getGender(), decoded.getGender());
+        assertEquals(userModel.getAge(), decoded.getAge());
+        assertEquals(userModel.getTelphone(), decoded.getTelphone());
+        assertEquals(userModel.getRegisterMode(), decoded.getRegisterMode());
+        assertEquals(userModel.getThirdPartyId(), decoded.getThirdPartyId());
+        assertEquals(userModel.getEncrptPassword(), decoded.getEncrptPassword());
+    }
+
+    @Test
+    public void decimalBeyondLongRoundTrip(){
+        BigDecimal[] values = {
+                //double构造出的非精确小数,非标度值远超long
+                new BigDecimal(9.99),
+                new BigDecimal("123456789012345678901234567890.12"),
+                new BigDecimal("-98765432109876543210987654321"),
+                new BigDecimal("1E+40"),
+                new BigDecimal(Long.MAX_VALUE).add(BigDecimal.ONE),
+                new BigDecimal(Long.MIN_VALUE),
+                new BigDecimal("0.00"),
+                new BigDecimal("-1.5")
+        };
+        for (BigDecimal value : values){
+            BinaryWriter writer = new BinaryWriter(16);
+            writer.writeDecimal(value);
+            BigDecimal decoded = new BinaryReader(writer.toByteArray(), 0).readDecimal();
+            //scale也必须一致,不能只比较数值
+            assertEquals(value, decoded);
+        }
+    }
+
+    @Test
+    public void itemModelVersion1IsStillReadable(){
+        //版本1:内嵌的PromoModel前没有版本号
+        ItemModel itemModel = newItemModel();
+        itemModel.setPromoModel(newPromoModel());
+        BinaryWriter writer = new BinaryWriter(128);
+        writer.writeByte(0x01);
+        writer.writeByte(ItemModelCodec.INSTANCE.typeId());
+        writer.writeByte(1);
+        writer.writeVarLong(0xFF);
+        writer.writeSignedVarLong(itemModel.getId());
+        writer.writeString(itemModel.getTitle());
+        writer.writeDecimal(itemModel.getPrice());
+        writer.writeSignedVarLong(itemModel.getStock());
+        writer.writeString(itemModel.getDescription());
+        writer.writeSignedVarLong(itemModel.getSales());
+        writer.writeString(itemModel.getImgUrl());
+        PromoModelCodec.INSTANCE.write(itemModel.getPromoModel(), writer);
+        assertItemEquals(itemModel, (ItemModel) serializer.deserialize(writer.toByteArray()));
+    }
+
+    @Test
+    public void newerVersionIsTreatedAsMiss(){
+        ItemModel itemModel = newItemModel();
+        itemModel.setPromoModel(newPromoModel());
+        byte[] bytes = serializer.serialize(itemModel);
+
+        byte[] newerItem = bytes.clone();
+        newerItem[2] = (byte) (ItemModelCodec.INSTANCE.version() + 1);
+        assertNull(serializer.deserialize(newerItem));
+
+        //只有内嵌的PromoModel升级了版本
+        BinaryWriter writer = new BinaryWriter(128);
+        ItemModelCodec.INSTANCE.write(itemModel, writer);
+        byte[] body = writer.toByteArray();
+        int promoVersionOffset = 3 + body.length - promoLength(itemModel.getPromoModel()) - 1;
+        byte[] newerPromo = bytes.clone();
+        assertEquals(PromoModelCodec.INSTANCE.version(), newerPromo[promoVersionOffset]);
+        newerPromo[promoVersionOffset] = (byte) (PromoModelCodec.INSTANCE.version() + 1);
+        assertNull(serializer.deserialize(newerPromo));
+    }
+
+    @Test
+    public void otherValuesUseFallback(){
+        assertEquals("json:100", serializer.deserialize(serializer.serialize(100)));
+        CompactModelRedisSerializer jsonOnly = new CompactModelRedisSerializer(fallback, false);
+        PromoModel promoModel = newPromoModel();
+        assertEquals("json:" + promoModel, jsonOnly.deserialize(jsonOnly.serialize(promoModel)));
+    }
+
+    private int promoLength(PromoModel promoModel){
+        BinaryWriter writer = new BinaryWriter(64);
+        PromoModelCodec.INSTANCE.write(promoModel, writer);
+        return writer.toByteArray().length;
+    }
+
+    private ItemModel newItemModel(){
+        ItemModel itemModel = new ItemModel();
+        itemModel.setId(12);
+        itemModel.setTitle("iphone12");
+        itemModel.setPrice(new BigDecimal("6999.00"));
+        itemModel.setStock(100);
+        itemModel.setDescription("最新款");
+        itemModel.setSales(35);
+        itemModel.setImgUrl("http://img.example.com/1.jpg");
+        return itemModel;
+    }
+
+    private PromoModel newPromoModel(){
+        PromoModel promoModel = new PromoModel();
+        promoModel.setId(3);
+        promoModel.setStatus(2);
+        promoModel.setPromoName("秒杀");
+        promoModel.setStartDate(new DateTime(1600000000000L));
+        promoModel.setEndDate(new DateTime(1600003600000L));
+        promoModel.setItemId(12);
+        promoModel.setPromoItemPrice(new BigDecimal(99.9));
+        return promoModel;
+    }
+
+    private void assertItemEquals(ItemModel expected, ItemModel actual){
+        assertEquals(expected.getId(), actual.getId());
+        assertEquals(expected.getTitle(), actual.getTitle());
+        assertEquals(expected.getPrice(), actual.getPrice());
+        assertEquals(expected.getStock(), actual.getStock());
+        assertEquals(expected.getDescription(), actual.getDescription());
+        assertEquals(expected.getSales(), actual.getSales());
+        assertEquals(expected.getImgUrl(), actual.getImgUrl());
+        if (expected.getPromoModel() == null){
+            assertNull(actual.getPromoModel());
+        }else {
+            assertPromoEquals(expected.getPromoModel(), actual.getPromoModel());
+        }
+    }
+
+    private void assertPromoEquals(PromoModel expected, PromoModel actual){
+        assertEquals(expected.getId(), actual.getId());
+        assertEquals(expected.getStatus(), actual.getStatus());
+        assertEquals(expected.getPromoName(), actual.getPromoName());
+        assertEquals(expected.getStartDate().getMillis(), actual.getStartDate().getMillis());
+        assertEquals(expected.getEndDate().getMillis(), actual.getEndDate().getMillis());
+        assertEquals(expected.getItemId(), actual.getItemId());
+        assertEquals(expected.getPromoItemPrice(), actual.getPromoItemPrice());
+    }
+}
@@ -0,0 +1,145 @@
+package com.zc.miaoshaproject.service.impl;
+
+import com.zc.miaoshaproject.stock.SoldOutRegistry;
+import com.zc.miaoshaproject.stock.StockBucketRouter;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.serializer.Jackson2JsonRedisSerializer;
+import org.springframework.data.redis.serializer.StringRedisSerializer;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 描述:
+ * 库存拆分时:单个子key不够但总量够的订单跨子key扣减,凑不齐时原样放回;回补库存后撤销售罄标识;
+ * 需要本地redis(127.0.0.1:6379),连不上时跳过
+ * @Author: zhangchao
+ * @Date: 9/16/20 10:30 上午
+ **/
+public class ItemServiceImplTest {
+
+    private static final Integer ITEM_ID = 900003;
+
+    private static final int BUCKETS = 4;
+
+    private static final String INVALID_KEY = "promo_item_stock_invalid_" + ITEM_ID;
+
+    private LettuceConnectionFactory connectionFactory;
+
+    private RedisTemplate<String,Object> redisTemplate;
+
+    private StockBucketRouter stockBucketRouter;
+
+    private SoldOutRegistry soldOutRegistry;
+
+    private ItemServiceImpl itemService;
+
+    @Before
+    public void setUp() throws Exception {
+        connectionFactory = new LettuceConnectionFactory("127.0.0.1", 6379);
+        connectionFactory.afterPropertiesSet();
+        try {
+            connectionFactory.getConnection().ping();
+        }catch (Exception e){
+            connectionFactory.destroy();
+            Assume.assumeNoException("redis不可用", e);
+        }
+        redisTemplate = new RedisTemplate<>();
+        redisTemplate.setConnectionFactory(connectionFactory);
+        redisTemplate.setKeySerializer(new StringRedisSerializer());
+        //与RedisConfig一致,数值按json读写
+        redisTemplate.setValueSerializer(new Jackson2JsonRedisSerializer<>(Object.class));
+        redisTemplate.afterPropertiesSet();
+        cleanUp();
+
+        stockBucketRouter = new StockBucketRouter();
+        set(stockBucketRouter, "redisTemplate", redisTemplate);
+        set(stockBucketRouter, "bucketCount", BUCKETS);
+
+        soldOutRegistry = new SoldOutRegistry();
+        set(soldOutRegistry, "redisTemplate", redisTemplate);
+        set(soldOutRegistry, "stringRedisTemplate", new StringRedisTemplate(connectionFactory));
+
+        itemService = new ItemServiceImpl();
+        set(itemService, "redisTemplate", redisTemplate);
+        set(itemService, "stockBucketRouter", stockBucketRouter);
+        set(itemService, "soldOutRegistry", soldOutRegistry);
+        set(itemService, "stockDecreaseMode", "incr");
+        itemService.init();
+    }
+
+    @After
+    public void tearDown(){
+        if (redisTemplate != null){
+            cleanUp();
+            connectionFactory.destroy();
+        }
+    }
+
+    @Test
+    public void orderLargerThanAnyBucketTakesAcrossBuckets() throws Exception {
+        //12个库存拆成3,3,3,3
+        stockBucketRouter.publish(ITEM_ID, 12);
+        assertTrue(itemService.decreaseStock(ITEM_ID, 5));
+        assertEquals(7, totalStock());
+
+        //总量不够时不扣减,已取出的放回,也不标记售罄
+        assertFalse(itemService.decreaseStock(ITEM_ID, 8));
+        assertEquals(7, totalStock());
+        assertFalse(soldOutRegistry.isSoldOut(ITEM_ID));
+
+        assertTrue(itemService.decreaseStock(ITEM_ID, 7));
+        assertEquals(0, totalStock());
+        assertTrue(soldOutRegistry.isSoldOut(ITEM_ID));
+    }
+
+    @Test
+    public void increaseStockClearsSoldOut() throws Exception {
+        stockBucketRouter.publish(ITEM_ID, 4);
+        assertTrue(itemService.decreaseStock(ITEM_ID, 4));
+        assertTrue(soldOutRegistry.isSoldOut(ITEM_ID));
+
+        //订单回滚,库存放回
+        itemService.increaseStock(ITEM_ID, 2);
+        assertEquals(2, totalStock());
+        assertFalse(soldOutRegistry.isSoldOut(ITEM_ID));
+        assertNull(redisTemplate.opsForValue().get(INVALID_KEY));
+        assertTrue(itemService.decreaseStock(ITEM_ID, 2));
+    }
+
+    private long totalStock(){
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++){
+            Object value = redisTemplate.opsForValue().get(stockBucketRouter.bucketKey(ITEM_ID, i));
+            total += value == null ? 0 : ((Number) value).longValue();
+        }
+        return total;
+    }
+
+    private void cleanUp(){
+        List<String> keys = new ArrayList<>();
+        keys.add(INVALID_KEY);
+        for (int i = 0; i < BUCKETS; i++){
+            keys.add("promo_item_stock_{" + ITEM_ID + "_" + i + "}");
+        }
+        redisTemplate.delete(keys);
+    }
+
+    private void set(Object target, String name, Object value) throws Exception {
+        Field field = target.getClass().getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(target, value);
+    }
+}
@@ -0,0 +1,130 @@
+package com.zc.miaoshaproject.service.impl;
+
+import com.zc.miaoshaproject.cache.IdExistenceFilter;
+import com.zc.miaoshaproject.cache.SingleFlightCacheLoader;
+import com.zc.miaoshaproject.dao.UserDOMapper;
+import com.zc.miaoshaproject.dao.UserPasswordDOMapper;
+import com.zc.miaoshaproject.dataobject.UserDO;
+import com.zc.miaoshaproject.dataobject.UserPasswordDO;
+import com.zc.miaoshaproject.service.model.UserModel;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.core.env.StandardEnvironment;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * 描述:
+ * getUserByIdInCache经过本地缓存的user区域,未命中时才走单飞加载回源
+ * @Author: zhangchao
+ * @Date: 9/15/20 10:20 上午
+ **/
+public class UserServiceImplTest {
+
+    private static final Integer USER_ID = 5;
+
+    private final AtomicInteger selectCalls = new AtomicInteger();
+
+    //单飞加载收到的redis key
+    private final List<String> loadedKeys = new ArrayList<>();
+
+    private CacheServiceImpl cacheService;
+
+    private UserServiceImpl userService;
+
+    @Before
+    public void setUp() throws Exception {
+        cacheService = new CacheServiceImpl();
+        set(cacheService, "environment", new StandardEnvironment());
+        set(cacheService, "redisMessageListenerContainer", new RedisMessageListenerContainer());
+        set(cacheService, "batchMillis", 60000L);
+        set(cacheService, "refreshThreads", 1);
+        cacheService.init();
+
+        UserDOMapper userDOMapper = (UserDOMapper) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class[]{UserDOMapper.class}, (proxy, method, args) -> {
+                    if (!"selectByPrimaryKey".equals(method.getName())){
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                    selectCalls.incrementAndGet();
+                    if (!USER_ID.equals(args[0])){
+                        return null;
+                    }
+                    UserDO userDO = new UserDO();
+                    userDO.setId(USER_ID);
+                    userDO.setName("张三");
+                    return userDO;
+                });
+        UserPasswordDOMapper userPasswordDOMapper = (UserPasswordDOMapper) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class[]{UserPasswordDOMapper.class}, (proxy, method, args) -> {
+                    if (!"selectByUserId".equals(method.getName())){
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                    UserPasswordDO userPasswordDO = new UserPasswordDO();
+                    userPasswordDO.setUserId((Integer) args[0]);
+                    userPasswordDO.setEncrptPassword("4QrcOUm6Wau+VuBX8g+IPg==");
+                    return userPasswordDO;
+                });
+        //不连redis,直接回源
+        SingleFlightCacheLoader singleFlightCacheLoader = new SingleFlightCacheLoader(){
+            @Override
+            public <T> T get(String cacheKey, long ttl, TimeUnit unit, Supplier<T> loader) {
+                loadedKeys.add(cacheKey);
+                return loader.get();
+            }
+        };
+
+        userService = new UserServiceImpl();
+        set(userService, "userDOMapper", userDOMapper);
+        set(userService, "userPasswordDOMapper", userPasswordDOMapper);
+        set(userService, "singleFlightCacheLoader", singleFlightCacheLoader);
+        //过滤器尚未构建时全部放行
+        set(userService, "idExistenceFilter", new IdExistenceFilter());
+        set(userService, "cacheService", cacheService);
+        userService.init();
+    }
+
+    @After
+    public void tearDown(){
+        cacheService.destroy();
+    }
+
+    @Test
+    public void loadsUserThroughRegion(){
+        UserModel userModel = userService.getUserByIdInCache(USER_ID);
+        assertEquals(USER_ID, userModel.getId());
+        assertEquals("4QrcOUm6Wau+VuBX8g+IPg==", userModel.getEncrptPassword());
+        //第二次直接命中本地缓存
+        assertSame(userModel, userService.getUserByIdInCache(USER_ID));
+        assertEquals(1, selectCalls.get());
+        assertEquals(1, loadedKeys.size());
+        assertEquals("user_validate_" + USER_ID, loadedKeys.get(0));
+        assertEquals(1L, cacheService.getStats().get("user").get("hitCount"));
+    }
+
+    @Test
+    public void missingUserIsNotCachedLocally(){
+        assertNull(userService.getUserByIdInCache(404));
+        assertNull(userService.getUserByIdInCache(404));
+        //本地不缓存null,空值由单飞加载在redis中标记
+        assertEquals(2, loadedKeys.size());
+    }
+
+    private void set(Object target, String name, Object value) throws Exception {
+        Field field = target.getClass().getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(target, value);
+    }
+}
@@ -0,0 +1,225 @@
+package com.zc.miaoshaproject.stock;
+
+import com.zc.miaoshaproject.service.impl.ItemServiceImpl;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.serializer.Jackson2JsonRedisSerializer;
+import org.springframework.data.redis.serializer.StringRedisSerializer;
+
+import java.lang.reflect.Field;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 描述:
+ * 秒杀库存扣减压测:increment扣减+超卖回补 对比 lua脚本扣减;
+ * 请求量是库存的数倍,统计吞吐、每个请求的redis往返次数、超卖/少卖数量和压测期间观测到的最低库存;
+ * 需要本地redis(127.0.0.1:6379),连不上时跳过;默认不跑,mvn test -Pbenchmark -Dtest=DecreaseStockBenchmark
+ * @Author: zhangchao
+ * @Date: 9/17/20 10:20 上午
+ **/
+public class DecreaseStockBenchmark {
+
+    private static final Integer ITEM_ID = 900006;
+
+    private static final String STOCK_KEY = "promo_item_stock_" + ITEM_ID;
+
+    private static final String INVALID_KEY = "promo_item_stock_invalid_" + ITEM_ID;
+
+    private static final int STOCK = 5000;
+
+    private static final int REQUESTS = 15000;
+
+    private static final int THREADS = 32;
+
+    private static final int WARMUP_ROUNDS = 1;
+
+    private static final int ROUNDS = 3;
+
+    private LettuceConnectionFactory connectionFactory;
+
+    //扣减用的模板,统计redis往返次数
+    private RedisTemplate<String,Object> redisTemplate;
+
+    //准备数据和采样用的模板,不计入往返次数
+    private RedisTemplate<String,Object> checkTemplate;
+
+    private final AtomicLong roundTrips = new AtomicLong();
+
+    private ItemServiceImpl itemService;
+
+    //每个请求扣减1~3件,固定种子保证两种方式的请求序列相同
+    private final int[] amounts = new int[REQUESTS];
+
+    @Before
+    public void setUp() throws Exception {
+        connectionFactory = new LettuceConnectionFactory("127.0.0.1", 6379);
+        connectionFactory.afterPropertiesSet();
+        try {
+            connectionFactory.getConnection().ping();
+        }catch (Exception e){
+            connectionFactory.destroy();
+            Assume.assumeNoException("redis不可用", e);
+        }
+        //opsForValue和脚本调用最终都经过execute(RedisCallback,boolean,boolean),每次调用即一次往返
+        redisTemplate = new RedisTemplate<String,Object>(){
+            @Override
+            public <T> T execute(RedisCallback<T> action, boolean exposeConnection, boolean pipeline) {
+                roundTrips.incrementAndGet();
+                return super.execute(action, exposeConnection, pipeline);
+            }
+        };
+        initTemplate(redisTemplate);
+        checkTemplate = new RedisTemplate<>();
+        initTemplate(checkTemplate);
+
+        //不拆分库存,走单key扣减
+        StockBucketRouter stockBucketRouter = new StockBucketRouter();
+        set(stockBucketRouter, "redisTemplate", checkTemplate);
+        set(stockBucketRouter, "bucketCount", 1);
+
+        SoldOutRegistry soldOutRegistry = new SoldOutRegistry();
+        set(soldOutRegistry, "redisTemplate", redisTemplate);
+        set(soldOutRegistry, "stringRedisTemplate", new StringRedisTemplate(connectionFactory));
+
+        itemService = new ItemServiceImpl();
+        set(itemService, "redisTemplate", redisTemplate);
+        set(itemService, "stockBucketRouter", stockBucketRouter);
+        set(itemService, "soldOutRegistry", soldOutRegistry);
+        itemService.init();
+
+        Random random = new Random(42);
+        for (int i = 0; i < REQUESTS; i++){
+            amounts[i] = 1 + random.nextInt(3);
+        }
+    }
+
+    @After
+    public void tearDown(){
+        if (checkTemplate != null){
+            checkTemplate.delete(Arrays.asList(STOCK_KEY, INVALID_KEY));
+            connectionFactory.destroy();
+        }
+    }
+
+    @Test
+    public void incrVersusLua() throws Exception {
+        System.out.println(String.format("库存=%d 请求=%d 线程=%d", STOCK, REQUESTS, THREADS));
+        System.out.println(String.format("%-5s %10s %10s %8s %8s %8s %8s %6s",
+                "mode", "ops/s", "trips/req", "sold", "oversell", "left", "minSeen", "flag"));
+        for (String mode : new String[]{"incr", "lua"}){
+            set(itemService, "stockDecreaseMode", mode);
+            for (int i = 0; i < WARMUP_ROUNDS; i++){
+                runRound();
+            }
+            for (int i = 0; i < ROUNDS; i++){
+                Result result = runRound();
+                System.out.println(String.format("%-5s %10.0f %10.2f %8d %8d %8d %8d %6s",
+                        mode, result.opsPerSecond, result.roundTripsPerRequest, result.sold,
+                        Math.max(0, result.sold - STOCK), result.left, result.minSeen, result.soldOutFlag));
+                if ("lua".equals(mode)){
+                    assertTrue("lua扣减不能超卖", result.sold <= STOCK);
+                    assertTrue("lua扣减库存不能为负", result.minSeen >= 0);
+                }
+            }
+        }
+    }
+
+    private Result runRound() throws Exception {
+        checkTemplate.delete(INVALID_KEY);
+        checkTemplate.opsForValue().set(STOCK_KEY, STOCK);
+        roundTrips.set(0);
+
+        AtomicInteger next = new AtomicInteger();
+        AtomicLong sold = new AtomicLong();
+        AtomicLong minSeen = new AtomicLong(STOCK);
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        CountDownLatch start = new CountDownLatch(1);
+        for (int t = 0; t < THREADS; t++){
+            pool.execute(() -> {
+                try {
+                    start.await();
+                    int i;
+                    while ((i = next.getAndIncrement()) < REQUESTS){
+                        if (itemService.decreaseStock(ITEM_ID, amounts[i])){
+                            sold.addAndGet(amounts[i]);
+                        }
+                    }
+                }catch (Exception e){
+                    throw new IllegalStateException(e);
+                }
+            });
+        }
+        //单独线程不停读取库存,记录扣减期间出现过的最小值
+        Thread sampler = new Thread(() -> {
+            while (!Thread.currentThread().isInterrupted()){
+                Object value = checkTemplate.opsForValue().get(STOCK_KEY);
+                if (value != null){
+                    long stock = ((Number) value).longValue();
+                    minSeen.accumulateAndGet(stock, Math::min);
+                }
+            }
+        });
+
+        long begin = System.nanoTime();
+        sampler.start();
+        start.countDown();
+        pool.shutdown();
+        assertTrue(pool.awaitTermination(120, TimeUnit.SECONDS));
+        long elapsed = System.nanoTime() - begin;
+        sampler.interrupt();
+        sampler.join();
+
+        Result result = new Result();
+        result.opsPerSecond = REQUESTS * 1e9 / elapsed;
+        result.roundTripsPerRequest = (double) roundTrips.get() / REQUESTS;
+        result.sold = sold.get();
+        result.left = ((Number) checkTemplate.opsForValue().get(STOCK_KEY)).longValue();
+        result.minSeen = minSeen.get();
+        result.soldOutFlag = checkTemplate.hasKey(INVALID_KEY);
+        return result;
+    }
+
+    private void initTemplate(RedisTemplate<String,Object> template){
+        template.setConnectionFactory(connectionFactory);
+        template.setKeySerializer(new StringRedisSerializer());
+        //与RedisConfig一致,数值按json读写
+        template.setValueSerializer(new Jackson2JsonRedisSerializer<>(Object.class));
+        template.afterPropertiesSet();
+    }
+
+    private void set(Object target, String name, Object value) throws Exception {
+        Field field = target.getClass().getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(target, value);
+    }
+
+    private static class Result {
+
+        private double opsPerSecond;
+
+        private double roundTripsPerRequest;
+
+        private long sold;
+
+        private long left;
+
+        private long minSeen;
+
+        private boolean soldOutFlag;
+    }
+}
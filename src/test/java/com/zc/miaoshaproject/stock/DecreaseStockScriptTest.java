@@ -0,0 +1,119 @@
+package com.zc.miaoshaproject.stock;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scripting.support.ResourceScriptSource;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 描述:
+ * decrease_stock.lua并发扣减不超卖,需要本地redis(127.0.0.1:6379),连不上时跳过
+ * @Author: zhangchao
+ * @Date: 9/12/20 10:20 上午
+ **/
+public class DecreaseStockScriptTest {
+
+    private static final String STOCK_KEY = "test_promo_item_stock_1";
+
+    private static final String INVALID_KEY = "test_promo_item_stock_invalid_1";
+
+    private LettuceConnectionFactory connectionFactory;
+
+    private StringRedisTemplate redisTemplate;
+
+    private DefaultRedisScript<Long> script;
+
+    @Before
+    public void setUp(){
+        connectionFactory = new LettuceConnectionFactory("127.0.0.1", 6379);
+        connectionFactory.afterPropertiesSet();
+        try {
+            connectionFactory.getConnection().ping();
+        }catch (Exception e){
+            connectionFactory.destroy();
+            Assume.assumeNoException("redis不可用", e);
+        }
+        redisTemplate = new StringRedisTemplate(connectionFactory);
+        script = new DefaultRedisScript<>();
+        script.setScriptSource(new ResourceScriptSource(new ClassPathResource("lua/decrease_stock.lua")));
+        script.setResultType(Long.class);
+        redisTemplate.delete(Arrays.asList(STOCK_KEY, INVALID_KEY));
+    }
+
+    @After
+    public void tearDown(){
+        if (redisTemplate != null){
+            redisTemplate.delete(Arrays.asList(STOCK_KEY, INVALID_KEY));
+            connectionFactory.destroy();
+        }
+    }
+
+    @Test
+    public void concurrentDecreaseNeverOversells() throws Exception {
+        int stock = 1000;
+        redisTemplate.opsForValue().set(STOCK_KEY, String.valueOf(stock));
+
+        int threads = 32;
+        AtomicInteger sold = new AtomicInteger();
+        AtomicInteger zeroHits = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<String> keys = Arrays.asList(STOCK_KEY, INVALID_KEY);
+        for (int t = 0; t < threads; t++){
+            int amount = t % 3 + 1;
+            executor.execute(() -> {
+                try {
+                    start.await();
+                    for (int i = 0; i < 100; i++){
+                        Long left = redisTemplate.execute(script, keys, String.valueOf(amount));
+                        if (left != null && left >= 0){
+                            sold.addAndGet(amount);
+                            if (left == 0){
+                                zeroHits.incrementAndGet();
+                            }
+                        }
+                    }
+                }catch (InterruptedException e){
+                    Thread.currentThread().interrupt();
+                }
+            });
+        }
+        start.countDown();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(60, TimeUnit.SECONDS));
+
+        int left = Integer.parseInt(redisTemplate.opsForValue().get(STOCK_KEY));
+        assertTrue("库存不能为负数", left >= 0);
+        assertEquals("成功扣减的数量与库存变化一致", stock - left, sold.get());
+        assertTrue("扣减总量不超过库存", sold.get() <= stock);
+        if (left == 0){
+            assertEquals(1, zeroHits.get());
+            assertEquals("true", redisTemplate.opsForValue().get(INVALID_KEY));
+        }
+    }
+
+    @Test
+    public void insufficientStockIsRejectedWithoutChange(){
+        redisTemplate.opsForValue().set(STOCK_KEY, "2");
+        Long result = redisTemplate.execute(script, Arrays.asList(STOCK_KEY, INVALID_KEY), "3");
+        assertEquals(Long.valueOf(-1), result);
+        assertEquals("2", redisTemplate.opsForValue().get(STOCK_KEY));
+        assertEquals(null, redisTemplate.opsForValue().get(INVALID_KEY));
+    }
+}
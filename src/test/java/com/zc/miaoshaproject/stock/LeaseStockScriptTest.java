@@ -0,0 +1,119 @@
+package com.zc.miaoshaproject.stock;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scripting.support.ResourceScriptSource;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * 描述:
+ * 租借库存脚本:全局库存与所有节点的租借都用完才打售罄标识,需要本地redis(127.0.0.1:6379),连不上时跳过
+ * @Author: zhangchao
+ * @Date: 9/12/20 3:40 下午
+ **/
+public class LeaseStockScriptTest {
+
+    private static final String STOCK_KEY = "test_promo_item_stock_2";
+
+    private static final String INVALID_KEY = "test_promo_item_stock_invalid_2";
+
+    private static final String LEASED_KEY = "test_promo_item_stock_leased_2";
+
+    private LettuceConnectionFactory connectionFactory;
+
+    private StringRedisTemplate redisTemplate;
+
+    private DefaultRedisScript<Long> leaseScript;
+
+    private DefaultRedisScript<Long> returnScript;
+
+    private DefaultRedisScript<Long> settleScript;
+
+    @Before
+    public void setUp(){
+        connectionFactory = new LettuceConnectionFactory("127.0.0.1", 6379);
+        connectionFactory.afterPropertiesSet();
+        try {
+            connectionFactory.getConnection().ping();
+        }catch (Exception e){
+            connectionFactory.destroy();
+            Assume.assumeNoException("redis不可用", e);
+        }
+        redisTemplate = new StringRedisTemplate(connectionFactory);
+        leaseScript = script("lua/lease_stock.lua");
+        returnScript = script("lua/return_stock.lua");
+        settleScript = script("lua/settle_lease.lua");
+        redisTemplate.delete(Arrays.asList(STOCK_KEY, INVALID_KEY, LEASED_KEY));
+    }
+
+    @After
+    public void tearDown(){
+        if (redisTemplate != null){
+            redisTemplate.delete(Arrays.asList(STOCK_KEY, INVALID_KEY, LEASED_KEY));
+            connectionFactory.destroy();
+        }
+    }
+
+    @Test
+    public void soldOutOnlyAfterAllLeasesAreUsed(){
+        redisTemplate.opsForValue().set(STOCK_KEY, "150");
+
+        assertEquals(100, lease("a", 0));
+        assertEquals(50, lease("b", 0));
+
+        //节点a用完了自己的租借,但节点b手里还有库存
+        assertEquals(0, lease("a", 0));
+        assertEquals(0, settle("a", 0));
+        assertNull(redisTemplate.opsForValue().get(INVALID_KEY));
+
+        //节点b归还未用完的20个
+        redisTemplate.execute(returnScript, Arrays.asList(STOCK_KEY, INVALID_KEY, LEASED_KEY), "20", "b");
+        assertNull(redisTemplate.opsForHash().get(LEASED_KEY, "b"));
+        assertEquals(0, settle("a", 0));
+
+        assertEquals(20, lease("a", 0));
+        assertEquals(0, lease("a", 0));
+        assertEquals(1, settle("a", 0));
+        assertEquals("true", redisTemplate.opsForValue().get(INVALID_KEY));
+    }
+
+    @Test
+    public void leaseRecordsLocalRemainder(){
+        redisTemplate.opsForValue().set(STOCK_KEY, "30");
+        assertEquals(30, lease("a", 5));
+        assertEquals("35", redisTemplate.opsForHash().get(LEASED_KEY, "a"));
+        assertEquals(0, lease("a", 3));
+        assertEquals("3", redisTemplate.opsForHash().get(LEASED_KEY, "a"));
+        //本地还剩3个,不能打售罄标识
+        assertEquals(0, settle("a", 3));
+        assertNull(redisTemplate.opsForValue().get(INVALID_KEY));
+    }
+
+    private long lease(String field, long local){
+        List<String> keys = Arrays.asList(STOCK_KEY, LEASED_KEY);
+        return redisTemplate.execute(leaseScript, keys, "100", field, String.valueOf(local));
+    }
+
+    private long settle(String field, long local){
+        List<String> keys = Arrays.asList(LEASED_KEY, STOCK_KEY, INVALID_KEY);
+        return redisTemplate.execute(settleScript, keys, field, String.valueOf(local), "1");
+    }
+
+    private DefaultRedisScript<Long> script(String path){
+        DefaultRedisScript<Long> script = new DefaultRedisScript<>();
+        script.setScriptSource(new ResourceScriptSource(new ClassPathResource(path)));
+        script.setResultType(Long.class);
+        return script;
+    }
+}
@@ -0,0 +1,165 @@
+package com.zc.miaoshaproject.stock;
+
+import io.lettuce.core.cluster.SlotHash;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.data.redis.serializer.Jackson2JsonRedisSerializer;
+import org.springframework.data.redis.serializer.StringRedisSerializer;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 描述:
+ * 库存拆分时的本地库存预分配:每次脚本调用的key都在同一个slot(可在redis集群执行),
+ * 其他节点仍持有租借时不打售罄标识,全部用完后才打;需要本地redis(127.0.0.1:6379),连不上时跳过
+ * @Author: zhangchao
+ * @Date: 9/15/20 2:40 下午
+ **/
+public class LocalStockAllocatorSplitTest {
+
+    private static final Integer ITEM_ID = 900002;
+
+    private static final int BUCKETS = 4;
+
+    private static final String INVALID_KEY = "promo_item_stock_invalid_" + ITEM_ID;
+
+    private LettuceConnectionFactory connectionFactory;
+
+    private StringRedisTemplate stringRedisTemplate;
+
+    private RedisTemplate<String,Object> redisTemplate;
+
+    //跨slot的脚本调用
+    private final List<String> crossSlotCalls = new ArrayList<>();
+
+    private StockBucketRouter stockBucketRouter;
+
+    private final List<LocalStockAllocator> allocators = new ArrayList<>();
+
+    @Before
+    public void setUp() throws Exception {
+        connectionFactory = new LettuceConnectionFactory("127.0.0.1", 6379);
+        connectionFactory.afterPropertiesSet();
+        try {
+            connectionFactory.getConnection().ping();
+        }catch (Exception e){
+            connectionFactory.destroy();
+            Assume.assumeNoException("redis不可用", e);
+        }
+        stringRedisTemplate = new StringRedisTemplate(connectionFactory);
+        redisTemplate = new RedisTemplate<String,Object>(){
+            @Override
+            public <T> T execute(RedisScript<T> script, List<String> keys, Object... args) {
+                for (String key : keys){
+                    if (SlotHash.getSlot(key) != SlotHash.getSlot(keys.get(0))){
+                        crossSlotCalls.add(keys.toString());
+                    }
+                }
+                return super.execute(script, keys, args);
+            }
+        };
+        redisTemplate.setConnectionFactory(connectionFactory);
+        redisTemplate.setKeySerializer(new StringRedisSerializer());
+        //与RedisConfig一致,数值按json读写
+        redisTemplate.setValueSerializer(new Jackson2JsonRedisSerializer<>(Object.class));
+        redisTemplate.afterPropertiesSet();
+        cleanUp();
+
+        stockBucketRouter = new StockBucketRouter();
+        set(stockBucketRouter, "redisTemplate", redisTemplate);
+        set(stockBucketRouter, "bucketCount", BUCKETS);
+    }
+
+    @After
+    public void tearDown(){
+        if (redisTemplate != null){
+            for (LocalStockAllocator allocator : allocators){
+                allocator.destroy();
+            }
+            cleanUp();
+            connectionFactory.destroy();
+        }
+    }
+
+    @Test
+    public void soldOutOnlyAfterEveryNodeUsedItsLease() throws Exception {
+        //30个库存拆成8,8,7,7
+        stockBucketRouter.publish(ITEM_ID, 30);
+        LocalStockAllocator nodeA = newAllocator();
+        LocalStockAllocator nodeB = newAllocator();
+
+        //节点b租到一批后只卖出1个
+        assertTrue(nodeB.tryDecrease(ITEM_ID, 1));
+        int sold = 1;
+        while (nodeA.tryDecrease(ITEM_ID, 1)){
+            sold++;
+        }
+        assertTrue(stockBucketRouter.allEmpty(ITEM_ID));
+        //节点b手里还有库存,不能打售罄标识
+        assertNull(redisTemplate.opsForValue().get(INVALID_KEY));
+
+        //节点b归还剩余库存,节点a等重新确认的间隔过后继续卖完
+        nodeB.release(ITEM_ID);
+        assertFalse(stockBucketRouter.allEmpty(ITEM_ID));
+        Thread.sleep(1100);
+        while (nodeA.tryDecrease(ITEM_ID, 1)){
+            sold++;
+        }
+        assertEquals(30, sold);
+        assertEquals("true", redisTemplate.opsForValue().get(INVALID_KEY));
+        for (int i = 0; i < BUCKETS; i++){
+            assertFalse(redisTemplate.hasKey("promo_item_stock_leased_{" + ITEM_ID + "_" + i + "}"));
+        }
+        assertEquals("脚本调用跨slot:" + crossSlotCalls, 0, crossSlotCalls.size());
+    }
+
+    private LocalStockAllocator newAllocator() throws Exception {
+        SoldOutRegistry soldOutRegistry = new SoldOutRegistry();
+        set(soldOutRegistry, "redisTemplate", redisTemplate);
+        set(soldOutRegistry, "stringRedisTemplate", stringRedisTemplate);
+
+        LocalStockAllocator allocator = new LocalStockAllocator();
+        set(allocator, "redisTemplate", redisTemplate);
+        set(allocator, "stringRedisTemplate", stringRedisTemplate);
+        set(allocator, "redisMessageListenerContainer", new RedisMessageListenerContainer());
+        set(allocator, "stockBucketRouter", stockBucketRouter);
+        set(allocator, "soldOutRegistry", soldOutRegistry);
+        set(allocator, "leaseSize", 10);
+        //不做后台补货,租借都发生在调用线程上
+        set(allocator, "refillPercent", 0);
+        set(allocator, "idleSeconds", 60);
+        allocator.init();
+        allocators.add(allocator);
+        return allocator;
+    }
+
+    private void cleanUp(){
+        List<String> keys = new ArrayList<>();
+        keys.add(INVALID_KEY);
+        for (int i = 0; i < BUCKETS; i++){
+            keys.add("promo_item_stock_{" + ITEM_ID + "_" + i + "}");
+            keys.add("promo_item_stock_leased_{" + ITEM_ID + "_" + i + "}");
+        }
+        redisTemplate.delete(keys);
+    }
+
+    private void set(Object target, String name, Object value) throws Exception {
+        Field field = target.getClass().getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(target, value);
+    }
+}
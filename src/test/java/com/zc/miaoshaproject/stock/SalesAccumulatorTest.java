@@ -0,0 +1,136 @@
+package com.zc.miaoshaproject.stock;
+
+import com.zc.miaoshaproject.dao.ItemDOMapper;
+import com.zc.miaoshaproject.dataobject.ItemDO;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 描述:
+ * 销量计数器不存在时多个节点并发初始化,数据库中的销量只计一次,各节点的增量都不丢;
+ * 需要本地redis(127.0.0.1:6379),连不上时跳过
+ * @Author: zhangchao
+ * @Date: 9/16/20 4:40 下午
+ **/
+public class SalesAccumulatorTest {
+
+    private static final Integer ITEM_ID = 900004;
+
+    private static final String SALES_KEY = "item_sales_" + ITEM_ID;
+
+    private static final int DB_SALES = 100;
+
+    private static final int NODES = 4;
+
+    private static final int THREADS_PER_NODE = 4;
+
+    private static final int ADDS_PER_THREAD = 200;
+
+    private LettuceConnectionFactory connectionFactory;
+
+    private StringRedisTemplate stringRedisTemplate;
+
+    //写入数据库的增量
+    private final AtomicInteger flushedSales = new AtomicInteger();
+
+    @Before
+    public void setUp(){
+        connectionFactory = new LettuceConnectionFactory("127.0.0.1", 6379);
+        connectionFactory.afterPropertiesSet();
+        try {
+            connectionFactory.getConnection().ping();
+        }catch (Exception e){
+            connectionFactory.destroy();
+            Assume.assumeNoException("redis不可用", e);
+        }
+        stringRedisTemplate = new StringRedisTemplate(connectionFactory);
+        stringRedisTemplate.delete(SALES_KEY);
+    }
+
+    @After
+    public void tearDown(){
+        if (stringRedisTemplate != null){
+            stringRedisTemplate.delete(SALES_KEY);
+            connectionFactory.destroy();
+        }
+    }
+
+    @Test
+    public void concurrentSeedingCountsDbSalesOnce() throws Exception {
+        SalesAccumulator[] nodes = new SalesAccumulator[NODES];
+        for (int i = 0; i < NODES; i++){
+            nodes[i] = newAccumulator();
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(NODES * THREADS_PER_NODE);
+        CountDownLatch start = new CountDownLatch(1);
+        for (int t = 0; t < NODES * THREADS_PER_NODE; t++){
+            SalesAccumulator node = nodes[t % NODES];
+            pool.execute(() -> {
+                try {
+                    start.await();
+                }catch (InterruptedException e){
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                for (int i = 0; i < ADDS_PER_THREAD; i++){
+                    node.add(ITEM_ID, 1);
+                }
+            });
+        }
+        start.countDown();
+        pool.shutdown();
+        assertTrue(pool.awaitTermination(60, TimeUnit.SECONDS));
+
+        int added = NODES * THREADS_PER_NODE * ADDS_PER_THREAD;
+        assertEquals(Integer.valueOf(DB_SALES + added), nodes[0].currentSales(ITEM_ID, 0));
+        for (SalesAccumulator node : nodes){
+            node.destroy();
+        }
+        assertEquals(added, flushedSales.get());
+    }
+
+    private SalesAccumulator newAccumulator() throws Exception {
+        ItemDOMapper itemDOMapper = (ItemDOMapper) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class[]{ItemDOMapper.class}, (proxy, method, args) -> {
+                    if ("selectByPrimaryKey".equals(method.getName())){
+                        ItemDO itemDO = new ItemDO();
+                        itemDO.setId(ITEM_ID);
+                        itemDO.setSales(DB_SALES);
+                        return itemDO;
+                    }
+                    if ("increaseSales".equals(method.getName())){
+                        flushedSales.addAndGet((Integer) args[1]);
+                        return 1;
+                    }
+                    throw new UnsupportedOperationException(method.getName());
+                });
+        SalesAccumulator accumulator = new SalesAccumulator();
+        set(accumulator, "itemDOMapper", itemDOMapper);
+        set(accumulator, "stringRedisTemplate", stringRedisTemplate);
+        //只在关闭时写库
+        set(accumulator, "flushSeconds", 3600);
+        accumulator.init();
+        return accumulator;
+    }
+
+    private void set(Object target, String name, Object value) throws Exception {
+        Field field = target.getClass().getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(target, value);
+    }
+}